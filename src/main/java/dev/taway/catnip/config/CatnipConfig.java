@@ -11,6 +11,12 @@ public class CatnipConfig {
 
     private CookiesFromBrowser cookiesFromBrowser;
     private Cache cache;
+    private Download download = new Download();
+    private Queue queue = new Queue();
+    private QueueJournal queueJournal = new QueueJournal();
+    private BackupPlaylist backupPlaylist = new BackupPlaylist();
+    private VoteSkip voteSkip = new VoteSkip();
+    private Persistence persistence = new Persistence();
     private Permission permission;
 
     @Data
@@ -20,6 +26,125 @@ public class CatnipConfig {
          * Folders that will be created if they do not exist on application start. Paths are relative to the current working directory.
          */
         private String[] directories;
+        /**
+         * Size budget of downloaded songs in megabytes. Least valuable songs are deleted once it is exceeded. 0 means no limit.
+         */
+        private long maximumSizeMegabytes = 0;
+        /**
+         * How often the cache size is checked against the budget.
+         */
+        private int evictionIntervalSeconds = 60;
+        /**
+         * How the cache index is stored on disk. Switching to BINARY converts the JSON file once.
+         */
+        private MusicCacheStorageFormat storageFormat = MusicCacheStorageFormat.JSON;
+    }
+
+    @Data
+    public static class Download {
+        /**
+         * Number of downloads running at once after startup. From there the number adapts between
+         * {@code minimumConcurrency} and {@code maximumConcurrency}, there is one worker thread per possible download.
+         */
+        private int workerThreads = 2;
+        /**
+         * Maximum number of download jobs waiting for a free worker. Requests above this limit are rejected.
+         */
+        private int queueCapacity = 32;
+        /**
+         * How long finished jobs are kept so their status can still be queried.
+         */
+        private int jobRetentionSeconds = 600;
+        /**
+         * Songs that failed to download are refused for a while before yt-dlp is tried again. The wait doubles with
+         * every failure up to this many minutes.
+         */
+        private int maximumFailureBackoffMinutes = 1440;
+        /**
+         * Fetch metadata and download in one yt-dlp run instead of two. Falls back to two runs if the installed
+         * yt-dlp does not support it.
+         */
+        private boolean singleProcess = true;
+        /**
+         * yt-dlp runs fetching only metadata are killed after this many seconds.
+         */
+        private int metadataTimeoutSeconds = 60;
+        /**
+         * yt-dlp runs downloading a song are killed after this many seconds. Partial files are deleted.
+         */
+        private int downloadTimeoutSeconds = 600;
+        /**
+         * Fewest yt-dlp runs allowed at once. The limit never adapts below this.
+         */
+        private int minimumConcurrency = 1;
+        /**
+         * Most yt-dlp runs allowed at once, however fast they are. Also the number of download worker threads.
+         */
+        private int maximumConcurrency = 4;
+        /**
+         * New downloads are refused with 429 once the download backlog would take this many seconds longer than the
+         * queue takes to play.
+         */
+        private int backlogAllowanceSeconds = 300;
+    }
+
+    @Data
+    public static class Queue {
+        /**
+         * Maximum number of songs a single user can have in queue at once. 0 means no limit.
+         * Users allowed to use music controls are not limited.
+         */
+        private int maxEntriesPerUser = 0;
+        /**
+         * Number of entries after the currently playing one that are kept ready on disk and announced to overlays in
+         * advance. Missing files are downloaded again. 0 turns the look-ahead off.
+         */
+        private int lookaheadEntries = 3;
+    }
+
+    @Data
+    public static class QueueJournal {
+        /**
+         * Queue operations are appended to the journal in batches. One fsync covers every operation of a batch.
+         */
+        private int flushIntervalMillis = 100;
+        /**
+         * Journal is folded into a new snapshot once it holds this many operations.
+         */
+        private int compactAfterOperations = 1000;
+        /**
+         * Journal is folded into a new snapshot at least this often if anything changed.
+         */
+        private int compactIntervalSeconds = 600;
+    }
+
+    @Data
+    public static class Persistence {
+        /**
+         * Changed data (music cache, blacklist, death counters...) is written to disk at most this often.
+         * A crash loses at most this much.
+         */
+        private int flushIntervalMillis = 1000;
+    }
+
+    @Data
+    public static class BackupPlaylist {
+        /**
+         * Play shuffled songs from "/cache/music/backup-playlist/" whenever the request queue runs empty.
+         */
+        private boolean enabled = true;
+        /**
+         * Number of threads reading tags when the backup playlist directory is scanned.
+         */
+        private int scanThreads = 4;
+    }
+
+    @Data
+    public static class VoteSkip {
+        /**
+         * Number of distinct users that have to vote for the current song to be skipped.
+         */
+        private int threshold = 5;
     }
 
     @Data
@@ -0,0 +1,13 @@
+package dev.taway.catnip.config;
+
+public enum MusicCacheStorageFormat {
+    /**
+     * Human readable "/cache/music-cache.json", rewritten as a whole on every save.
+     */
+    JSON,
+    /**
+     * Memory-mapped "/cache/music-cache.bin" with fixed size records. Loads faster and updates in place.
+     * An existing JSON cache is converted on first start.
+     */
+    BINARY
+}
@@ -0,0 +1,26 @@
+package dev.taway.catnip.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+@Configuration
+public class SchedulerConfig {
+
+    /**
+     * Single scheduler thread shared by all timed background work (playback clock, maintenance jobs...).
+     * Tasks scheduled here must be short, anything slow belongs on its own executor.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService catnipScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                1,
+                Thread.ofPlatform().name("catnip-scheduler").daemon(true).factory()
+        );
+//        Cancelled timers (e.g. end of a skipped track) should not pile up in the work queue
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+}
@@ -0,0 +1,65 @@
+package dev.taway.catnip.controller;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.dto.response.MusicCacheSearchResponse;
+import dev.taway.catnip.dto.response.MusicCacheStatsResponse;
+import dev.taway.catnip.service.music.cache.CacheEvictionService;
+import dev.taway.catnip.service.music.cache.MusicCacheManagerService;
+import dev.taway.catnip.service.music.cache.MusicCacheService;
+import dev.taway.catnip.util.SingleFlight;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/music/cache")
+public class MusicCacheController {
+    private static final int MAX_SEARCH_RESULTS = 50;
+    private final MusicCacheService musicCacheService;
+    private final MusicCacheManagerService cacheManager;
+    private final CacheEvictionService cacheEviction;
+
+    @Autowired
+    public MusicCacheController(MusicCacheService musicCacheService, MusicCacheManagerService cacheManager, CacheEvictionService cacheEviction) {
+        this.musicCacheService = musicCacheService;
+        this.cacheManager = cacheManager;
+        this.cacheEviction = cacheEviction;
+    }
+
+    @Operation(summary = "Returns music cache statistics", description = "Returns cache size, disk usage against the size budget and how many yt-dlp runs were saved by attaching duplicate requests to running downloads.")
+    @ApiResponse(responseCode = "200", description = "Success")
+    @GetMapping("/stats")
+    public ResponseEntity<MusicCacheStatsResponse> stats() {
+        SingleFlight<?, ?> downloads = musicCacheService.getInFlightDownloads();
+
+        return ResponseEntity.ok(new MusicCacheStatsResponse(
+                musicCacheService.getCacheSize(),
+                downloads.getInFlightCount(),
+                downloads.getStartedCount(),
+                downloads.getDeduplicatedCount(),
+                cacheManager.getDiskUsageBytes(),
+                cacheEviction.getBudgetBytes(),
+                cacheEviction.getEvictedCount()
+        ));
+    }
+
+    @Operation(summary = "Searches cached songs", description = "Searches titles and artists of cached songs. Every word has to match the start of a word in the title or artist. Only looks at the cache, nothing is downloaded.")
+    @ApiResponse(responseCode = "200", description = "Success. Results can be empty")
+    @ApiResponse(responseCode = "400", description = "Query is empty")
+    @GetMapping("/search")
+    public ResponseEntity<MusicCacheSearchResponse> search(@RequestParam String query, @RequestParam(defaultValue = "10") int limit) {
+        if (query.isBlank()) {
+            return ResponseEntity.badRequest().body(new MusicCacheSearchResponse(true, "Query can not be empty!", List.of()));
+        }
+
+        List<MusicCacheEntry> results = musicCacheService.search(query, Math.clamp(limit, 1, MAX_SEARCH_RESULTS));
+        return ResponseEntity.ok(new MusicCacheSearchResponse(false, String.format("Found %d songs", results.size()), results));
+    }
+}
@@ -1,25 +1,41 @@
 package dev.taway.catnip.controller;
 
 import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.DownloadJob;
 import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.data.music.MusicQueueSnapshot;
+import dev.taway.catnip.data.music.QueueOperation;
 import dev.taway.catnip.dto.request.music.MusicQueueRequest;
 import dev.taway.catnip.dto.response.BasicResponse;
+import dev.taway.catnip.dto.response.DownloadJobResponse;
+import dev.taway.catnip.dto.response.MusicQueueResponse;
+import dev.taway.catnip.dto.response.QueueAddResponse;
+import dev.taway.catnip.dto.response.QueuePositionResponse;
 import dev.taway.catnip.service.PermissionService;
+import dev.taway.catnip.service.music.cache.DownloadJobService;
 import dev.taway.catnip.service.music.cache.MusicCacheService;
-import dev.taway.catnip.service.music.util.UrlUtil;
+import dev.taway.catnip.service.music.cache.NegativeCacheService;
+import dev.taway.catnip.service.music.util.YouTubeUrlParser;
 import dev.taway.catnip.service.music.queue.MusicQueueService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 
 @RestController
 @RequestMapping("/api/music/queue")
@@ -27,21 +43,64 @@ public class MusicQueueController {
     private static final Logger log = LogManager.getLogger(MusicQueueController.class);
     private final MusicCacheService musicCacheService;
     private final MusicQueueService musicQueueService;
+    private final DownloadJobService downloadJobService;
     private final PermissionService permissionService;
     private final CatnipConfig catnipConfig;
 
     @Autowired
-    public MusicQueueController(MusicCacheService musicCacheService, MusicQueueService musicQueueService, PermissionService permissionService, CatnipConfig catnipConfig) {
+    public MusicQueueController(MusicCacheService musicCacheService, MusicQueueService musicQueueService, DownloadJobService downloadJobService, PermissionService permissionService, CatnipConfig catnipConfig) {
         this.musicCacheService = musicCacheService;
         this.musicQueueService = musicQueueService;
+        this.downloadJobService = downloadJobService;
         this.permissionService = permissionService;
         this.catnipConfig = catnipConfig;
     }
 
-    @Operation(summary = "Adds song to queue", description = "Adds song to queue to be played. If it does not exist in cache it will be downloaded")
-    @ApiResponse(responseCode = "200", description = "Success")
+    @Operation(summary = "Returns the queue", description = "Returns the whole queue, or only the operations since the version passed in 'since'. The ETag is the queue version, send it back in If-None-Match to get 304 while nothing changed.")
+    @ApiResponse(responseCode = "200", description = "Success. Contains either 'entries' (whole queue) or 'operations' (changes since the requested version)")
+    @ApiResponse(responseCode = "304", description = "Queue has not changed since the requested version")
+    @GetMapping
+    public ResponseEntity<MusicQueueResponse> getQueue(
+            @RequestParam(required = false) Long since,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch
+    ) {
+        long version = musicQueueService.getVersion();
+        String etag = "\"" + version + "\"";
+
+//        Proxies may weaken the ETag
+        boolean etagMatches = ifNoneMatch != null && ifNoneMatch.replace("W/", "").trim().equals(etag);
+        if (etagMatches || (since != null && since == version)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build();
+        }
+
+        if (since != null) {
+            Optional<List<QueueOperation>> changes = musicQueueService.changesSince(since);
+            if (changes.isPresent()) {
+                List<QueueOperation> operations = changes.get();
+                long reached = operations.isEmpty() ? since : operations.get(operations.size() - 1).getSequence();
+                return ResponseEntity.ok()
+                        .eTag("\"" + reached + "\"")
+                        .body(new MusicQueueResponse(reached, null, operations));
+            }
+        }
+
+//        No version, or too old to answer with a delta
+        MusicQueueSnapshot snapshot = musicQueueService.snapshot();
+        return ResponseEntity.ok()
+                .eTag("\"" + snapshot.getSequence() + "\"")
+                .body(new MusicQueueResponse(snapshot.getSequence(), snapshot.getEntries(), null));
+    }
+
+    @Operation(summary = "Adds song to queue", description = "Adds song to queue to be played. If it does not exist in cache it will be downloaded in the background and the response contains the download job. Anything that is not a URL is searched for in the cache by title and artist.")
+    @ApiResponse(responseCode = "200", description = "Success. Song was cached and has been added to queue")
+    @ApiResponse(responseCode = "202", description = "Song is being downloaded. Use the job ID to check its status")
+    @ApiResponse(responseCode = "400", description = "URL is not a YouTube video URL")
     @ApiResponse(responseCode = "401", description = "User requesting this does not have the necessary permissions")
+    @ApiResponse(responseCode = "404", description = "Request by name did not match any cached song")
+    @ApiResponse(responseCode = "422", description = "Song failed to download recently and is not tried again yet")
+    @ApiResponse(responseCode = "429", description = "User already has the maximum number of songs in queue, or the download backlog can not be worked off in time. The latter sets Retry-After")
     @ApiResponse(responseCode = "500", description = "An error has occurred somewhere during song download. CHECK LOGS!")
+    @ApiResponse(responseCode = "503", description = "Too many songs are being downloaded right now")
     @PostMapping("/add")
     public ResponseEntity<BasicResponse> addToQueue(@RequestBody MusicQueueRequest request) {
 //        Check if user can request
@@ -51,78 +110,131 @@ public class MusicQueueController {
         }
 
 //        Sanitize URL. Remove tracking, playlist link etc.
-        request.setURL(UrlUtil.sanitizeURL(request.getURL()));
+        YouTubeUrlParser.Result parsed = YouTubeUrlParser.parse(request.getURL());
+        Optional<MusicCacheEntry> entry;
+        String url_shortened;
+        if (parsed instanceof YouTubeUrlParser.Accepted url) {
+            request.setURL(url.watchUrl());
+            url_shortened = url.videoId();
+//            Find in cache
+            entry = musicCacheService.getMusicCacheEntry(url_shortened);
+        } else if (((YouTubeUrlParser.Rejected) parsed).reason() == YouTubeUrlParser.Rejection.NOT_YOUTUBE) {
+//            Not a URL at all, request by name. Only already cached songs can be found this way.
+            entry = musicCacheService.search(request.getURL(), 1).stream().findFirst();
+            if (entry.isEmpty()) {
+                return ResponseEntity.status(404).body(new BasicResponse(
+                        true,
+                        String.format("No cached song matches \"%s\". Request it by URL instead!", request.getURL())
+                ));
+            }
+            url_shortened = entry.get().getUrlShortened();
+            log.debug("[{}] \"{}\" resolved to {} - {}", url_shortened, request.getURL(), entry.get().getArtist(), entry.get().getTitle());
+        } else {
+            log.debug("Rejected URL \"{}\": {}", request.getURL(), ((YouTubeUrlParser.Rejected) parsed).reason());
+            return ResponseEntity.badRequest().body(new BasicResponse(
+                    true,
+                    "Not a YouTube video URL!"
+            ));
+        }
 
-        BasicResponse response = new BasicResponse();
-        String url_shortened = UrlUtil.shortenURL(request.getURL());
+//        Users with music controls are not limited
+        int maxEntriesPerUser = permissionService.canRequest(request, catnipConfig.getPermission().getMusic().getMusicControls())
+                ? 0 : catnipConfig.getQueue().getMaxEntriesPerUser();
+        if (maxEntriesPerUser > 0 && musicQueueService.countRequestedBy(request.getUsername()) >= maxEntriesPerUser) {
+            return ResponseEntity.status(429).body(new BasicResponse(
+                    true,
+                    String.format("You already have %d songs in queue!", maxEntriesPerUser)
+            ));
+        }
 //        log.trace(request.toString());
-//        Find in cache
-        Optional<MusicCacheEntry> entry = musicCacheService.getMusicCacheEntry(url_shortened);
-//        If not found in cache then cache it
+//        If not found in cache then download it in the background. yt-dlp can take a long time, do not hold the request.
         if (entry.isEmpty()) {
-            log.info("[{}] Song not found in cache. Downloading!", url_shortened);
-            entry = musicCacheService.cacheSong(request.getURL());
-        }
+//            Known broken links are answered right away instead of starting yt-dlp again
+            Optional<NegativeCacheService.Failure> failure = musicCacheService.getRecentFailure(url_shortened);
+            if (failure.isPresent()) {
+                return ResponseEntity.status(422).body(new BasicResponse(
+                        true,
+                        String.format("%s Try again in %ds.", failure.get().reason().getMessage(), failure.get().getRetryInSeconds())
+                ));
+            }
 
-//        Here the song should be downloaded
-        if (entry.isPresent()) {
-            MusicCacheEntry cacheEntry = entry.get();
-            if (cacheEntry.isBlocked()) {
-                log.info("[{}] {} - {} was not added to queue. Reason: {}",
-                        url_shortened,
-                        cacheEntry.getArtist(),
-                        cacheEntry.getTitle(),
-                        cacheEntry.getBlockReason().getMessage()
-                );
-
-                response.setMessage(
-                        String.format("%s - %s was not added to queue. Reason: %s",
-                                cacheEntry.getArtist(),
-                                cacheEntry.getTitle(),
-                                cacheEntry.getBlockReason().getMessage()
-                        )
-                );
-            } else {
-                if (cacheEntry.getLocalData() == null) {
-                    log.error("[{}] Song is not blocked but does not contain any local data!", url_shortened);
-
-                    response.setError(true);
-                    response.setMessage("Internal error occurred!");
-                } else {
-//                    Get time to play the song
-                    String playingIn = musicQueueService.queueEmptyInAsString();
-//                    Add to queue
-                    musicQueueService.addToQueue(cacheEntry);
-
-                    response.setMessage(
-                            String.format(
-                                    "Added %s - %s to queue! Playing in ~%s",
-                                    cacheEntry.getArtist(),
-                                    cacheEntry.getTitle(),
-                                    playingIn
-                            )
-                    );
-                    log.info("[{}] Added {} - {} to queue. Will be played in ~{}",
-                            url_shortened,
-                            cacheEntry.getArtist(),
-                            cacheEntry.getTitle(),
-                            playingIn
-                    );
+//            Songs already downloading for someone else cost nothing more
+            if (!musicCacheService.isDownloading(url_shortened)) {
+                OptionalLong retryAfter = downloadJobService.getBacklogRetryAfterSeconds();
+                if (retryAfter.isPresent()) {
+                    log.info("[{}] Download backlog is too long, request refused for {}s", url_shortened, retryAfter.getAsLong());
+                    return ResponseEntity.status(429)
+                            .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter.getAsLong()))
+                            .body(new BasicResponse(
+                                    true,
+                                    String.format("Too many songs are waiting to be downloaded. Try again in %ds!", retryAfter.getAsLong())
+                            ));
                 }
             }
-        } else {
-            response.setError(true);
-            response.setMessage("Internal error occurred!");
+
+            Optional<DownloadJob> job = downloadJobService.submit(request.getURL(), request.getUsername(), maxEntriesPerUser);
+            if (job.isEmpty()) {
+                return ResponseEntity.status(503).body(new BasicResponse(
+                        true,
+                        "Too many songs are being downloaded right now. Try again later!"
+                ));
+            }
+
+            log.info("[{}] Song not found in cache. Downloading! [Job: {}]", url_shortened, job.get().getId());
+            return ResponseEntity.accepted().body(new DownloadJobResponse(
+                    false,
+                    "Song is being downloaded. It will be added to queue once it is ready!",
+                    job.get()
+            ));
         }
 
+        QueueAddResponse response = downloadJobService.addToQueue(entry.get(), request.getUsername(), maxEntriesPerUser);
+
         if (response.isError()) {
-            musicCacheService.cleanupCache();
             return ResponseEntity.status(500).body(response);
         } else {
             return ResponseEntity.ok(response);
         }
     }
 
+    @Operation(summary = "Returns download job status", description = "Returns the status of a download job created by /add. Finished jobs are kept for a limited time.")
+    @ApiResponse(responseCode = "200", description = "Success")
+    @ApiResponse(responseCode = "404", description = "Job does not exist or has expired")
+    @GetMapping("/job/{jobId}")
+    public ResponseEntity<DownloadJobResponse> getJob(@PathVariable String jobId) {
+        return downloadJobService.getJob(jobId)
+                .map(job -> ResponseEntity.ok(new DownloadJobResponse(false, job.getMessage(), job)))
+                .orElseGet(() -> ResponseEntity.status(404).body(new DownloadJobResponse(
+                        true,
+                        String.format("Download job '%s' could not be found!", jobId),
+                        null
+                )));
+    }
+
+    @Operation(summary = "Returns the audio of a queued song", description = "Streams the downloaded file of a queue entry, so overlays can preload the next song announced over the WebSocket. Supports Range requests.")
+    @ApiResponse(responseCode = "200", description = "Success")
+    @ApiResponse(responseCode = "404", description = "Entry is not queued or its file is not on disk")
+    @GetMapping("/audio/{handle}")
+    public ResponseEntity<Resource> getAudio(@PathVariable long handle) {
+        Optional<MusicQueueEntry> entry = musicQueueService.findByHandle(handle);
+        if (entry.isEmpty() || entry.get().getLocalData() == null || entry.get().getLocalData().getFullPath() == null) {
+            return ResponseEntity.notFound().build();
+        }
+
+        Resource resource = new FileSystemResource(entry.get().getLocalData().getFullPath());
+        if (!resource.isReadable()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaTypeFactory.getMediaType(resource).orElse(MediaType.APPLICATION_OCTET_STREAM))
+                .body(resource);
+    }
+
+    @Operation(summary = "Removes a song from queue", description = "Removes every queued entry of the song. Downloads of the song that are still running are cancelled.")
+    @ApiResponse(responseCode = "200", description = "Success")
+    @ApiResponse(responseCode = "400", description = "URL is not a YouTube video URL")
+    @ApiResponse(responseCode = "401", description = "User requesting this does not have the necessary permissions")
+    @ApiResponse(responseCode = "404", description = "Song is neither queued nor being downloaded")
     @PostMapping("/remove")
     public ResponseEntity<BasicResponse> removeFromQueue(@RequestBody MusicQueueRequest request) {
 //        Check if user can request
@@ -131,9 +243,27 @@ public class MusicQueueController {
             return response;
         }
 
+        if (!(YouTubeUrlParser.parse(request.getURL()) instanceof YouTubeUrlParser.Accepted url)) {
+            return ResponseEntity.badRequest().body(new BasicResponse(
+                    true,
+                    "Not a YouTube video URL!"
+            ));
+        }
 
+//        Cancel first, a download finishing in between would add the song right after it was removed
+        int cancelled = downloadJobService.cancelSong(url.videoId(), String.format("Song was removed by %s.", request.getUsername()));
+        int removed = musicQueueService.removeFromQueue(url.videoId());
+        if (cancelled == 0 && removed == 0) {
+            return ResponseEntity.status(404).body(new BasicResponse(true, "Song is not in queue!"));
+        }
 
-        return ResponseEntity.ok(new BasicResponse());
+        log.info("[{}] {} removed the song. Queue entries removed: {}, downloads cancelled: {}",
+                url.videoId(),
+                request.getUsername(),
+                removed,
+                cancelled
+        );
+        return ResponseEntity.ok(new BasicResponse(false, "Removed song from queue!"));
     }
 
     @PostMapping("/remove/last-self")
@@ -144,8 +274,40 @@ public class MusicQueueController {
             return response;
         }
 
-//        TODO: remove last song submitted by user (sort by timestamp)
+        Optional<MusicQueueEntry> removed = musicQueueService.removeLastRequestedBy(request.getUsername());
+        if (removed.isEmpty()) {
+            return ResponseEntity.status(404).body(new BasicResponse(true, "You do not have any songs in queue!"));
+        }
+
+        log.info("[{}] {} removed their last request {} - {}",
+                removed.get().getUrlShortened(),
+                request.getUsername(),
+                removed.get().getArtist(),
+                removed.get().getTitle()
+        );
+        return ResponseEntity.ok(new BasicResponse(
+                false,
+                String.format("Removed %s - %s from queue!", removed.get().getArtist(), removed.get().getTitle())
+        ));
+    }
+
+    @Operation(summary = "Returns queue positions of a user's songs", description = "Returns position and time until playback of every song the user has in queue, oldest request first.")
+    @ApiResponse(responseCode = "200", description = "Success. Empty list if the user has no songs in queue")
+    @GetMapping("/position")
+    public ResponseEntity<QueuePositionResponse> getPositions(@RequestParam String username) {
+        List<QueuePositionResponse.Position> positions = new ArrayList<>();
+        for (MusicQueueEntry entry : musicQueueService.getRequestedBy(username)) {
+            int position = musicQueueService.positionOf(entry.getHandle());
+            Optional<Double> startsIn = musicQueueService.etaOf(entry.getHandle());
+//            Removed in the meantime
+            if (position == -1 || startsIn.isEmpty()) continue;
+            positions.add(new QueuePositionResponse.Position(position, startsIn.get(), entry));
+        }
 
-        return ResponseEntity.ok(new BasicResponse());
+        return ResponseEntity.ok(new QueuePositionResponse(
+                false,
+                positions.isEmpty() ? "You do not have any songs in queue!" : null,
+                positions
+        ));
     }
 }
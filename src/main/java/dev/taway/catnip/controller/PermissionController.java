@@ -4,6 +4,7 @@ import dev.taway.catnip.config.CatnipConfig;
 import dev.taway.catnip.dto.request.permission.BlacklistRequest;
 import dev.taway.catnip.dto.response.BasicResponse;
 import dev.taway.catnip.service.PermissionService;
+import dev.taway.catnip.service.music.cache.DownloadJobService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import org.apache.logging.log4j.LogManager;
@@ -20,15 +21,17 @@ import org.springframework.web.bind.annotation.RestController;
 public class PermissionController {
     private static final Logger log = LogManager.getLogger(PermissionController.class);
     private final PermissionService permissionService;
+    private final DownloadJobService downloadJobService;
     private final CatnipConfig catnipConfig;
 
     @Autowired
-    public PermissionController(PermissionService permissionService, CatnipConfig catnipConfig) {
+    public PermissionController(PermissionService permissionService, DownloadJobService downloadJobService, CatnipConfig catnipConfig) {
         this.permissionService = permissionService;
+        this.downloadJobService = downloadJobService;
         this.catnipConfig = catnipConfig;
     }
 
-    @Operation(summary = "Adds user to blacklist", description = "Blacklisted user will not be able to request media to be played in mediashare. If expiresInDays is provided then the request acts as a timeout otherwise it is a ban.")
+    @Operation(summary = "Adds user to blacklist", description = "Blacklisted user will not be able to request media to be played in mediashare. Their songs that are still downloading are cancelled. If expiresInDays is provided then the request acts as a timeout otherwise it is a ban.")
     @ApiResponse(responseCode = "200", description = "Success")
     @ApiResponse(responseCode = "401", description = "User requesting this does not have the necessary permissions")
     @PostMapping("/blacklist/add")
@@ -40,6 +43,10 @@ public class PermissionController {
         }
 
         String message = permissionService.blacklistUser(request.getBlacklistUsername(), request.getUsername(), request.getExpiresInDays());
+        int cancelled = downloadJobService.cancelRequestedBy(request.getBlacklistUsername(), "Requester was blacklisted.");
+        if (cancelled > 0) {
+            log.info("Cancelled {} downloads of blacklisted user \"{}\"", cancelled, request.getBlacklistUsername());
+        }
 
         return ResponseEntity.ok(new BasicResponse(
                 false,
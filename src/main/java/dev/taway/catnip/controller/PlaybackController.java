@@ -3,8 +3,12 @@ package dev.taway.catnip.controller;
 import dev.taway.catnip.config.CatnipConfig;
 import dev.taway.catnip.dto.request.BasicRequest;
 import dev.taway.catnip.dto.response.BasicResponse;
+import dev.taway.catnip.dto.response.VoteSkipResponse;
 import dev.taway.catnip.service.PermissionService;
 import dev.taway.catnip.service.music.queue.MusicQueueService;
+import dev.taway.catnip.service.music.queue.VoteSkipService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -16,12 +20,14 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/api/song")
 public class PlaybackController {
     private final MusicQueueService musicQueueService;
+    private final VoteSkipService voteSkipService;
     private final PermissionService permissionService;
     private final CatnipConfig catnipConfig;
 
     @Autowired
-    public PlaybackController(MusicQueueService musicQueueService, PermissionService permissionService, CatnipConfig catnipConfig) {
+    public PlaybackController(MusicQueueService musicQueueService, VoteSkipService voteSkipService, PermissionService permissionService, CatnipConfig catnipConfig) {
         this.musicQueueService = musicQueueService;
+        this.voteSkipService = voteSkipService;
         this.permissionService = permissionService;
         this.catnipConfig = catnipConfig;
     }
@@ -61,4 +67,19 @@ public class PlaybackController {
 
         return ResponseEntity.ok(new BasicResponse());
     }
+
+    @Operation(summary = "Votes to skip the current song", description = "Counts one vote per user for the currently playing song. The song is skipped once catnip.voteSkip.threshold users voted.")
+    @ApiResponse(responseCode = "200", description = "Vote counted. 'skipped' is true for the vote that skipped the song")
+    @ApiResponse(responseCode = "401", description = "User requesting this does not have the necessary permissions")
+    @ApiResponse(responseCode = "409", description = "User already voted for this song or nothing is playing")
+    @PostMapping("/voteskip")
+    public ResponseEntity<BasicResponse> voteSkip(@RequestBody BasicRequest request) {
+        ResponseEntity<BasicResponse> r = permissionService.validateUserRequest(request, catnipConfig.getPermission().getMusic().getVoteSkip(), true);
+        if (r.getStatusCode().is4xxClientError()) {
+            return r;
+        }
+
+        VoteSkipResponse response = voteSkipService.vote(request.getUsername());
+        return ResponseEntity.status(response.isError() ? 409 : 200).body(response);
+    }
 }
@@ -0,0 +1,23 @@
+package dev.taway.catnip.data.music;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Indexed file of the backup playlist directory.
+ */
+@Data
+@NoArgsConstructor
+public class BackupPlaylistTrack {
+    private String fullPath;
+    private String filename;
+    private String extension;
+
+    private String title;
+    private String artist;
+    private double duration;
+
+//    Size and modification time of the file when its tags were read. Unchanged files are not read again on rescan.
+    private long size;
+    private long lastModified;
+}
@@ -0,0 +1,51 @@
+package dev.taway.catnip.data.music;
+
+import lombok.Getter;
+
+import java.util.Locale;
+
+/**
+ * Why yt-dlp could not fetch a song. Decides how long the song is refused before it is tried again.
+ */
+@Getter
+public enum DownloadFailureReason {
+    UNAVAILABLE("Video is unavailable.", 6 * 60 * 60),
+    PRIVATE("Video is private.", 6 * 60 * 60),
+    REGION_LOCKED("Video is not available in this country.", 6 * 60 * 60),
+    LIVE_STREAM("Live streams can not be requested.", 30 * 60),
+    RATE_LIMITED("YouTube is limiting downloads right now.", 2 * 60),
+    NETWORK("Could not reach YouTube.", 30),
+    UNKNOWN("Download failed.", 60);
+
+    final String message;
+//    Backoff after the first failure, doubled with every further failure
+    final int baseBackoffSeconds;
+
+    DownloadFailureReason(String message, int baseBackoffSeconds) {
+        this.message = message;
+        this.baseBackoffSeconds = baseBackoffSeconds;
+    }
+
+    /**
+     * Classifies a failure by the error messages yt-dlp printed.
+     *
+     * @param lines yt-dlp output, usually STDERR
+     * @return Most specific reason found, {@link #UNKNOWN} if none matched
+     */
+    public static DownloadFailureReason classify(Iterable<String> lines) {
+        for (String line : lines) {
+            String lower = line.toLowerCase(Locale.ROOT);
+            if (!lower.contains("error")) continue;
+
+            if (lower.contains("private video") || lower.contains("video is private")) return PRIVATE;
+            if (lower.contains("not available in your country") || lower.contains("geo restrict") || lower.contains("blocked it in your country")) return REGION_LOCKED;
+            if (lower.contains("live event") || lower.contains("is live") || lower.contains("premieres in")) return LIVE_STREAM;
+            if (lower.contains("http error 429") || lower.contains("too many requests")) return RATE_LIMITED;
+            if (lower.contains("video unavailable") || lower.contains("has been removed") || lower.contains("account associated with this video has been terminated")
+                    || lower.contains("does not exist") || lower.contains("incomplete youtube id")) return UNAVAILABLE;
+            if (lower.contains("unable to download webpage") || lower.contains("timed out") || lower.contains("connection")
+                    || lower.contains("temporary failure in name resolution") || lower.contains("http error 5")) return NETWORK;
+        }
+        return UNKNOWN;
+    }
+}
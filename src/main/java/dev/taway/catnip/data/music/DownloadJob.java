@@ -0,0 +1,35 @@
+package dev.taway.catnip.data.music;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Background download of a song requested through the API. Jobs are created by the request thread and updated by a
+ * download worker, fields are volatile so status reads never see a half-updated job.
+ */
+@Data
+@NoArgsConstructor
+public class DownloadJob {
+    private String id;
+    private String url;
+    private String urlShortened;
+    private String requestedBy;
+//    Songs the requester may have queued at once when the download finishes. 0 means no limit.
+    private int maxEntriesPerUser;
+
+    private volatile DownloadJobStatus status = DownloadJobStatus.QUEUED;
+    private volatile String message;
+
+    private long createdTimestamp;
+    private volatile long startedTimestamp;
+    private volatile long finishedTimestamp;
+
+    public DownloadJob(String id, String url, String urlShortened, String requestedBy) {
+        this.id = id;
+        this.url = url;
+        this.urlShortened = urlShortened;
+        this.requestedBy = requestedBy;
+        this.message = DownloadJobStatus.QUEUED.getMessage();
+        this.createdTimestamp = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,26 @@
+package dev.taway.catnip.data.music;
+
+import lombok.Getter;
+
+@Getter
+public enum DownloadJobStatus {
+    QUEUED("Waiting for a free download worker."),
+    RUNNING("Downloading."),
+    COMPLETED("Added to queue."),
+    REJECTED("Not added to queue."),
+    FAILED("Download failed."),
+    CANCELLED("Download cancelled.");
+
+    final String message;
+
+    DownloadJobStatus(String message) {
+        this.message = message;
+    }
+
+    /**
+     * @return True if the job will not change status anymore.
+     */
+    public boolean isFinished() {
+        return this == COMPLETED || this == REJECTED || this == FAILED || this == CANCELLED;
+    }
+}
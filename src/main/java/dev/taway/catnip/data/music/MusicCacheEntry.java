@@ -9,7 +9,7 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 public class MusicCacheEntry {
     private String url;
-//    Will be sorted by url shortened for faster look-up
+//    Video ID. Cache is indexed by it packed into a long, see VideoId.
     private String urlShortened;
 
     private String title;
@@ -55,6 +55,10 @@ public class MusicCacheEntry {
         private long downloadedTimestamp;
         //        For deleting un-played songs.
         private long lastPlayedTimestamp;
+//        Times playback of this song was started. Feeds cache eviction together with lastPlayedTimestamp.
+        private int playCount;
+//        File size in bytes, counted towards the cache size budget
+        private long size;
 
         @JsonCreator
         public LocalData(
@@ -1,6 +1,7 @@
 package dev.taway.catnip.data.music;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -8,9 +9,22 @@ import lombok.NoArgsConstructor;
 @Data
 @NoArgsConstructor
 public class MusicQueueEntry extends MusicCacheEntry {
+//    Assigned by MusicQueueManager when the entry is added. Stays the same while the entry is moved around the queue.
+    private long handle;
+//    Play time at the moment the playback clock was last started or stopped. Use getPlayTime() for the live value.
     private double playTime = 0;
-    private boolean paused = false;
+    private volatile boolean paused = false;
     private boolean fromBackupPlaylist = false;
+//    Username of the requester. Null for backup playlist songs.
+    private String requestedBy;
+//    Epoch millis of when the entry was queued
+    private long requestedTimestamp;
+
+//    Monotonic System.nanoTime() of when the playback clock was last started. Only meaningful while the clock runs.
+    @JsonIgnore
+    private long clockStartedNanos;
+    @JsonIgnore
+    private boolean clockRunning = false;
 
     public MusicQueueEntry(
             MusicCacheEntry entry,
@@ -68,12 +82,56 @@ public class MusicQueueEntry extends MusicCacheEntry {
     ) {
         super(url, urlShortened, title, artist, duration, blocked, blockReason, localData);
         this.playTime = playTime;
+        this.paused = paused;
+        this.fromBackupPlaylist = fromBackupPlaylist;
+    }
+
+    /**
+     * @return Current play position in seconds. While the playback clock runs this is derived from the monotonic
+     * start timestamp, nothing has to update the entry every tick.
+     */
+    public synchronized double getPlayTime() {
+        if (!clockRunning) return playTime;
+
+        double position = playTime + (System.nanoTime() - clockStartedNanos) / 1_000_000_000.0;
+        return getDuration() > 0 ? Math.min(position, getDuration()) : position;
+    }
+
+    public synchronized void setPlayTime(double playTime) {
+        this.playTime = playTime;
+        if (clockRunning) clockStartedNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts advancing play time. Does nothing if the clock already runs.
+     *
+     * @param nowNanos Current System.nanoTime()
+     */
+    public synchronized void startClock(long nowNanos) {
+        if (clockRunning) return;
+        clockStartedNanos = nowNanos;
+        clockRunning = true;
+    }
+
+    /**
+     * Stops advancing play time and stores the reached position. Does nothing if the clock is not running.
+     *
+     * @param nowNanos Current System.nanoTime()
+     */
+    public synchronized void stopClock(long nowNanos) {
+        if (!clockRunning) return;
+        double position = playTime + (nowNanos - clockStartedNanos) / 1_000_000_000.0;
+        playTime = getDuration() > 0 ? Math.min(position, getDuration()) : position;
+        clockRunning = false;
     }
 
     @Override
     public String toString() {
         return "MusicQueueEntry{" +
-                "playTime=" + playTime +
+                "handle=" + handle +
+                ", urlShortened=" + getUrlShortened() +
+                ", requestedBy=" + requestedBy +
+                ", playTime=" + getPlayTime() +
                 '}';
     }
 }
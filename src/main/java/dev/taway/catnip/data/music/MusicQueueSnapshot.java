@@ -0,0 +1,20 @@
+package dev.taway.catnip.data.music;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Full queue state as of an operation sequence. Journaled operations with a higher sequence are replayed on top of it.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MusicQueueSnapshot {
+    private long sequence;
+    private long nextHandle;
+    private List<MusicQueueEntry> entries = new ArrayList<>();
+}
@@ -0,0 +1,66 @@
+package dev.taway.catnip.data.music;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Single mutation of the music queue. Operations are numbered by a sequence that increases by one with every change,
+ * so replaying them in order on top of a snapshot with a lower sequence restores the queue.
+ */
+@Data
+@NoArgsConstructor
+public class QueueOperation {
+    private long sequence;
+    private QueueOperationType type;
+    private long timestamp;
+
+//    Handle of the affected entry. 0 for CLEAR.
+    private long handle;
+//    Target position for ADD and MOVE
+    private int position;
+//    Added entry for ADD
+    private MusicQueueEntry entry;
+//    Play position at the moment of PAUSE or PLAY
+    private double playTime;
+//    New file for LOCAL_DATA
+    private MusicCacheEntry.LocalData localData;
+
+    private QueueOperation(QueueOperationType type, long handle) {
+        this.type = type;
+        this.handle = handle;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public static QueueOperation add(int position, MusicQueueEntry entry) {
+        QueueOperation operation = new QueueOperation(QueueOperationType.ADD, entry.getHandle());
+        operation.position = position;
+        operation.entry = entry;
+        return operation;
+    }
+
+    public static QueueOperation remove(long handle) {
+        return new QueueOperation(QueueOperationType.REMOVE, handle);
+    }
+
+    public static QueueOperation move(long handle, int position) {
+        QueueOperation operation = new QueueOperation(QueueOperationType.MOVE, handle);
+        operation.position = position;
+        return operation;
+    }
+
+    public static QueueOperation paused(long handle, boolean paused, double playTime) {
+        QueueOperation operation = new QueueOperation(paused ? QueueOperationType.PAUSE : QueueOperationType.PLAY, handle);
+        operation.playTime = playTime;
+        return operation;
+    }
+
+    public static QueueOperation localData(long handle, MusicCacheEntry.LocalData localData) {
+        QueueOperation operation = new QueueOperation(QueueOperationType.LOCAL_DATA, handle);
+        operation.localData = localData;
+        return operation;
+    }
+
+    public static QueueOperation clear() {
+        return new QueueOperation(QueueOperationType.CLEAR, 0);
+    }
+}
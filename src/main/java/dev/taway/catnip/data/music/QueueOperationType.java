@@ -0,0 +1,26 @@
+package dev.taway.catnip.data.music;
+
+public enum QueueOperationType {
+    /**
+     * Entry inserted at a position.
+     */
+    ADD,
+    /**
+     * Entry removed. Skips and finished tracks are removals of the first entry.
+     */
+    REMOVE,
+    /**
+     * Entry moved to a new position.
+     */
+    MOVE,
+    PAUSE,
+    PLAY,
+    /**
+     * Whole queue removed.
+     */
+    CLEAR,
+    /**
+     * Downloaded file of an entry replaced, e.g. after it went missing and was downloaded again.
+     */
+    LOCAL_DATA
+}
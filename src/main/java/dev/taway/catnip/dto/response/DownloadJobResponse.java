@@ -0,0 +1,16 @@
+package dev.taway.catnip.dto.response;
+
+import dev.taway.catnip.data.music.DownloadJob;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class DownloadJobResponse extends BasicResponse {
+    private DownloadJob job;
+
+    public DownloadJobResponse(boolean error, String message, DownloadJob job) {
+        super(error, message);
+        this.job = job;
+    }
+}
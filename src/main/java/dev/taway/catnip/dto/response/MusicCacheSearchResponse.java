@@ -0,0 +1,19 @@
+package dev.taway.catnip.dto.response;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+public class MusicCacheSearchResponse extends BasicResponse {
+//    Best match first
+    private List<MusicCacheEntry> results;
+
+    public MusicCacheSearchResponse(boolean error, String message, List<MusicCacheEntry> results) {
+        super(error, message);
+        this.results = results;
+    }
+}
@@ -0,0 +1,22 @@
+package dev.taway.catnip.dto.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class MusicCacheStatsResponse {
+    private int entries;
+    private int downloadsInFlight;
+//    Downloads that spawned yt-dlp
+    private long downloadsStarted;
+//    Requests that attached to an already running download of the same song
+    private long downloadsDeduplicated;
+    private long diskUsageBytes;
+//    0 if there is no limit
+    private long diskBudgetBytes;
+//    Songs deleted to stay within the budget since startup
+    private long evicted;
+}
@@ -0,0 +1,27 @@
+package dev.taway.catnip.dto.response;
+
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.data.music.QueueOperation;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Queue state at a version. Either the whole queue ({@code entries}) or the operations since the version the client
+ * asked for ({@code operations}), never both.
+ */
+@Data
+@NoArgsConstructor
+public class MusicQueueResponse extends BasicResponse {
+    private long version;
+    private List<MusicQueueEntry> entries;
+    private List<QueueOperation> operations;
+
+    public MusicQueueResponse(long version, List<MusicQueueEntry> entries, List<QueueOperation> operations) {
+        super(false, null);
+        this.version = version;
+        this.entries = entries;
+        this.operations = operations;
+    }
+}
@@ -0,0 +1,17 @@
+package dev.taway.catnip.dto.response;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class QueueAddResponse extends BasicResponse {
+//    False if the song was not added (blocked, requester limit reached or error)
+    private boolean queued;
+//    Zero-based queue position of the added song. -1 if not queued.
+    private int position = -1;
+
+    public QueueAddResponse(boolean error, String message) {
+        super(error, message);
+    }
+}
@@ -0,0 +1,30 @@
+package dev.taway.catnip.dto.response;
+
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+public class QueuePositionResponse extends BasicResponse {
+//    Songs of the user, oldest request first
+    private List<Position> positions;
+
+    public QueuePositionResponse(boolean error, String message, List<Position> positions) {
+        super(error, message);
+        this.positions = positions;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Position {
+        private int position;
+//        Seconds until the song starts playing
+        private double startsIn;
+        private MusicQueueEntry entry;
+    }
+}
@@ -0,0 +1,20 @@
+package dev.taway.catnip.dto.response;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class VoteSkipResponse extends BasicResponse {
+    private long votes;
+    private int threshold;
+//    True for the vote that reached the threshold and skipped the song
+    private boolean skipped;
+
+    public VoteSkipResponse(boolean error, String message, long votes, int threshold, boolean skipped) {
+        super(error, message);
+        this.votes = votes;
+        this.threshold = threshold;
+        this.skipped = skipped;
+    }
+}
@@ -0,0 +1,19 @@
+package dev.taway.catnip.dto.websocket;
+
+import dev.taway.catnip.data.music.DownloadJob;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Sent over the playback status WebSocket when a download job finishes.
+ */
+@Data
+@NoArgsConstructor
+public class DownloadJobMessage {
+    private final String type = "download-job";
+    private DownloadJob job;
+
+    public DownloadJobMessage(DownloadJob job) {
+        this.job = job;
+    }
+}
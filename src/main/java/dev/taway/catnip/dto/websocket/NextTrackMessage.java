@@ -0,0 +1,30 @@
+package dev.taway.catnip.dto.websocket;
+
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Sent over the playback status WebSocket when the entry after the currently playing one changes or its file becomes
+ * ready. Overlays can fetch {@code audioUrl} ahead of time and switch over without a gap.
+ */
+@Data
+@NoArgsConstructor
+public class NextTrackMessage {
+    private final String type = "next-track";
+//    Null if nothing is queued after the current entry
+    private MusicQueueEntry entry;
+//    Seconds until the entry starts. -1 if there is no next entry.
+    private double startsIn;
+//    True once the file is on disk
+    private boolean ready;
+//    Where the audio can be fetched from. Null until the entry is ready.
+    private String audioUrl;
+
+    public NextTrackMessage(MusicQueueEntry entry, double startsIn, boolean ready, String audioUrl) {
+        this.entry = entry;
+        this.startsIn = startsIn;
+        this.ready = ready;
+        this.audioUrl = audioUrl;
+    }
+}
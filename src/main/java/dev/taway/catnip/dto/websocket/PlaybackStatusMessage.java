@@ -0,0 +1,34 @@
+package dev.taway.catnip.dto.websocket;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Playback status sent over the playback status WebSocket. Entry fields are written at the top level so clients
+ * reading the currently playing entry directly keep working.
+ */
+@Data
+@NoArgsConstructor
+public class PlaybackStatusMessage {
+    private final String type = "status";
+    @JsonUnwrapped
+    private MusicQueueEntry entry;
+
+    private int queueLength;
+//    Seconds until the queue runs out of requested songs
+    private double queueEmptyIn;
+//    Seconds until the next entry starts. -1 if there is no next entry.
+    private double nextStartsIn;
+//    Queue version at the time of the message. Clients holding an older copy of the queue can fetch the changes.
+    private long queueVersion;
+
+    public PlaybackStatusMessage(MusicQueueEntry entry, int queueLength, double queueEmptyIn, double nextStartsIn, long queueVersion) {
+        this.entry = entry;
+        this.queueLength = queueLength;
+        this.queueEmptyIn = queueEmptyIn;
+        this.nextStartsIn = nextStartsIn;
+        this.queueVersion = queueVersion;
+    }
+}
@@ -2,16 +2,19 @@ package dev.taway.catnip.service;
 
 import dev.taway.catnip.data.DeathCountEntry;
 import dev.taway.catnip.dto.request.death.DeathCounterRequest;
-import dev.taway.catnip.util.CacheDataHandler;
+import dev.taway.catnip.service.file.PersistenceService;
+import dev.taway.catnip.util.PersistentStore;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import lombok.Getter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @Service
 @Getter
@@ -19,12 +22,18 @@ public class DeathCounterService {
     private static final Logger log = LogManager.getLogger(DeathCounterService.class);
     private static final String PATH = "/cache/death-counter.json";
 
-    ArrayList<DeathCountEntry> deathCounter = new ArrayList<>();
+//    Read by the persistence thread while requests change it
+    List<DeathCountEntry> deathCounter = new CopyOnWriteArrayList<>();
+    private final PersistentStore<DeathCountEntry> store;
+
+    @Autowired
+    public DeathCounterService(PersistenceService persistence) {
+        this.store = persistence.register(new PersistentStore<>(DeathCountEntry.class, PATH, () -> deathCounter));
+    }
 
     @PostConstruct
     private void init() {
-        CacheDataHandler<DeathCountEntry> cacheDataHandler = new CacheDataHandler<>(DeathCountEntry.class);
-        deathCounter = cacheDataHandler.load(PATH);
+        deathCounter = new CopyOnWriteArrayList<>(store.load());
     }
 
     private void validateEntryExistence(String gameName) {
@@ -57,7 +66,7 @@ public class DeathCounterService {
      * @param request Request
      * @param change  Change to the death counter. Will add or subtract this amount.
      */
-    public int changeEntryValue(DeathCounterRequest request, int change) {
+    public synchronized int changeEntryValue(DeathCounterRequest request, int change) {
         String gameName = request.getGameName();
         validateEntryExistence(gameName);
 
@@ -65,6 +74,7 @@ public class DeathCounterService {
             if (deathCountEntry.getGameName().equals(gameName)) {
                 deathCountEntry.setDeaths(deathCountEntry.getDeaths() + change);
                 log.trace("Death counter: {}, Current: {}, Change: {}", deathCountEntry.getGameName(), deathCountEntry.getDeaths(), change);
+                store.markDirty();
                 return deathCountEntry.getDeaths();
             }
         }
@@ -76,7 +86,6 @@ public class DeathCounterService {
 
     @PreDestroy
     private void destroy() {
-        CacheDataHandler<DeathCountEntry> cacheDataHandler = new CacheDataHandler<>(DeathCountEntry.class);
-        cacheDataHandler.save(PATH, deathCounter);
+        store.flush();
     }
 }
@@ -4,27 +4,36 @@ import dev.taway.catnip.config.PermissionLevel;
 import dev.taway.catnip.data.UserBlacklistEntry;
 import dev.taway.catnip.dto.request.BasicRequest;
 import dev.taway.catnip.dto.response.BasicResponse;
-import dev.taway.catnip.util.CacheDataHandler;
+import dev.taway.catnip.service.file.PersistenceService;
+import dev.taway.catnip.util.PersistentStore;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 @Service
 public class PermissionService {
     private static final Logger log = LogManager.getLogger(PermissionService.class);
     private static final String PATH = "/cache/user-blacklist.json";
-    ArrayList<UserBlacklistEntry> userBlacklist = new ArrayList<>();
+//    Checked on every request, changed rarely
+    List<UserBlacklistEntry> userBlacklist = new CopyOnWriteArrayList<>();
+    private final PersistentStore<UserBlacklistEntry> store;
+
+    @Autowired
+    public PermissionService(PersistenceService persistence) {
+        this.store = persistence.register(new PersistentStore<>(UserBlacklistEntry.class, PATH, () -> userBlacklist));
+    }
 
     @PostConstruct
     private void init() {
-        CacheDataHandler<UserBlacklistEntry> cacheDataHandler = new CacheDataHandler<>(UserBlacklistEntry.class);
-        userBlacklist = cacheDataHandler.load(PATH);
+        userBlacklist = new CopyOnWriteArrayList<>(store.load());
     }
 
     /**
@@ -46,7 +55,7 @@ public class PermissionService {
      * @param username username to be blacklisted
      * @return Message
      */
-    public String blacklistUser(String username, String bannedBy, int expiresInDays) {
+    public synchronized String blacklistUser(String username, String bannedBy, int expiresInDays) {
         if (isBlacklisted(username)) {
             return String.format("User %s is already blacklisted!", username);
         }
@@ -62,6 +71,7 @@ public class PermissionService {
         );
 
         userBlacklist.add(userBlacklistEntry);
+        store.markDirty();
 
         log.info("Successfully blacklisted user \"{}\" [Banned by: {}, Expires in: {}]",
                 username,
@@ -79,7 +89,7 @@ public class PermissionService {
      * @param username Username to be removed from blacklist
      * @return Message
      */
-    public String unblacklistUser(String username) {
+    public synchronized String unblacklistUser(String username) {
         UserBlacklistEntry entry = null;
 
         for (UserBlacklistEntry userBlacklistEntry : userBlacklist) {
@@ -91,6 +101,7 @@ public class PermissionService {
 
         if (entry != null) {
             userBlacklist.remove(entry);
+            store.markDirty();
 
             log.info("Successfully removed user \"{}\" from blacklist!",
                     username
@@ -173,7 +184,6 @@ public class PermissionService {
 
     @PreDestroy
     private void destroy() {
-        CacheDataHandler<UserBlacklistEntry> cacheDataHandler = new CacheDataHandler<>(UserBlacklistEntry.class);
-        cacheDataHandler.save(PATH, userBlacklist);
+        store.flush();
     }
 }
@@ -0,0 +1,165 @@
+package dev.taway.catnip.service.file;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Watches directories for file changes. All directories share one {@link WatchService} and one thread, so watching
+ * more directories does not cost more threads.
+ * <br>
+ * Listeners are called on the watch thread. They have to return quickly and hand anything slow to another thread.
+ */
+@Service
+public class DirectoryWatchService {
+    private static final Logger log = LogManager.getLogger(DirectoryWatchService.class);
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Map<Path, List<Consumer<DirectoryChange>>> listeners = new ConcurrentHashMap<>();
+
+    private WatchService watchService;
+
+    /**
+     * Kind of change reported for a directory.
+     */
+    public enum ChangeType {
+        CREATED,
+        MODIFIED,
+        DELETED,
+        /**
+         * Too many changes at once, some were dropped. Listeners should rescan the whole directory.
+         */
+        OVERFLOW
+    }
+
+    /**
+     * @param directory Watched directory
+     * @param file      Changed file. Same as directory for {@link ChangeType#OVERFLOW}.
+     * @param type      Kind of change
+     */
+    public record DirectoryChange(Path directory, Path file, ChangeType type) {
+    }
+
+    /**
+     * Starts reporting changes of files directly inside the directory (not recursive).
+     *
+     * @param directory Directory to watch
+     * @param listener  Called for every change
+     * @throws IOException If the directory can not be watched
+     */
+    public synchronized void watch(Path directory, Consumer<DirectoryChange> listener) throws IOException {
+        Path dir = directory.toAbsolutePath().normalize();
+        start();
+
+        if (!listeners.containsKey(dir)) {
+            WatchKey key = dir.register(
+                    watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE
+            );
+            directories.put(key, dir);
+            log.debug("Watching directory: {}", dir);
+        }
+        listeners.computeIfAbsent(dir, k -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * Stops calling the listener. The directory stays registered while it has other listeners.
+     *
+     * @param directory Watched directory
+     * @param listener  Listener passed to {@link #watch(Path, Consumer)}
+     */
+    public synchronized void unwatch(Path directory, Consumer<DirectoryChange> listener) {
+        Path dir = directory.toAbsolutePath().normalize();
+        List<Consumer<DirectoryChange>> dirListeners = listeners.get(dir);
+        if (dirListeners == null) return;
+
+        dirListeners.remove(listener);
+        if (dirListeners.isEmpty()) {
+            listeners.remove(dir);
+            directories.entrySet().removeIf(entry -> {
+                if (!entry.getValue().equals(dir)) return false;
+                entry.getKey().cancel();
+                return true;
+            });
+            log.debug("Stopped watching directory: {}", dir);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        if (watchService == null) return;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.error("Error while closing directory watch service! {}", e.getMessage());
+        }
+    }
+
+    private void start() throws IOException {
+        if (watchService != null) return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        Thread.ofPlatform().name("catnip-directory-watch").daemon(true).start(this::run);
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = directories.get(key);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (dir == null) continue;
+                    dispatch(dir, event);
+                }
+
+                if (!key.reset()) {
+                    log.warn("Directory {} is no longer accessible. Watch stopped.", dir);
+                    directories.remove(key);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException ignored) {
+//            Shutting down
+        }
+    }
+
+    private void dispatch(Path dir, WatchEvent<?> event) {
+        DirectoryChange change;
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            change = new DirectoryChange(dir, dir, ChangeType.OVERFLOW);
+        } else {
+            Path file = dir.resolve((Path) event.context());
+            ChangeType type = event.kind() == StandardWatchEventKinds.ENTRY_CREATE ? ChangeType.CREATED
+                    : event.kind() == StandardWatchEventKinds.ENTRY_DELETE ? ChangeType.DELETED
+                    : ChangeType.MODIFIED;
+            change = new DirectoryChange(dir, file, type);
+        }
+        log.trace("Directory change: {} {}", change.type(), change.file());
+
+        for (Consumer<DirectoryChange> listener : listeners.getOrDefault(dir, List.of())) {
+            try {
+                listener.accept(change);
+            } catch (RuntimeException e) {
+                log.error("Directory listener failed on {}", change.file(), e);
+            }
+        }
+    }
+}
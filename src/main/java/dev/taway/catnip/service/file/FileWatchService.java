@@ -2,65 +2,180 @@ package dev.taway.catnip.service.file;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
-import java.nio.file.*;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Waits for files to appear and finish being written. Every directory is watched once through
+ * {@link DirectoryWatchService} and stays watched, any number of waits share that watch. Timers run on the shared
+ * scheduler, so waiting for more files costs neither threads nor watch handles.
+ * <br>
+ * A file counts as done once it exists, is not empty and its size did not change for {@value #STABLE_MILLIS} ms.
+ */
 @Service
 public class FileWatchService {
-
     private static final Logger log = LogManager.getLogger(FileWatchService.class);
+    private static final long STABLE_MILLIS = 500;
+    private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(2);
+
+    private final DirectoryWatchService directoryWatch;
+    private final ScheduledExecutorService scheduler;
+    private final Set<Path> watchedDirectories = ConcurrentHashMap.newKeySet();
+//    Keyed by normalized absolute file path
+    private final Map<Path, List<PendingFile>> pending = new ConcurrentHashMap<>();
 
+    @Autowired
+    public FileWatchService(DirectoryWatchService directoryWatch, ScheduledExecutorService scheduler) {
+        this.directoryWatch = directoryWatch;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Waits for the file with the default timeout of 2 minutes.
+     *
+     * @param filePath Path of the file
+     * @return Future completed once the file is written
+     * @see #waitForFile(Path, Duration)
+     */
     public CompletableFuture<Void> waitForFile(String filePath) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
-        File file = new File(filePath);
-
-//        Check if the file already exists
-        if (file.exists()) {
-            log.debug("file already exists at path: {}", filePath);
-            future.complete(null);
-            return future;
+        return waitForFile(Path.of(filePath), DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Waits until the file exists and its size settled. Cancelling the returned future stops the wait.
+     *
+     * @param filePath Path of the file
+     * @param timeout  Time after which the future fails with a {@link TimeoutException}
+     * @return Future completed once the file is written
+     */
+    public CompletableFuture<Void> waitForFile(Path filePath, Duration timeout) {
+        Path file = filePath.toAbsolutePath().normalize();
+        PendingFile wait = new PendingFile(file);
+
+        try {
+//            Watch before the first check, a file created in between would be missed otherwise
+            watchDirectory(file.getParent());
+        } catch (IOException e) {
+            log.error("Could not watch directory of {}! {}", file, e.getMessage());
+            wait.future.completeExceptionally(e);
+            return wait.future;
         }
 
-        log.debug("Starting file watch service for path: {}", filePath);
-
-//        Start watching the directory in a background thread
-        Executors.newSingleThreadExecutor().submit(() -> {
-            try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
-                Path dir = file.getParentFile().toPath();
-                dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
-
-                log.debug("Watching directory: {} for file creation", dir);
-
-                while (!future.isDone()) {
-                    WatchKey key = watchService.take();
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
-                            Path createdFile = dir.resolve((Path) event.context());
-                            log.trace("Detected new file: {}", createdFile);
-
-                            if (createdFile.endsWith(file.getName())) {
-                                log.info("Target file detected: {}", createdFile);
-                                future.complete(null);
-                                return;
-                            }
-                        }
-                    }
-                    if (!key.reset()) {
-                        log.warn("Watch key invalid, terminating watch service");
-                        break;
-                    }
-                }
-            } catch (Exception e) {
-                log.error("Error occurred while watching for file", e);
-                future.completeExceptionally(e);
-            }
+        pending.compute(file, (key, waits) -> {
+            if (waits == null) waits = new CopyOnWriteArrayList<>();
+            waits.add(wait);
+            return waits;
+        });
+        ScheduledFuture<?> deadline = scheduler.schedule(
+                () -> wait.future.completeExceptionally(new TimeoutException("File was not written within " + timeout.toSeconds() + "s: " + file)),
+                timeout.toMillis(),
+                TimeUnit.MILLISECONDS
+        );
+//        Runs on completion, timeout and cancellation alike
+        wait.future.whenComplete((result, error) -> {
+            deadline.cancel(false);
+            wait.cancelCheck();
+            pending.computeIfPresent(file, (key, waits) -> {
+                waits.remove(wait);
+                return waits.isEmpty() ? null : waits;
+            });
         });
 
-        log.debug("file watch service initialized for path: {}", filePath);
-        return future;
+        log.debug("Waiting for file: {}", file);
+        scheduler.execute(() -> check(wait, false));
+        return wait.future;
+    }
+
+    /**
+     * @return Number of files currently waited for
+     */
+    public int getPendingCount() {
+        return pending.values().stream().mapToInt(List::size).sum();
+    }
+
+    private void watchDirectory(Path directory) throws IOException {
+        if (watchedDirectories.contains(directory)) return;
+        synchronized (watchedDirectories) {
+            if (watchedDirectories.contains(directory)) return;
+            directoryWatch.watch(directory, this::onDirectoryChange);
+            watchedDirectories.add(directory);
+        }
+    }
+
+    private void onDirectoryChange(DirectoryWatchService.DirectoryChange change) {
+        if (change.type() == DirectoryWatchService.ChangeType.OVERFLOW) {
+            pending.forEach((file, waits) -> {
+                if (file.getParent().equals(change.directory())) waits.forEach(wait -> scheduler.execute(() -> check(wait, false)));
+            });
+            return;
+        }
+
+        List<PendingFile> waits = pending.get(change.file());
+        if (waits == null) return;
+        for (PendingFile wait : waits) {
+            scheduler.execute(() -> check(wait, false));
+        }
+    }
+
+//    Runs on the scheduler. A change restarts the timer, the wait completes once the timer finds the size unchanged.
+    private void check(PendingFile wait, boolean timer) {
+        synchronized (wait) {
+            if (wait.future.isDone()) return;
+            wait.cancelCheck();
+
+            long size;
+            try {
+                size = Files.size(wait.file);
+            } catch (NoSuchFileException e) {
+//                Not there yet, the create event triggers the next check
+                wait.lastSize = -1;
+                return;
+            } catch (IOException e) {
+                size = -1;
+            }
+
+            if (timer && size > 0 && size == wait.lastSize) {
+                log.debug("File is ready: {}", wait.file);
+                wait.future.complete(null);
+                return;
+            }
+
+            wait.lastSize = size;
+            wait.nextCheck = scheduler.schedule(() -> check(wait, true), STABLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static final class PendingFile {
+        private final Path file;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private long lastSize = -1;
+        private ScheduledFuture<?> nextCheck;
+
+        private PendingFile(Path file) {
+            this.file = file;
+        }
+
+        private synchronized void cancelCheck() {
+            if (nextCheck != null) {
+                nextCheck.cancel(false);
+                nextCheck = null;
+            }
+        }
     }
-}
\ No newline at end of file
+}
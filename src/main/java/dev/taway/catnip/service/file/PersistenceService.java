@@ -0,0 +1,79 @@
+package dev.taway.catnip.service.file;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.util.BackgroundFlushable;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes every registered {@link BackgroundFlushable} store on one dedicated I/O thread. Dirty stores are written
+ * every {@code catnip.persistence.flushIntervalMillis}, so a crash loses at most one interval of changes.
+ * <br>
+ * Owners of a store are destroyed before this service, so whatever they change during their own shutdown is still
+ * written by the final flush.
+ */
+@Service
+public class PersistenceService {
+    private static final Logger log = LogManager.getLogger(PersistenceService.class);
+    private final CatnipConfig config;
+    private final List<BackgroundFlushable> stores = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("catnip-persistence").daemon(true).factory()
+    );
+
+    @Autowired
+    public PersistenceService(CatnipConfig config) {
+        this.config = config;
+    }
+
+    @PostConstruct
+    public void init() {
+        long interval = Math.max(1, config.getPersistence().getFlushIntervalMillis());
+        executor.scheduleWithFixedDelay(this::flushAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts flushing the store in the background.
+     *
+     * @param store Store to flush
+     * @return The same store
+     */
+    public <S extends BackgroundFlushable> S register(S store) {
+        stores.add(store);
+        return store;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Persistence thread did not stop in time");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    private void flushAll() {
+        for (BackgroundFlushable store : stores) {
+            try {
+                store.flushIfDirty();
+            } catch (RuntimeException e) {
+                log.error("Failed to flush \"{}\"", store.getPath(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package dev.taway.catnip.service.music.backup;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.BackupPlaylistTrack;
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.service.file.DirectoryWatchService;
+import dev.taway.catnip.service.file.PersistenceService;
+import dev.taway.catnip.service.music.util.AudioTagReader;
+import dev.taway.catnip.util.PersistentStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Indexes "/cache/music/backup-playlist/" and hands out its songs in shuffled order when nobody requested anything.
+ * <br>
+ * Title, artist and duration are read from the file tags on a small thread pool, no yt-dlp is involved. The index is
+ * saved to {@code /cache/backup-playlist-index.json} so unchanged files are not read again after a restart, and it is
+ * kept current by watching the directory.
+ */
+@Service
+public class BackupPlaylistService {
+    private static final Logger log = LogManager.getLogger(BackupPlaylistService.class);
+    private static final String DIRECTORY = "/cache/music/backup-playlist/";
+    private static final String INDEX_PATH = "/cache/backup-playlist-index.json";
+    private static final Set<String> EXTENSIONS = Set.of("mp3", "m4a", "mp4", "aac");
+//    Copying a file in fires a burst of modify events. The file is read once it has been quiet for this long.
+    private static final long SETTLE_MILLIS = 2000;
+
+    private final CatnipConfig config;
+    private final DirectoryWatchService directoryWatch;
+    private final ScheduledExecutorService scheduler;
+//    Reads tags for the initial scan and every change after it. The shared scheduler only times the settle delay.
+//    One thread, so a rescan and single file updates never run at the same time.
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(
+            runnable -> Thread.ofPlatform().name("catnip-backup-indexer").daemon(true).unstarted(runnable));
+    private final PersistentStore<BackupPlaylistTrack> indexStore;
+//    Keyed by full path
+    private final Map<String, BackupPlaylistTrack> tracks = new ConcurrentHashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pendingChanges = new ConcurrentHashMap<>();
+    private final List<Runnable> indexListeners = new CopyOnWriteArrayList<>();
+
+//    Remaining songs of the current shuffle round. Every song plays once per round.
+    private final ArrayDeque<String> shuffleBag = new ArrayDeque<>();
+    private String lastPicked;
+
+    @Autowired
+    public BackupPlaylistService(CatnipConfig config, DirectoryWatchService directoryWatch, ScheduledExecutorService scheduler, PersistenceService persistence) {
+        this.config = config;
+        this.directoryWatch = directoryWatch;
+        this.scheduler = scheduler;
+        this.indexStore = persistence.register(new PersistentStore<>(BackupPlaylistTrack.class, INDEX_PATH, () -> new ArrayList<>(tracks.values())));
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!config.getBackupPlaylist().isEnabled()) return;
+
+//        Last known index is usable right away, the scan only catches up with changes made while stopped
+        for (BackupPlaylistTrack track : indexStore.load()) {
+            tracks.put(track.getFullPath(), track);
+        }
+
+        Path directory = directory();
+        try {
+            directoryWatch.watch(directory, this::onDirectoryChange);
+        } catch (IOException e) {
+            log.error("Could not watch backup playlist directory \"{}\"! New songs are only picked up on restart. {}", DIRECTORY, e.getMessage());
+        }
+
+        indexer.execute(this::rescan);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        indexer.shutdownNow();
+    }
+
+    /**
+     * Registers a listener called whenever the index changed. Called on a background thread.
+     *
+     * @param listener Index listener
+     */
+    public void addIndexListener(Runnable listener) {
+        indexListeners.add(listener);
+    }
+
+    /**
+     * Picks the next song of the shuffled backup playlist.
+     *
+     * @return Song ready to be queued, or empty if the backup playlist is disabled or has no songs
+     */
+    public synchronized Optional<MusicCacheEntry> nextEntry() {
+        if (!config.getBackupPlaylist().isEnabled() || tracks.isEmpty()) return Optional.empty();
+
+        while (true) {
+            if (shuffleBag.isEmpty()) refillShuffleBag();
+            if (shuffleBag.isEmpty()) return Optional.empty();
+
+//            Songs deleted since the bag was filled are skipped
+            BackupPlaylistTrack track = tracks.get(shuffleBag.poll());
+            if (track == null) continue;
+
+            lastPicked = track.getFullPath();
+            return Optional.of(toCacheEntry(track));
+        }
+    }
+
+    /**
+     * @return Number of indexed songs
+     */
+    public int getTrackCount() {
+        return tracks.size();
+    }
+
+    private void refillShuffleBag() {
+        List<String> paths = new ArrayList<>(tracks.keySet());
+        Collections.shuffle(paths);
+//        Do not play the last song of a round again as the first song of the next one
+        if (paths.size() > 1 && paths.get(0).equals(lastPicked)) {
+            Collections.swap(paths, 0, paths.size() - 1);
+        }
+        shuffleBag.addAll(paths);
+    }
+
+    private void rescan() {
+        long start = System.nanoTime();
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory())) {
+            files = listing.filter(BackupPlaylistService::isAudioFile).toList();
+        } catch (IOException e) {
+            log.error("Could not list backup playlist directory \"{}\"! {}", DIRECTORY, e.getMessage());
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, config.getBackupPlaylist().getScanThreads()));
+        List<BackupPlaylistTrack> scanned;
+        try {
+            scanned = pool.submit(() -> files.parallelStream()
+                    .map(this::indexFile)
+                    .filter(Objects::nonNull)
+                    .toList()
+            ).get();
+        } catch (Exception e) {
+            log.error("Backup playlist scan failed", e);
+            return;
+        } finally {
+            pool.shutdown();
+        }
+
+        Set<String> present = new HashSet<>();
+        for (BackupPlaylistTrack track : scanned) {
+            tracks.put(track.getFullPath(), track);
+            present.add(track.getFullPath());
+        }
+        tracks.keySet().retainAll(present);
+
+        log.info("Indexed {} backup playlist songs in {} ms", tracks.size(), (System.nanoTime() - start) / 1_000_000);
+        indexChanged();
+    }
+
+    private void onDirectoryChange(DirectoryWatchService.DirectoryChange change) {
+        if (change.type() == DirectoryWatchService.ChangeType.OVERFLOW) {
+            schedule(change.directory(), this::rescan);
+            return;
+        }
+        if (!isAudioFile(change.file())) return;
+
+        schedule(change.file(), () -> reindex(change.file()));
+    }
+
+//    Restarts the settle delay of the path on every event, then hands the work to the indexer
+    private void schedule(Path path, Runnable task) {
+        pendingChanges.compute(path, (key, pending) -> {
+            if (pending != null) pending.cancel(false);
+            return scheduler.schedule(() -> {
+                pendingChanges.remove(key);
+                try {
+                    indexer.execute(task);
+                } catch (RejectedExecutionException e) {
+                    log.debug("Backup playlist indexer is shut down. Change of {} ignored.", key.getFileName());
+                }
+            }, SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void reindex(Path file) {
+        try {
+            BackupPlaylistTrack track = Files.exists(file) ? indexFile(file) : null;
+            String fullPath = file.toAbsolutePath().toString();
+            if (track == null) {
+                if (tracks.remove(fullPath) == null) return;
+                log.info("Removed backup playlist song: {}", file.getFileName());
+            } else {
+                tracks.put(fullPath, track);
+                log.info("Indexed backup playlist song: {} - {}", track.getArtist(), track.getTitle());
+            }
+            indexChanged();
+        } catch (Exception e) {
+            log.error("Failed to index backup playlist song {}", file, e);
+        }
+    }
+
+    private BackupPlaylistTrack indexFile(Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            String fullPath = file.toAbsolutePath().toString();
+
+            BackupPlaylistTrack known = tracks.get(fullPath);
+            if (known != null && known.getSize() == attributes.size() && known.getLastModified() == attributes.lastModifiedTime().toMillis()) {
+                return known;
+            }
+
+            AudioTagReader.AudioTags tags = AudioTagReader.read(file);
+            if (tags.duration() <= 0) {
+//                Playback clock needs the duration to know when to move on
+                log.warn("Could not determine duration of backup playlist song {}. Skipped.", file.getFileName());
+                return null;
+            }
+
+            String name = file.getFileName().toString();
+            int dot = name.lastIndexOf('.');
+            String filename = dot == -1 ? name : name.substring(0, dot);
+
+            BackupPlaylistTrack track = new BackupPlaylistTrack();
+            track.setFullPath(fullPath);
+            track.setFilename(filename);
+            track.setExtension(dot == -1 ? "" : name.substring(dot + 1));
+            track.setDuration(tags.duration());
+            track.setSize(attributes.size());
+            track.setLastModified(attributes.lastModifiedTime().toMillis());
+
+//            Untagged files are usually named "Artist - Title"
+            int separator = filename.indexOf(" - ");
+            track.setTitle(tags.title() != null ? tags.title() : separator == -1 ? filename : filename.substring(separator + 3));
+            track.setArtist(tags.artist() != null ? tags.artist() : separator == -1 ? null : filename.substring(0, separator));
+            return track;
+        } catch (IOException e) {
+            log.error("Could not read backup playlist song {}! {}", file.getFileName(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void indexChanged() {
+        indexStore.markDirty();
+        for (Runnable listener : indexListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.error("Backup playlist index listener failed", e);
+            }
+        }
+    }
+
+    private static MusicCacheEntry toCacheEntry(BackupPlaylistTrack track) {
+        Path path = Path.of(track.getFullPath());
+        return new MusicCacheEntry(
+                null,
+                null,
+                track.getTitle(),
+                track.getArtist(),
+                track.getDuration(),
+                false,
+                null,
+                new MusicCacheEntry.LocalData(
+                        track.getFullPath(),
+                        track.getFilename(),
+                        track.getExtension(),
+                        path.getParent() == null ? null : path.getParent().toString(),
+                        track.getLastModified(),
+                        0L
+                )
+        );
+    }
+
+    private static boolean isAudioFile(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot != -1 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase()) && !Files.isDirectory(file);
+    }
+
+    private static Path directory() {
+        return Path.of(System.getProperty("user.dir") + DIRECTORY);
+    }
+}
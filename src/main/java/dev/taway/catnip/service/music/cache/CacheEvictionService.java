@@ -0,0 +1,202 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.service.music.queue.MusicQueueManager;
+import dev.taway.catnip.service.music.queue.PlaybackClockService;
+import dev.taway.catnip.service.music.util.VideoId;
+import dev.taway.catnip.util.FrequencySketch;
+import jakarta.annotation.PostConstruct;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps downloaded songs within {@code catnip.cache.maximumSizeMegabytes}. The shared scheduler only triggers eviction,
+ * sorting and deleting run on a virtual thread of their own. Eviction is skipped while songs are downloading.
+ * <br>
+ * Victims are picked TinyLFU style: play counts go into a {@link FrequencySketch} that halves itself over time, and
+ * among the least recently played songs the one played least often is deleted first. A song played once last month
+ * goes before a favourite that was not played this week. Songs in queue are never deleted.
+ */
+@Service
+public class CacheEvictionService {
+    private static final Logger log = LogManager.getLogger(CacheEvictionService.class);
+//    Victim is the least frequently played of this many least recently played songs
+    private static final int SAMPLE_SIZE = 8;
+//    Evict down to this fraction of the budget so the next download does not trigger eviction right away
+    private static final double TARGET_FRACTION = 0.9;
+
+    private final CatnipConfig config;
+    private final MusicCacheManagerService cacheManager;
+    private final MusicCacheService musicCacheService;
+    private final MusicQueueManager queueManager;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+
+    private FrequencySketch sketch;
+
+    @Autowired
+    public CacheEvictionService(CatnipConfig config, MusicCacheManagerService cacheManager, MusicCacheService musicCacheService, MusicQueueManager queueManager, PlaybackClockService playbackClock, ScheduledExecutorService scheduler) {
+        this.config = config;
+        this.cacheManager = cacheManager;
+        this.musicCacheService = musicCacheService;
+        this.queueManager = queueManager;
+        this.scheduler = scheduler;
+
+        playbackClock.addStartListener(this::onPlaybackStarted);
+    }
+
+    @PostConstruct
+    public void init() {
+        List<MusicCacheEntry> entries = cacheManager.getEntries();
+        synchronized (this) {
+            sketch = new FrequencySketch(Math.max(1024, entries.size() * 2));
+//            Sketch is not persisted. Play counts give it a head start after a restart.
+            for (MusicCacheEntry entry : entries) {
+                if (entry.getLocalData() == null || !VideoId.isValid(entry.getUrlShortened())) continue;
+                long key = VideoId.encode(entry.getUrlShortened());
+                for (int i = Math.min(entry.getLocalData().getPlayCount(), 15); i > 0; i--) {
+                    sketch.increment(key);
+                }
+            }
+        }
+
+        long interval = Math.max(1, config.getCache().getEvictionIntervalSeconds());
+        scheduler.scheduleWithFixedDelay(this::startEviction, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return Number of songs deleted to stay within the budget since startup
+     */
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * @return Size budget in bytes, 0 if there is no limit
+     */
+    public long getBudgetBytes() {
+        return Math.max(0, config.getCache().getMaximumSizeMegabytes()) * 1024 * 1024;
+    }
+
+//    Called by the playback clock while it is locked
+    private void onPlaybackStarted(MusicQueueEntry entry) {
+        if (entry.isFromBackupPlaylist() || !VideoId.isValid(entry.getUrlShortened())) return;
+
+        cacheManager.markPlayed(entry.getUrlShortened());
+        synchronized (this) {
+            if (sketch != null) sketch.increment(VideoId.encode(entry.getUrlShortened()));
+        }
+    }
+
+//    Runs on the scheduler. A run still going on a large cache is not started twice.
+    private void startEviction() {
+        if (getBudgetBytes() <= 0 || !evicting.compareAndSet(false, true)) return;
+
+        Thread.ofVirtual().name("catnip-cache-eviction").start(() -> {
+            try {
+                evictIfOverBudget();
+            } finally {
+                evicting.set(false);
+            }
+        });
+    }
+
+    private void evictIfOverBudget() {
+        try {
+            long budget = getBudgetBytes();
+            if (budget <= 0 || cacheManager.getDiskUsageBytes() <= budget) return;
+
+//            Only evict while idle. A running download is about to add to the cache and may be the song being evicted.
+            if (musicCacheService.getInFlightDownloads().getInFlightCount() > 0) {
+                log.trace("Cache is over budget but songs are downloading. Eviction postponed.");
+                return;
+            }
+
+            evict((long) (budget * TARGET_FRACTION));
+        } catch (Exception e) {
+            log.error("Cache eviction failed", e);
+        }
+    }
+
+    private void evict(long target) {
+        Set<String> queued = new HashSet<>();
+        for (MusicQueueEntry entry : queueManager.getQueueEntries()) {
+            queued.add(entry.getUrlShortened());
+        }
+
+//        Least recently used first. Songs never played count from when they were downloaded.
+        List<MusicCacheEntry> candidates = new ArrayList<>(cacheManager.getEntries().stream()
+                .filter(entry -> entry.getLocalData() != null && !queued.contains(entry.getUrlShortened()))
+                .sorted(Comparator.comparingLong(CacheEvictionService::lastUsed))
+                .toList());
+
+        long before = cacheManager.getDiskUsageBytes();
+        int evicted = 0;
+        while (cacheManager.getDiskUsageBytes() > target && !candidates.isEmpty()) {
+            MusicCacheEntry victim = pickVictim(candidates);
+            candidates.remove(victim);
+
+//            Could have been queued since the queue was read
+            if (victim.getUrlShortened() != null && queueManager.findFirst(victim.getUrlShortened()).isPresent()) continue;
+
+            try {
+                Files.deleteIfExists(Path.of(victim.getLocalData().getFullPath()));
+            } catch (IOException e) {
+                log.warn("[{}] Could not delete cached song {}! {}", victim.getUrlShortened(), victim.getLocalData().getFullPath(), e.getMessage());
+                continue;
+            }
+            cacheManager.removeEntry(victim);
+            evicted++;
+            log.debug("[{}] Evicted from cache: {} - {}", victim.getUrlShortened(), victim.getArtist(), victim.getTitle());
+        }
+
+        if (evicted > 0) {
+            evictedCount.addAndGet(evicted);
+            log.info("Evicted {} songs from music cache, freed {} MB", evicted, (before - cacheManager.getDiskUsageBytes()) / (1024 * 1024));
+        }
+        if (cacheManager.getDiskUsageBytes() > target) {
+            log.warn("Music cache is still over budget after eviction. Everything left is in queue.");
+        }
+    }
+
+    private synchronized MusicCacheEntry pickVictim(List<MusicCacheEntry> candidates) {
+        MusicCacheEntry victim = candidates.get(0);
+        int victimFrequency = frequency(victim);
+        for (int i = 1; i < Math.min(SAMPLE_SIZE, candidates.size()); i++) {
+            MusicCacheEntry candidate = candidates.get(i);
+            int candidateFrequency = frequency(candidate);
+            if (candidateFrequency < victimFrequency) {
+                victim = candidate;
+                victimFrequency = candidateFrequency;
+            }
+        }
+        return victim;
+    }
+
+    private int frequency(MusicCacheEntry entry) {
+        return VideoId.isValid(entry.getUrlShortened()) ? sketch.frequency(VideoId.encode(entry.getUrlShortened())) : 0;
+    }
+
+    private static long lastUsed(MusicCacheEntry entry) {
+        MusicCacheEntry.LocalData localData = entry.getLocalData();
+        return Math.max(localData.getLastPlayedTimestamp(), localData.getDownloadedTimestamp());
+    }
+}
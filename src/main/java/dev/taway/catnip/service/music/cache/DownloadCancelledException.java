@@ -0,0 +1,16 @@
+package dev.taway.catnip.service.music.cache;
+
+/**
+ * Thrown when a download was cancelled before it finished, e.g. because the song was removed or its requester
+ * blacklisted. Unlike {@link DownloadFailedException} it says nothing about the song, so it is never remembered by
+ * {@link NegativeCacheService}.
+ */
+public class DownloadCancelledException extends RuntimeException {
+    public DownloadCancelledException(String message) {
+        super(message);
+    }
+
+    public DownloadCancelledException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,23 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.data.music.DownloadFailureReason;
+import lombok.Getter;
+
+/**
+ * Thrown when yt-dlp could not fetch metadata or download a song. Carries the classified reason so the failure can be
+ * remembered by {@link NegativeCacheService} and reported to the requester.
+ */
+@Getter
+public class DownloadFailedException extends RuntimeException {
+    private final DownloadFailureReason reason;
+
+    public DownloadFailedException(DownloadFailureReason reason, String message) {
+        super(message + " (" + reason + ")");
+        this.reason = reason;
+    }
+
+    public DownloadFailedException(DownloadFailureReason reason, String message, Throwable cause) {
+        super(message + " (" + reason + ")", cause);
+        this.reason = reason;
+    }
+}
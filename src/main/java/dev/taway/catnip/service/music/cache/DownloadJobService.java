@@ -0,0 +1,395 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.DownloadJob;
+import dev.taway.catnip.data.music.DownloadJobStatus;
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.dto.response.BasicResponse;
+import dev.taway.catnip.dto.response.QueueAddResponse;
+import dev.taway.catnip.dto.websocket.DownloadJobMessage;
+import dev.taway.catnip.service.music.queue.MusicQueueService;
+import dev.taway.catnip.service.music.util.UrlUtil;
+import dev.taway.catnip.util.OrderStatisticList;
+import dev.taway.catnip.websocket.PlaybackStatusHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Runs song downloads on the {@link DownloadScheduler} so API requests never wait for yt-dlp. A job is due when its song
+ * would start playing, after the current queue and the songs requested before it.
+ * Finished songs are added to the queue and every finished job is announced over the playback status WebSocket.
+ * Jobs can be cancelled until they finish, the download is cancelled with them once no other job waits for it.
+ */
+@Service
+public class DownloadJobService {
+    private static final Logger log = LogManager.getLogger(DownloadJobService.class);
+//    Length assumed for songs that are not downloaded yet
+    private static final double EXPECTED_SONG_SECONDS = 210;
+//    A pick reads the deadline of every waiting request, they share one read of the queue
+    private static final long QUEUE_EMPTY_RECHECK_MILLIS = 100;
+    private final MusicCacheService musicCacheService;
+    private final MusicQueueService musicQueueService;
+    private final PlaybackStatusHandler playbackStatusHandler;
+    private final ExtractorLimiter limiter;
+    private final DownloadScheduler scheduler;
+    private final CatnipConfig config;
+    private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<>();
+//    Songs with unfinished jobs in the order they were first requested. Guarded by pendingSongs.
+    private final OrderStatisticList<String> pendingSongs = new OrderStatisticList<>();
+    private final Map<String, OrderStatisticList.Node<String>> pendingSongNodes = new HashMap<>();
+//    Guarded by this
+    private long queueEmptyAtMillis;
+    private long queueEmptyReadMillis = Long.MIN_VALUE;
+
+    @Autowired
+    public DownloadJobService(MusicCacheService musicCacheService, MusicQueueService musicQueueService, PlaybackStatusHandler playbackStatusHandler, ExtractorLimiter limiter, DownloadScheduler scheduler, CatnipConfig config) {
+        this.musicCacheService = musicCacheService;
+        this.musicQueueService = musicQueueService;
+        this.playbackStatusHandler = playbackStatusHandler;
+        this.limiter = limiter;
+        this.scheduler = scheduler;
+        this.config = config;
+    }
+
+    /**
+     * Creates a download job for the URL and hands it to a worker. Returns right away.
+     *
+     * @param url               Sanitized URL of the song
+     * @param requestedBy       Username of the requester
+     * @param maxEntriesPerUser Songs the requester may have queued at once. 0 means no limit.
+     * @return The created job, or an empty Optional if the download queue is full.
+     */
+    public Optional<DownloadJob> submit(String url, String requestedBy, int maxEntriesPerUser) {
+        pruneFinishedJobs();
+
+        DownloadJob job = new DownloadJob(UUID.randomUUID().toString(), url, UrlUtil.shortenURL(url), requestedBy);
+        job.setMaxEntriesPerUser(maxEntriesPerUser);
+//        Jobs for a song that is already downloading do not take a worker, they wait for the running download
+        boolean attached = musicCacheService.isDownloading(job.getUrlShortened());
+
+        if (!attached && scheduler.getRemainingCapacity(DownloadScheduler.Urgency.REQUEST) == 0) {
+            log.warn("[{}] Download queue is full ({} waiting). Job rejected.", job.getUrlShortened(), scheduler.getWaitingCount());
+            return Optional.empty();
+        }
+
+//        Read again on every pick, skips and removals move the deadline
+        LongSupplier deadline = () -> deadlineOf(job);
+        jobs.put(job.getId(), job);
+        trackPending(job);
+        if (attached) {
+            job.setMessage("Waiting for the same song to finish downloading.");
+//            Could be a prefetch nobody was waiting for so far
+            scheduler.promote(job.getUrlShortened(), DownloadScheduler.Urgency.REQUEST, job.getId(), deadline);
+        }
+
+        Executor executor = scheduler.executor(job.getUrlShortened(), DownloadScheduler.Urgency.REQUEST, deadline, null);
+        try {
+            musicCacheService.cacheSongAsync(url, command -> executor.execute(() -> {
+                        markRunning(job);
+                        command.run();
+                    }))
+                    .whenComplete((entry, error) -> finish(job, entry, error));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            releasePending(job);
+            log.warn("[{}] Download queue is full. Job rejected.", job.getUrlShortened());
+            return Optional.empty();
+        }
+
+        log.debug("[{}] Created download job {}", job.getUrlShortened(), job.getId());
+        return Optional.of(job);
+    }
+
+    /**
+     * Checks whether another download can still be ready in time. Downloads are done one limit's worth at a time,
+     * once working off the backlog takes longer than playing the queue plus
+     * {@code catnip.download.backlogAllowanceSeconds} new songs would only pile up.
+     *
+     * @return Seconds to wait before requesting a new song, or empty if it can be downloaded now.
+     */
+    public OptionalLong getBacklogRetryAfterSeconds() {
+        double backlog = limiter.estimateSeconds(getPendingDownloadCount() + 1);
+        double available = musicQueueService.queueEmptyIn() + config.getDownload().getBacklogAllowanceSeconds();
+        if (backlog <= available) return OptionalLong.empty();
+        return OptionalLong.of((long) Math.ceil(backlog - available));
+    }
+
+    /**
+     * @return Number of songs waiting for or being downloaded. Jobs for the same song count once.
+     */
+    public int getPendingDownloadCount() {
+        synchronized (pendingSongs) {
+            return pendingSongs.size();
+        }
+    }
+
+//    Song plays after the queue and every song requested before it that is still downloading
+    private long deadlineOf(DownloadJob job) {
+        int songsBefore;
+        synchronized (pendingSongs) {
+            songsBefore = pendingSongs.indexOf(pendingSongNodes.get(songOf(job)));
+        }
+//        Finished, nobody waits for it anymore
+        if (songsBefore < 0) return Long.MAX_VALUE;
+        return queueEmptyAtMillis() + (long) (songsBefore * EXPECTED_SONG_SECONDS * 1000);
+    }
+
+    private synchronized long queueEmptyAtMillis() {
+        long now = System.currentTimeMillis();
+        if (now - queueEmptyReadMillis >= QUEUE_EMPTY_RECHECK_MILLIS) {
+            queueEmptyAtMillis = now + (long) (musicQueueService.queueEmptyIn() * 1000);
+            queueEmptyReadMillis = now;
+        }
+        return queueEmptyAtMillis;
+    }
+
+    private void trackPending(DownloadJob job) {
+        String song = songOf(job);
+        synchronized (pendingSongs) {
+            pendingSongNodes.computeIfAbsent(song, pendingSongs::add);
+        }
+    }
+
+//    Keeps the song's place while another unfinished job still waits for it
+    private void releasePending(DownloadJob job) {
+        String song = songOf(job);
+        synchronized (pendingSongs) {
+            boolean wanted = jobs.values().stream()
+                    .anyMatch(other -> song.equals(songOf(other)) && !other.getStatus().isFinished());
+            if (wanted) return;
+            OrderStatisticList.Node<String> node = pendingSongNodes.remove(song);
+            if (node != null) pendingSongs.remove(node);
+        }
+    }
+
+//    Jobs without a video ID can not share a download
+    private static String songOf(DownloadJob job) {
+        return job.getUrlShortened() != null ? job.getUrlShortened() : job.getId();
+    }
+
+    /**
+     * @param jobId ID returned by {@link #submit(String, String, int)}
+     * @return Job or an empty Optional if it does not exist or has already been pruned.
+     */
+    public Optional<DownloadJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    /**
+     * Adds an already downloaded song to the queue.
+     *
+     * @param cacheEntry        Cached song
+     * @param requestedBy       Username of the requester
+     * @param maxEntriesPerUser Songs the requester may have queued at once. 0 means no limit.
+     * @return Response describing the result. Blocked songs and requesters over the limit are not added but are not an
+     * error either.
+     */
+    public QueueAddResponse addToQueue(MusicCacheEntry cacheEntry, String requestedBy, int maxEntriesPerUser) {
+        QueueAddResponse response = new QueueAddResponse();
+        String urlShortened = cacheEntry.getUrlShortened();
+
+        if (cacheEntry.isBlocked()) {
+            log.info("[{}] {} - {} was not added to queue. Reason: {}",
+                    urlShortened,
+                    cacheEntry.getArtist(),
+                    cacheEntry.getTitle(),
+                    cacheEntry.getBlockReason().getMessage()
+            );
+
+            response.setMessage(
+                    String.format("%s - %s was not added to queue. Reason: %s",
+                            cacheEntry.getArtist(),
+                            cacheEntry.getTitle(),
+                            cacheEntry.getBlockReason().getMessage()
+                    )
+            );
+        } else if (cacheEntry.getLocalData() == null) {
+            log.error("[{}] Song is not blocked but does not contain any local data!", urlShortened);
+
+            response.setError(true);
+            response.setMessage("Internal error occurred!");
+        } else {
+//            Add to queue and get time to play the song
+            Optional<MusicQueueEntry> added = musicQueueService.addToQueue(cacheEntry, requestedBy, maxEntriesPerUser);
+            if (added.isEmpty()) {
+                log.info("[{}] {} - {} was not added to queue. {} already has {} songs queued.",
+                        urlShortened,
+                        cacheEntry.getArtist(),
+                        cacheEntry.getTitle(),
+                        requestedBy,
+                        maxEntriesPerUser
+                );
+                response.setMessage(String.format("You already have %d songs in queue!", maxEntriesPerUser));
+                return response;
+            }
+
+            MusicQueueEntry queued = added.get();
+            String playingIn = musicQueueService.etaOfAsString(queued.getHandle()).orElse("now");
+            response.setQueued(true);
+            response.setPosition(musicQueueService.positionOf(queued.getHandle()));
+
+            response.setMessage(
+                    String.format(
+                            "Added %s - %s to queue! Playing in ~%s",
+                            cacheEntry.getArtist(),
+                            cacheEntry.getTitle(),
+                            playingIn
+                    )
+            );
+            log.info("[{}] Added {} - {} to queue. Will be played in ~{}",
+                    urlShortened,
+                    cacheEntry.getArtist(),
+                    cacheEntry.getTitle(),
+                    playingIn
+            );
+        }
+
+        return response;
+    }
+
+    /**
+     * Cancels unfinished jobs for a song, e.g. because it was removed from the queue.
+     *
+     * @param urlShortened Shortened URL (video ID)
+     * @param message      Message shown on the cancelled jobs
+     * @return Number of cancelled jobs
+     */
+    public int cancelSong(String urlShortened, String message) {
+        if (urlShortened == null) return 0;
+        return cancel(job -> urlShortened.equals(job.getUrlShortened()), message);
+    }
+
+    /**
+     * Cancels unfinished jobs of a user, e.g. because they were blacklisted.
+     *
+     * @param username Requester
+     * @param message  Message shown on the cancelled jobs
+     * @return Number of cancelled jobs
+     */
+    public int cancelRequestedBy(String username, String message) {
+        if (username == null) return 0;
+        return cancel(job -> username.equalsIgnoreCase(job.getRequestedBy()), message);
+    }
+
+    private int cancel(Predicate<DownloadJob> filter, String message) {
+        Set<String> songs = new HashSet<>();
+        int cancelled = 0;
+        for (DownloadJob job : jobs.values()) {
+            if (!filter.test(job)) continue;
+
+            synchronized (job) {
+                if (job.getStatus().isFinished()) continue;
+                if (job.getStartedTimestamp() == 0) {
+                    job.setStartedTimestamp(System.currentTimeMillis());
+                }
+                job.setMessage(message);
+                job.setFinishedTimestamp(System.currentTimeMillis());
+                job.setStatus(DownloadJobStatus.CANCELLED);
+            }
+
+            log.info("[{}] Download job {} of {} cancelled: {}", job.getUrlShortened(), job.getId(), job.getRequestedBy(), message);
+            releasePending(job);
+            playbackStatusHandler.broadcast(new DownloadJobMessage(job));
+            if (job.getUrlShortened() != null) songs.add(job.getUrlShortened());
+            cancelled++;
+        }
+
+//        Other requesters can still be waiting for the same song, its download keeps going for them
+        for (String song : songs) {
+            boolean wanted = jobs.values().stream()
+                    .anyMatch(job -> song.equals(job.getUrlShortened()) && !job.getStatus().isFinished());
+            if (!wanted) musicCacheService.cancelDownload(song);
+        }
+        return cancelled;
+    }
+
+    private void markRunning(DownloadJob job) {
+        synchronized (job) {
+//            Cancelled while waiting for a worker
+            if (job.getStatus().isFinished()) return;
+            job.setStartedTimestamp(System.currentTimeMillis());
+            job.setMessage(DownloadJobStatus.RUNNING.getMessage());
+            job.setStatus(DownloadJobStatus.RUNNING);
+        }
+    }
+
+    private void finish(DownloadJob job, MusicCacheEntry entry, Throwable error) {
+        DownloadJobStatus status;
+        synchronized (job) {
+//            Already cancelled. A song that finished downloading anyway stays cached but is not queued.
+            if (job.getStatus().isFinished()) return;
+            status = complete(job, entry, error);
+        }
+        releasePending(job);
+
+        log.debug("[{}] Download job {} finished with status {} in {}ms",
+                job.getUrlShortened(),
+                job.getId(),
+                status,
+                job.getFinishedTimestamp() - job.getStartedTimestamp()
+        );
+        playbackStatusHandler.broadcast(new DownloadJobMessage(job));
+    }
+
+    private DownloadJobStatus complete(DownloadJob job, MusicCacheEntry entry, Throwable error) {
+        if (job.getStartedTimestamp() == 0) {
+            job.setStartedTimestamp(System.currentTimeMillis());
+        }
+
+        DownloadJobStatus status;
+        BasicResponse response;
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof DownloadCancelledException) {
+            log.info("[{}] Download job {} was cancelled", job.getUrlShortened(), job.getId());
+            response = new BasicResponse(true, DownloadJobStatus.CANCELLED.getMessage());
+            status = DownloadJobStatus.CANCELLED;
+        } else if (cause instanceof DownloadFailedException failed) {
+            log.warn("[{}] Download job {} failed: {}", job.getUrlShortened(), job.getId(), failed.getMessage());
+            response = new BasicResponse(true, failed.getReason().getMessage());
+            status = DownloadJobStatus.FAILED;
+        } else if (error != null || entry == null) {
+            log.error("[{}] Download job {} failed", job.getUrlShortened(), job.getId(), error);
+            response = new BasicResponse(true, "Internal error occurred!");
+            status = DownloadJobStatus.FAILED;
+        } else {
+            try {
+                QueueAddResponse added = addToQueue(entry, job.getRequestedBy(), job.getMaxEntriesPerUser());
+                response = added;
+                status = added.isError() ? DownloadJobStatus.FAILED
+                        : added.isQueued() ? DownloadJobStatus.COMPLETED
+                        : DownloadJobStatus.REJECTED;
+            } catch (Exception e) {
+                log.error("[{}] Download job {} failed while adding song to queue", job.getUrlShortened(), job.getId(), e);
+                response = new BasicResponse(true, "Internal error occurred!");
+                status = DownloadJobStatus.FAILED;
+            }
+        }
+
+        job.setMessage(response.getMessage());
+        job.setFinishedTimestamp(System.currentTimeMillis());
+        job.setStatus(status);
+        return status;
+    }
+
+    private void pruneFinishedJobs() {
+        long cutoff = System.currentTimeMillis() - config.getDownload().getJobRetentionSeconds() * 1000L;
+        jobs.values().removeIf(job -> job.getStatus().isFinished() && job.getFinishedTimestamp() < cutoff);
+    }
+}
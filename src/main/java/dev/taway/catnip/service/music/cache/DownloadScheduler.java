@@ -0,0 +1,314 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs downloads on a fixed number of worker threads in the order their songs are needed, not in the order they were
+ * submitted. Every task has a deadline, the time its song is expected to start playing. Deadlines are read again
+ * whenever a worker picks its next task, so tasks follow the queue as it moves.
+ * <br>
+ * A free worker takes the task with the earliest deadline. When deadlines tie or are less than one download apart,
+ * {@link Urgency#PLAYBACK} goes before {@link Urgency#REQUEST}, a queued song is already on screen. A task that will
+ * be late even if it starts right away only goes behind another one if that one would make its deadline now but not
+ * after waiting for it, finishing a song slightly later beats making two songs late.
+ * {@link Urgency#SPECULATIVE} tasks only run when nothing else waits, and a running one is preempted as soon as a
+ * more urgent task finds every worker busy.
+ * <br>
+ * There is a worker for every download the {@link ExtractorLimiter} could ever allow, but only as many tasks as its
+ * current limit are taken at once. The rest stay waiting, so a task that becomes urgent later can still go first.
+ */
+@Service
+public class DownloadScheduler {
+    private static final Logger log = LogManager.getLogger(DownloadScheduler.class);
+//    The limit can grow while nothing finishes, idle workers check it again after this long
+    private static final long LIMIT_RECHECK_MILLIS = 1000;
+
+    /**
+     * Why a download is done.
+     */
+    public enum Urgency {
+        /**
+         * Song is in queue and about to play.
+         */
+        PLAYBACK,
+        /**
+         * Song was requested and is added to queue once downloaded.
+         */
+        REQUEST,
+        /**
+         * Song may be needed later. Runs only on otherwise idle workers and is preempted by anything else.
+         */
+        SPECULATIVE
+    }
+
+    private final ExtractorLimiter limiter;
+    private final int capacity;
+    private final List<Thread> workers = new ArrayList<>();
+//    Guarded by itself
+    private final List<Task> waiting = new ArrayList<>();
+    private final List<Task> running = new ArrayList<>();
+    private long nextSequence = 0;
+    private boolean shutdown = false;
+
+    @Autowired
+    public DownloadScheduler(CatnipConfig config, ExtractorLimiter limiter) {
+        this.limiter = limiter;
+        this.capacity = Math.max(1, config.getDownload().getQueueCapacity());
+
+        for (int i = 0; i < limiter.getMaximum(); i++) {
+            workers.add(Thread.ofPlatform().name("catnip-download-" + i).daemon(true).start(this::work));
+        }
+    }
+
+    private static final class Task {
+        private final String key;
+        private final Runnable command;
+        private long sequence;
+        private Urgency urgency;
+//        Deadline per source that wants the song, the earliest one counts. Promoting again from a source replaces its
+//        deadline, so this stays as small as the number of jobs and queue entries waiting for the song.
+        private final Map<Object, LongSupplier> deadlines = new LinkedHashMap<>();
+        private Runnable onPreempt;
+        private boolean preempted = false;
+//        Deadline read once per pick so comparisons stay consistent
+        private long deadlineSnapshot;
+
+        private Task(String key, Runnable command, Urgency urgency, LongSupplier deadlineMillis, Runnable onPreempt) {
+            this.key = key;
+            this.command = command;
+            this.urgency = urgency;
+            this.deadlines.put(this, deadlineMillis);
+            this.onPreempt = onPreempt;
+        }
+
+        private long readDeadline() {
+            long deadline = Long.MAX_VALUE;
+            for (LongSupplier supplier : deadlines.values()) {
+                deadline = Math.min(deadline, supplier.getAsLong());
+            }
+            return deadline;
+        }
+    }
+
+    /**
+     * Creates an executor that schedules everything it is given with the same urgency and deadline.
+     *
+     * @param key            Song the work is for (shortened URL), used by {@link #promote}. May be null.
+     * @param urgency        Why the download is done
+     * @param deadlineMillis Epoch millis by which the song is needed, read every time the next task is picked
+     * @param onPreempt      Stops the running work when a {@link Urgency#SPECULATIVE} task is preempted. May be null
+     *                       for other urgencies.
+     * @return Executor throwing {@link RejectedExecutionException} when too many tasks are waiting
+     */
+    public Executor executor(String key, Urgency urgency, LongSupplier deadlineMillis, Runnable onPreempt) {
+        return command -> submit(new Task(key, command, urgency, deadlineMillis, onPreempt));
+    }
+
+    /**
+     * Raises the urgency of waiting or running tasks for a song, e.g. when a user requests a song that is being
+     * prefetched. Tasks are never demoted and keep the earliest deadline of everyone who promoted them.
+     *
+     * @param key            Shortened URL the tasks were created with
+     * @param urgency        New urgency
+     * @param source         Who wants the song, e.g. a job ID or queue handle. Promoting again from the same source
+     *                       replaces its earlier deadline instead of adding another one.
+     * @param deadlineMillis New deadline
+     * @return True if a task for the song was found
+     */
+    public boolean promote(String key, Urgency urgency, Object source, LongSupplier deadlineMillis) {
+        if (key == null) return false;
+
+        boolean found = false;
+        synchronized (waiting) {
+            for (List<Task> tasks : List.of(waiting, running)) {
+                for (Task task : tasks) {
+                    if (!key.equals(task.key) || task.preempted) continue;
+                    found = true;
+                    if (urgency.ordinal() < task.urgency.ordinal()) task.urgency = urgency;
+                    task.deadlines.put(source, deadlineMillis);
+                    if (task.urgency != Urgency.SPECULATIVE) task.onPreempt = null;
+                }
+            }
+        }
+        if (found) log.debug("[{}] Download promoted to {}", key, urgency);
+        return found;
+    }
+
+    /**
+     * @param urgency Urgency of the task that would be submitted
+     * @return Number of tasks that can still be submitted before they are rejected
+     */
+    public int getRemainingCapacity(Urgency urgency) {
+        synchronized (waiting) {
+            return Math.max(0, capacityFor(urgency) - waiting.size());
+        }
+    }
+
+    /**
+     * @return Number of tasks waiting for a worker
+     */
+    public int getWaitingCount() {
+        synchronized (waiting) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * @return Number of tasks being worked on
+     */
+    public int getRunningCount() {
+        synchronized (waiting) {
+            return running.size();
+        }
+    }
+
+//    Speculative work may fill only half the queue, the rest is kept for songs that are actually needed
+    private int capacityFor(Urgency urgency) {
+        return urgency == Urgency.SPECULATIVE ? Math.max(1, capacity / 2) : capacity;
+    }
+
+    private void submit(Task task) {
+        Task victim = null;
+        synchronized (waiting) {
+            if (shutdown) throw new RejectedExecutionException("Download scheduler is shut down");
+            if (waiting.size() >= capacityFor(task.urgency)) {
+                throw new RejectedExecutionException("Too many downloads waiting: " + waiting.size());
+            }
+
+            task.sequence = nextSequence++;
+            waiting.add(task);
+            waiting.notify();
+
+//            Nobody would pick the task up soon, make room by stopping speculative work
+            if (task.urgency != Urgency.SPECULATIVE && running.size() + countWaitingUrgent() > limiter.getLimit()) {
+                victim = running.stream()
+                        .filter(candidate -> candidate.urgency == Urgency.SPECULATIVE && !candidate.preempted && candidate.onPreempt != null)
+                        .max((a, b) -> Long.compare(a.sequence, b.sequence))
+                        .orElse(null);
+                if (victim != null) victim.preempted = true;
+            }
+        }
+
+        if (victim != null) {
+            log.info("[{}] Speculative download preempted by a more urgent one [{}]", victim.key, task.key);
+            victim.onPreempt.run();
+        }
+    }
+
+    private int countWaitingUrgent() {
+        int count = 0;
+        for (Task task : waiting) {
+            if (task.urgency != Urgency.SPECULATIVE) count++;
+        }
+        return count;
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            synchronized (waiting) {
+                while ((waiting.isEmpty() || running.size() >= limiter.getLimit()) && !shutdown) {
+                    try {
+                        waiting.wait(LIMIT_RECHECK_MILLIS);
+                    } catch (InterruptedException e) {
+                        if (shutdown) return;
+                    }
+                }
+                if (shutdown) return;
+
+                task = pickNext();
+                waiting.remove(task);
+                running.add(task);
+            }
+
+            try {
+                task.command.run();
+            } catch (Throwable t) {
+                log.error("[{}] Download task failed", task.key, t);
+            } finally {
+                synchronized (waiting) {
+                    running.remove(task);
+//                    The limit may have grown with this run, more than one worker can go on
+                    waiting.notifyAll();
+                }
+//                Preemption or cancellation must not reach the next task
+                Thread.interrupted();
+            }
+        }
+    }
+
+//    Called with the lock held and at least one task waiting
+    private Task pickNext() {
+        long now = System.currentTimeMillis();
+        long expectedMillis = (long) (limiter.estimateSeconds(1) * 1000);
+
+        List<Task> urgent = new ArrayList<>();
+        Task speculative = null;
+        for (Task task : waiting) {
+            task.deadlineSnapshot = task.readDeadline();
+            if (task.urgency != Urgency.SPECULATIVE) {
+                urgent.add(task);
+            } else if (speculative == null || earlier(task, speculative)) {
+                speculative = task;
+            }
+        }
+        if (urgent.isEmpty()) return speculative;
+        urgent.sort((a, b) -> a == b ? 0 : earlier(a, b) ? -1 : 1);
+
+        Task next = urgent.get(0);
+        if (next.urgency != Urgency.PLAYBACK) {
+            for (Task task : urgent) {
+                if (task.deadlineSnapshot - next.deadlineSnapshot >= expectedMillis) break;
+                if (task.urgency == Urgency.PLAYBACK) {
+                    next = task;
+                    break;
+                }
+            }
+        }
+
+//        Another free worker would take the tight task right away, no need to reorder
+        boolean lastSlot = limiter.getLimit() - running.size() <= 1;
+        if (lastSlot && now + expectedMillis > next.deadlineSnapshot) {
+            for (Task task : urgent) {
+                if (task == next) continue;
+                boolean onTimeNow = now + expectedMillis <= task.deadlineSnapshot;
+                boolean lateAfterNext = now + 2 * expectedMillis > task.deadlineSnapshot;
+                if (onTimeNow && lateAfterNext) {
+                    log.debug("[{}] Download will not be ready in time, [{}] goes first", next.key, task.key);
+                    return task;
+                }
+            }
+        }
+        return next;
+    }
+
+//    Earlier deadline first, on a tie the more urgent task, then the older one
+    private static boolean earlier(Task a, Task b) {
+        if (a.deadlineSnapshot != b.deadlineSnapshot) return a.deadlineSnapshot < b.deadlineSnapshot;
+        if (a.urgency != b.urgency) return a.urgency.ordinal() < b.urgency.ordinal();
+        return a.sequence < b.sequence;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (waiting) {
+            shutdown = true;
+            waiting.notifyAll();
+        }
+//        Interrupt kills running yt-dlp processes
+        workers.forEach(Thread::interrupt);
+    }
+}
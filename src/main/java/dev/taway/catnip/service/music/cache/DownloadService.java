@@ -2,46 +2,92 @@ package dev.taway.catnip.service.music.cache;
 
 import dev.taway.catnip.config.CatnipConfig;
 import dev.taway.catnip.config.CookiesFromBrowser;
+import dev.taway.catnip.data.music.DownloadFailureReason;
 import dev.taway.catnip.data.music.MusicCacheEntry;
 import dev.taway.catnip.data.music.MusicCacheEntryBlockReason;
 import dev.taway.catnip.service.file.FileWatchService;
-import dev.taway.catnip.service.music.util.ProcessOutputUtil;
+import dev.taway.catnip.service.music.util.ProcessRunner;
 import dev.taway.catnip.service.music.util.UrlUtil;
+import dev.taway.catnip.service.music.util.YtDlpOutput;
+import jakarta.annotation.PostConstruct;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.io.File;
-import java.util.AbstractMap;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.DoubleSupplier;
+import java.util.stream.Stream;
 
 @Service
 public class DownloadService {
 
     private static final String FILE_CACHE_LOCATION = System.getProperty("user.dir") + "/cache/music/download/";
+//    Single process runs keep their intermediate files in a directory of their own, deleted once the run is over
+    private static final String PARTIAL_LOCATION = FILE_CACHE_LOCATION + ".partial/";
     private static final Logger log = LogManager.getLogger(DownloadService.class);
     private final FileWatchService fileWatchService;
     private final MetadataService metadataService;
     private final CatnipConfig config;
+    private final ExtractorLimiter limiter;
+//    Cleared once yt-dlp rejects the single process options, every later download uses two runs
+    private volatile boolean singleProcessSupported = true;
 
     @Autowired
-    public DownloadService(FileWatchService fileWatchService, MetadataService metadataService, CatnipConfig config) {
+    public DownloadService(FileWatchService fileWatchService, MetadataService metadataService, CatnipConfig config, ExtractorLimiter limiter) {
         this.fileWatchService = fileWatchService;
         this.metadataService = metadataService;
         this.config = config;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Deletes partial files left behind by downloads that were running when Catnip stopped.
+     */
+    @PostConstruct
+    public void deleteLeftovers() {
+        deleteRecursively(Path.of(PARTIAL_LOCATION));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Path.of(FILE_CACHE_LOCATION), file -> isPartialFile(file.getFileName().toString()))) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+                log.debug("Deleted leftover partial download {}", file);
+            }
+        } catch (NoSuchFileException ignored) {
+//            Nothing was ever downloaded
+        } catch (IOException e) {
+            log.warn("Could not delete leftover partial downloads: {}", e.getMessage());
+        }
     }
 
     /**
      * Downloads a song from the provided URL and returns a MusicCacheEntry object containing metadata and download details.
      * If the song's duration exceeds the maximum allowed duration specified in the configuration, the entry will be marked as blocked.
+     * With {@code catnip.download.singleProcess} metadata and song are fetched by one yt-dlp run that skips the download
+     * of songs that are too long.
      *
      * @param url The URL of the song to be downloaded.
      * @return A MusicCacheEntry object containing metadata, download status, and local file information.
+     * @throws DownloadFailedException    If yt-dlp could not fetch the metadata or the song.
+     * @throws DownloadCancelledException If the thread was interrupted. yt-dlp is killed and partial files deleted.
      */
     public MusicCacheEntry downloadSong(String url) {
+        if (config.getDownload().isSingleProcess() && singleProcessSupported) {
+            Optional<MusicCacheEntry> entry = downloadSingleProcess(url);
+            if (entry.isPresent()) return entry.get();
+        }
+
         String urlShortened = UrlUtil.shortenURL(url);
         MusicCacheEntry entry = metadataService.fetchMetadata(url);
         entry.setUrl(url);
@@ -56,30 +102,190 @@ public class DownloadService {
         return performDownload(entry);
     }
 
+//    Empty if yt-dlp does not understand the options, the caller falls back to two runs
+    private Optional<MusicCacheEntry> downloadSingleProcess(String url) {
+        int maximumDuration = config.getCache().getMaximumSongDurationSeconds();
+        YtDlpOutput.MetadataParser metadata = new YtDlpOutput.MetadataParser();
+        YtDlpOutput.AgeGateParser ageGate = new YtDlpOutput.AgeGateParser();
+        YtDlpOutput.FilePathParser filePath = new YtDlpOutput.FilePathParser();
+        Path partialDirectory = Path.of(PARTIAL_LOCATION, UUID.randomUUID().toString());
+        ProcessRunner.Result result;
+        try {
+//            Songs skipped by the duration filter were not downloaded, their run time says nothing about load
+            DoubleSupplier work = () -> filePath.getPath() == null ? Double.NaN : durationOf(metadata);
+            result = run(createSingleProcess(url, maximumDuration, partialDirectory), url, work, metadata, ageGate, filePath);
+        } finally {
+//            Empty after a successful run, the finished file was moved out of it
+            deleteRecursively(partialDirectory);
+        }
+
+//        Exit code 2 is an option error. yt-dlp older than 2023.03 does not know the print stages.
+        if (result.exitCode() == 2 && result.stdoutTail().isEmpty()) {
+            singleProcessSupported = false;
+            log.warn("yt-dlp does not support single process downloads, falling back to separate metadata and download runs. Update yt-dlp! {}", String.join(" ", result.stderrTail()));
+            return Optional.empty();
+        }
+
+        MusicCacheEntry entry = metadataService.toEntry(metadata, ageGate, result);
+        entry.setUrl(url);
+        entry.setUrlShortened(UrlUtil.shortenURL(url));
+        if (entry.isBlocked()) return Optional.of(entry);
+
+//        Match filter stopped yt-dlp before the download
+        if (entry.getDuration() > maximumDuration) {
+            entry.setBlocked(true);
+            entry.setBlockReason(MusicCacheEntryBlockReason.TOO_LONG);
+            return Optional.of(entry);
+        }
+
+        if (filePath.getPath() == null) {
+            throw new DownloadFailedException(failureReason(result), "No file was downloaded for URL: " + url);
+        }
+
+        entry.setLocalData(createLocalData(new File(filePath.getPath())));
+        return Optional.of(entry);
+    }
+
     private MusicCacheEntry performDownload(MusicCacheEntry entry) {
 //        if it has already been blocked. return.
         if(entry.isBlocked()) return entry;
 
+        YtDlpOutput.DestinationParser destination = new YtDlpOutput.DestinationParser();
+        YtDlpOutput.ContainerCorrectionParser containerCorrection = new YtDlpOutput.ContainerCorrectionParser();
+        ProcessRunner.Result result;
         try {
-            Process process = createDownloadProcess(entry.getUrl()).start();
-            AbstractMap.SimpleEntry<ArrayList<String>, ArrayList<String>> output = ProcessOutputUtil.handleProcessOutput(process);
-            process.waitFor();
+            result = run(createDownloadProcess(entry.getUrl()), entry.getUrl(), entry::getDuration, destination, containerCorrection);
+        } catch (DownloadCancelledException e) {
+            deletePartialFiles(destination.getPath());
+            throw e;
+        }
 
-            var downloadResult = parseDownloadOutput(output);
-            entry.setLocalData(downloadResult.getKey());
+        if (result.timedOut()) {
+            deletePartialFiles(destination.getPath());
+            throw new DownloadFailedException(failureReason(result), "Download timed out for URL: " + entry.getUrl());
+        }
+        if (destination.getPath() == null) {
+            throw new DownloadFailedException(failureReason(result), "Failed to parse download output");
+        }
+        entry.setLocalData(createLocalData(new File(destination.getPath())));
 
-            if (downloadResult.getValue()) {
-                log.info("[{}] Waiting for container correcting to finish!", entry.getUrlShortened());
-                fileWatchService.waitForFile(downloadResult.getKey().getFullPath()).get();
+        if (containerCorrection.isCorrecting()) {
+            log.info("[{}] Waiting for container correcting to finish!", entry.getUrlShortened());
+            try {
+                fileWatchService.waitForFile(entry.getLocalData().getFullPath()).get();
+            } catch (InterruptedException e) {
+//                Song is downloaded already and stays cached, whoever cancelled will not queue it
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+//                File is there, only waiting for the container fix failed
+                log.error("[{}] Waiting for container correcting failed", entry.getUrlShortened(), e);
             }
-
-        } catch (Exception e) {
-            log.error("[{}] Download failed", entry.getUrlShortened(), e);
         }
 
         return entry;
     }
 
+//    work is read once the run is over, see ExtractorLimiter.Permit#release
+    private ProcessRunner.Result run(ProcessBuilder builder, String url, DoubleSupplier work, ProcessRunner.LineParser... parsers) {
+        YtDlpOutput.ProgressParser progress = new YtDlpOutput.ProgressParser();
+        ProcessRunner.LineParser[] all = Arrays.copyOf(parsers, parsers.length + 1);
+        all[parsers.length] = progress;
+        ExtractorLimiter.Permit permit = null;
+        try {
+            permit = limiter.acquire(ExtractorLimiter.Kind.DOWNLOAD);
+            Duration timeout = Duration.ofSeconds(Math.max(1, config.getDownload().getDownloadTimeoutSeconds()));
+            ProcessRunner.Result result = ProcessRunner.run(builder, timeout, all);
+            permit.release(result, work.getAsDouble());
+            log.trace("yt-dlp finished with exit code {} at {}% for {}", result.exitCode(), progress.getPercent(), url);
+            return result;
+        } catch (InterruptedException e) {
+            log.debug("Download cancelled at {}% for {}", progress.getPercent(), url);
+            throw new DownloadCancelledException("Cancelled while downloading URL: " + url, e);
+        } catch (IOException e) {
+            throw new DownloadFailedException(DownloadFailureReason.UNKNOWN, "Failed to start yt-dlp for URL: " + url, e);
+        } finally {
+            if (permit != null) permit.release();
+        }
+    }
+
+    private static double durationOf(YtDlpOutput.MetadataParser metadata) {
+        if (metadata.getData() == null || !(metadata.getData().get("duration") instanceof Number duration)) return Double.NaN;
+        return duration.doubleValue();
+    }
+
+    private static DownloadFailureReason failureReason(ProcessRunner.Result result) {
+        return result.timedOut() ? DownloadFailureReason.NETWORK : DownloadFailureReason.classify(result.stderrTail());
+    }
+
+//    yt-dlp writes to <file>.part and renames it once done. Fragmented downloads add .part-FragN files and a .ytdl
+//    state file. The destination itself only exists once it is complete.
+    private static boolean isPartialFile(String name) {
+        return name.endsWith(".part") || name.contains(".part-Frag") || name.endsWith(".ytdl");
+    }
+
+//    Container fix of an interrupted run also leaves <name>.temp.<ext> behind
+    private static void deletePartialFiles(String destination) {
+        if (destination == null) return;
+
+        Path file = Path.of(destination).toAbsolutePath();
+        String name = file.getFileName().toString();
+        String temp = name.replaceFirst("([.][^.]+)$", ".temp$1");
+        DirectoryStream.Filter<Path> filter = candidate -> {
+            String candidateName = candidate.getFileName().toString();
+            return candidateName.startsWith(name + ".part") || candidateName.equals(name + ".ytdl") || candidateName.equals(temp);
+        };
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(file.getParent(), filter)) {
+            for (Path partial : files) {
+                Files.deleteIfExists(partial);
+                log.debug("Deleted partial download {}", partial);
+            }
+        } catch (IOException e) {
+            log.warn("Could not delete partial downloads of {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        if (!Files.exists(directory)) return;
+
+//        Deepest paths first so directories are empty by the time they are deleted
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            log.warn("Could not delete partial downloads in {}: {}", directory, e.getMessage());
+        }
+    }
+
+    /**
+     * Metadata is printed right after extraction, before the duration filter runs, so songs that are too long still
+     * get their title. The file path is printed once post-processing (container fix) is done. {@code --print} makes
+     * yt-dlp quiet, errors are still written to STDERR. Intermediate files go to {@code partialDirectory} and only the
+     * finished file is moved to the download directory.
+     */
+    private ProcessBuilder createSingleProcess(String url, int maximumDuration, Path partialDirectory) {
+        List<String> command = new ArrayList<>(List.of(
+                "yt-dlp",
+                "--no-simulate",
+                "--print", "pre_process:" + MetadataService.METADATA_TEMPLATE,
+                "--print", "after_move:filepath",
+//                Unknown duration and live streams are not downloaded, toEntry refuses them like in the two run mode
+                "--match-filter", "duration <= " + maximumDuration + " & !is_live",
+                "-f", "bestaudio[ext=m4a]/bestaudio[ext=mp3]",
+                "--audio-format", "mp3",
+                "-P", FILE_CACHE_LOCATION,
+                "-P", "temp:" + partialDirectory,
+                "-o", "%(title)s.%(ext)s"
+        ));
+        if (!config.getCookiesFromBrowser().equals(CookiesFromBrowser.NONE)) {
+            command.add("--cookies-from-browser");
+            command.add(config.getCookiesFromBrowser().getName());
+        }
+        command.add(url);
+        return new ProcessBuilder(command);
+    }
+
     private ProcessBuilder createDownloadProcess(String url) {
         if (config.getCookiesFromBrowser().equals(CookiesFromBrowser.NONE)) {
             return new ProcessBuilder(
@@ -104,34 +310,8 @@ public class DownloadService {
         }
     }
 
-    private AbstractMap.SimpleEntry<MusicCacheEntry.LocalData, Boolean> parseDownloadOutput(
-            AbstractMap.SimpleEntry<ArrayList<String>, ArrayList<String>> processOutput
-    ) {
-        String destinationPath = null;
-        boolean correctingContainer = false;
-
-        for (List<String> lines : Arrays.asList(processOutput.getKey(), processOutput.getValue())) {
-            for (String str : lines) {
-                String strLower = str.toLowerCase();
-                if (strLower.contains("correcting container")) {
-                    correctingContainer = true;
-                }
-                if (strLower.contains("destination:")) {
-                    int destinationIndex = strLower.indexOf("destination:");
-                    String pathCandidate = str.substring(destinationIndex + "destination:".length()).trim();
-                    if (!pathCandidate.endsWith(File.separator)) {
-                        destinationPath = pathCandidate;
-                    }
-                }
-            }
-        }
-
-        if (destinationPath == null) {
-            throw new RuntimeException("Failed to parse download output");
-        }
-
-        File file = new File(destinationPath);
-        MusicCacheEntry.LocalData localData = new MusicCacheEntry.LocalData(
+    private MusicCacheEntry.LocalData createLocalData(File file) {
+        return new MusicCacheEntry.LocalData(
                 file.getAbsolutePath(),
                 file.getName().replaceFirst("[.][^.]+$", ""),
                 getFileExtension(file),
@@ -139,8 +319,6 @@ public class DownloadService {
                 System.currentTimeMillis(),
                 0L
         );
-
-        return new AbstractMap.SimpleEntry<>(localData, correctingContainer);
     }
 
     private String getFileExtension(File file) {
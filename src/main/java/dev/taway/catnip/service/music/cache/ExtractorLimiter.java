@@ -0,0 +1,230 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.DownloadFailureReason;
+import dev.taway.catnip.service.music.util.ProcessRunner;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many yt-dlp processes run at once. The limit adapts to how long runs take (AIMD): every run that finishes
+ * about as fast as the best runs seen raises it a little, a run that takes much longer than that, times out or gets
+ * rate limited cuts it. Catnip shares the machine with the stream, so more yt-dlp runs than the machine and the
+ * connection handle only slow everything down.
+ * <br>
+ * Metadata lookups are short and someone is waiting for their answer, they always get the next free slot before any
+ * download.
+ * <br>
+ * Download latency is compared per second of audio, a long song is expected to take longer.
+ */
+@Service
+public class ExtractorLimiter {
+    private static final Logger log = LogManager.getLogger(ExtractorLimiter.class);
+//    Runs slower than this many times the baseline count as overload
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double DECREASE_RATIO = 0.7;
+//    Baseline drops to faster runs right away but follows slower ones only slowly, the network can get slower for good
+    private static final double BASELINE_DRIFT = 0.05;
+    private static final double AVERAGE_WEIGHT = 0.2;
+
+    /**
+     * What a yt-dlp run is for. Metadata goes first.
+     */
+    public enum Kind {
+        METADATA(3),
+        DOWNLOAD(30);
+
+//        Assumed duration until the first run was measured
+        private final double initialSeconds;
+
+        Kind(double initialSeconds) {
+            this.initialSeconds = initialSeconds;
+        }
+    }
+
+    private final int minimum;
+    private final int maximum;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition metadataTurn = lock.newCondition();
+    private final Condition downloadTurn = lock.newCondition();
+    private double limit;
+    private int inFlight = 0;
+    private int metadataWaiting = 0;
+//    Indexed by Kind ordinal. Baseline is per unit of work, average is the whole run.
+    private final double[] baselineSeconds = {Double.NaN, Double.NaN};
+    private final double[] averageSeconds = {Kind.METADATA.initialSeconds, Kind.DOWNLOAD.initialSeconds};
+
+    @Autowired
+    public ExtractorLimiter(CatnipConfig config) {
+        CatnipConfig.Download download = config.getDownload();
+        this.minimum = Math.max(1, download.getMinimumConcurrency());
+        this.maximum = Math.max(minimum, download.getMaximumConcurrency());
+        this.limit = Math.clamp(download.getWorkerThreads(), minimum, maximum);
+    }
+
+    /**
+     * A slot for one yt-dlp run. Must be released exactly once, further calls are ignored.
+     */
+    public final class Permit {
+        private final Kind kind;
+        private final long startNanos = System.nanoTime();
+        private boolean released = false;
+
+        private Permit(Kind kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * Releases the slot and adjusts the limit by how the run went.
+         *
+         * @param result Outcome of the run
+         * @param work   Work done by the run, seconds of audio for downloads. Latency is compared per unit of work.
+         *               NaN if the run did nothing comparable, e.g. a download skipped by the duration filter.
+         */
+        public void release(ProcessRunner.Result result, double work) {
+            double seconds = (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+            boolean dropped = result.timedOut();
+            if (!dropped && result.exitCode() != 0 && !result.stopped()) {
+                DownloadFailureReason reason = DownloadFailureReason.classify(result.stderrTail());
+                dropped = reason == DownloadFailureReason.RATE_LIMITED || reason == DownloadFailureReason.NETWORK;
+            }
+            finish(this, dropped || Double.isNaN(work) ? Double.NaN : seconds, Math.max(1, work), dropped);
+        }
+
+        /**
+         * Releases the slot without adjusting the limit, e.g. when the run was cancelled or never started.
+         */
+        public void release() {
+            finish(this, Double.NaN, 1, false);
+        }
+    }
+
+    /**
+     * Waits for a free slot. Metadata lookups are let in before downloads.
+     *
+     * @param kind What the run is for
+     * @return Permit to release once the run is over
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public Permit acquire(Kind kind) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (kind == Kind.METADATA) {
+                metadataWaiting++;
+                try {
+                    while (inFlight >= currentLimit()) metadataTurn.await();
+                } finally {
+                    metadataWaiting--;
+//                    Downloads held back for this lookup may go now
+                    if (metadataWaiting == 0) downloadTurn.signalAll();
+                }
+            } else {
+                while (inFlight >= currentLimit() || metadataWaiting > 0) downloadTurn.await();
+            }
+            inFlight++;
+            return new Permit(kind);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimates how long it takes until the given number of downloads are done at the current limit.
+     *
+     * @param downloads Downloads waiting or running
+     * @return Estimate in seconds
+     */
+    public double estimateSeconds(int downloads) {
+        lock.lock();
+        try {
+            return Math.ceil((double) downloads / currentLimit()) * averageSeconds[Kind.DOWNLOAD.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of yt-dlp runs allowed at once right now
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return currentLimit();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Most yt-dlp runs the limit can ever allow at once
+     */
+    public int getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return Number of yt-dlp runs going on right now
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int currentLimit() {
+        return (int) limit;
+    }
+
+//    seconds is NaN if the run tells nothing about latency
+    private void finish(Permit permit, double seconds, double work, boolean dropped) {
+        lock.lock();
+        try {
+            if (permit.released) return;
+            permit.released = true;
+            inFlight--;
+
+            int previous = currentLimit();
+            if (dropped) {
+                limit = Math.max(minimum, limit * DECREASE_RATIO);
+            } else if (!Double.isNaN(seconds)) {
+                int index = permit.kind.ordinal();
+                averageSeconds[index] += (seconds - averageSeconds[index]) * AVERAGE_WEIGHT;
+
+                double perWork = seconds / work;
+                double baseline = baselineSeconds[index];
+                if (Double.isNaN(baseline) || perWork < baseline) {
+                    baselineSeconds[index] = perWork;
+                } else {
+                    baselineSeconds[index] = baseline + (perWork - baseline) * BASELINE_DRIFT;
+                }
+
+                if (!Double.isNaN(baseline) && perWork > baseline * LATENCY_TOLERANCE) {
+                    limit = Math.max(minimum, limit * DECREASE_RATIO);
+                } else {
+//                    Grows by one once a whole limit's worth of runs went fine
+                    limit = Math.min(maximum, limit + 1 / limit);
+                }
+            }
+            if (currentLimit() != previous) {
+                log.debug("yt-dlp concurrency limit changed from {} to {}", previous, currentLimit());
+            }
+
+            if (metadataWaiting > 0) {
+                metadataTurn.signalAll();
+            } else {
+                downloadTurn.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
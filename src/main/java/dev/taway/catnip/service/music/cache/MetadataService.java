@@ -1,30 +1,33 @@
 package dev.taway.catnip.service.music.cache;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.taway.catnip.config.CatnipConfig;
 import dev.taway.catnip.config.CookiesFromBrowser;
 import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.DownloadFailureReason;
 import dev.taway.catnip.data.music.MusicCacheEntryBlockReason;
-import dev.taway.catnip.service.music.util.ProcessOutputUtil;
+import dev.taway.catnip.service.music.util.ProcessRunner;
+import dev.taway.catnip.service.music.util.YtDlpOutput;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.AbstractMap;
-import java.util.ArrayList;
+import java.time.Duration;
 import java.util.Map;
 
 @Service
 public class MetadataService {
 
     private static final Logger log = LogManager.getLogger(MetadataService.class);
+//    yt-dlp --print template producing one JSON line. Also used by the single process download.
+    static final String METADATA_TEMPLATE = "{\\\"title\\\": %(title)j, \\\"channel\\\": %(channel,uploader)j, \\\"duration\\\": %(duration)j, \\\"is_live\\\": %(is_live)j}";
     private CatnipConfig config;
+    private final ExtractorLimiter limiter;
 
     @Autowired
-    public MetadataService(CatnipConfig config) {
+    public MetadataService(CatnipConfig config, ExtractorLimiter limiter) {
         this.config = config;
+        this.limiter = limiter;
     }
 
     /**
@@ -33,16 +36,29 @@ public class MetadataService {
      *
      * @param url The URL of the media for which metadata is to be fetched.
      * @return A MusicCacheEntry object containing the extracted metadata.
-     * @throws RuntimeException If the metadata retrieval or parsing fails.
+     * @throws DownloadFailedException    If the metadata retrieval or parsing fails. The reason is classified from
+     *                                    yt-dlp's error output.
+     * @throws DownloadCancelledException If the thread was interrupted. yt-dlp is killed.
      */
     public MusicCacheEntry fetchMetadata(String url) {
+        YtDlpOutput.MetadataParser metadata = new YtDlpOutput.MetadataParser();
+        YtDlpOutput.AgeGateParser ageGate = new YtDlpOutput.AgeGateParser();
+        ExtractorLimiter.Permit permit = null;
         try {
-            Process process = createMetadataProcess(url).start();
-            AbstractMap.SimpleEntry<ArrayList<String>, ArrayList<String>> output = ProcessOutputUtil.handleProcessOutput(process);
-            process.waitFor();
-            return parseMetadata(output);
+            permit = limiter.acquire(ExtractorLimiter.Kind.METADATA);
+            Duration timeout = Duration.ofSeconds(Math.max(1, config.getDownload().getMetadataTimeoutSeconds()));
+            ProcessRunner.Result result = ProcessRunner.run(createMetadataProcess(url), timeout, metadata, ageGate);
+            permit.release(result, 1);
+            return toEntry(metadata, ageGate, result);
+        } catch (DownloadFailedException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DownloadCancelledException("Cancelled while retrieving metadata for URL: " + url, e);
         } catch (Exception e) {
-            throw new RuntimeException("Failed to retrieve metadata for URL: " + url, e);
+            throw new DownloadFailedException(DownloadFailureReason.UNKNOWN, "Failed to retrieve metadata for URL: " + url, e);
+        } finally {
+            if (permit != null) permit.release();
         }
     }
 
@@ -50,13 +66,13 @@ public class MetadataService {
         if (config.getCookiesFromBrowser().equals(CookiesFromBrowser.NONE)) {
             return new ProcessBuilder(
                     "yt-dlp",
-                    "--print", "{\\\"title\\\": %(title)j, \\\"channel\\\": %(channel)j, \\\"duration\\\": %(duration)j}",
+                    "--print", METADATA_TEMPLATE,
                     url
             );
         } else {
             return new ProcessBuilder(
                     "yt-dlp",
-                    "--print", "{\\\"title\\\": %(title)j, \\\"channel\\\": %(channel)j, \\\"duration\\\": %(duration)j}",
+                    "--print", METADATA_TEMPLATE,
                     "--cookies-from-browser",
                     config.getCookiesFromBrowser().getName(),
                     url
@@ -64,44 +80,38 @@ public class MetadataService {
         }
     }
 
-    private MusicCacheEntry parseMetadata(AbstractMap.SimpleEntry<ArrayList<String>, ArrayList<String>> processOutput) {
-        ObjectMapper mapper = new ObjectMapper();
-        Map<String, Object> data = null;
-
-        MusicCacheEntry entry = new MusicCacheEntry();
-
-        for (String str : processOutput.getKey()) {
-            if (str.contains("Sign in to confirm your age")) {
-                return getAgeRestrictedEntry();
-            }
-
-            try {
-                data = mapper.readValue(str, Map.class);
-                if (data.containsKey("title")) break;
-            } catch (JsonProcessingException ignored) {
-            }
+    /**
+     * Builds the entry from what the parsers found in a yt-dlp run that printed {@link #METADATA_TEMPLATE}.
+     *
+     * @param metadata Parser that looked for the metadata line
+     * @param ageGate  Parser that looked for the age gate
+     * @param result   Outcome of the run
+     * @return Entry with title, artist and duration, or a blocked entry if the video is age restricted
+     * @throws DownloadFailedException If no metadata was printed, a field is missing or the video is a live stream
+     */
+    MusicCacheEntry toEntry(YtDlpOutput.MetadataParser metadata, YtDlpOutput.AgeGateParser ageGate, ProcessRunner.Result result) {
+        if (ageGate.isDetected()) {
+            return getAgeRestrictedEntry();
         }
 
-        if (data == null || !data.containsKey("title")) {
-            for (String str : processOutput.getValue()) {
-                if (str.contains("Sign in to confirm your age")) {
-                    return getAgeRestrictedEntry();
-                }
-                try {
-                    data = mapper.readValue(str, Map.class);
-                    if (data.containsKey("title")) break;
-                } catch (JsonProcessingException ignored) {
-                }
-            }
+        Map<String, Object> data = metadata.getData();
+        if (data == null) {
+            DownloadFailureReason reason = result.timedOut() ? DownloadFailureReason.NETWORK : DownloadFailureReason.classify(result.stderrTail());
+            throw new DownloadFailedException(reason, "Metadata extraction failed");
         }
 
-        if (data == null || !data.containsKey("title")) {
-            throw new RuntimeException("Metadata extraction failed");
+//        Live streams have no duration either, tell them apart so they are refused for longer
+        if (Boolean.TRUE.equals(data.get("is_live"))) {
+            throw new DownloadFailedException(DownloadFailureReason.LIVE_STREAM, "Video is a live stream");
+        }
+        if (data.get("title") == null || data.get("channel") == null || !(data.get("duration") instanceof Number duration)) {
+            throw new DownloadFailedException(DownloadFailureReason.UNKNOWN, "Metadata is incomplete: " + data);
         }
 
+        MusicCacheEntry entry = new MusicCacheEntry();
         entry.setTitle(data.get("title").toString());
         entry.setArtist(data.get("channel").toString());
-        entry.setDuration(Double.parseDouble(data.get("duration").toString()));
+        entry.setDuration(duration.doubleValue());
         return entry;
     }
 
@@ -1,8 +1,16 @@
 package dev.taway.catnip.service.music.cache;
 
 import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.config.MusicCacheStorageFormat;
 import dev.taway.catnip.data.music.MusicCacheEntry;
-import dev.taway.catnip.util.CacheDataHandler;
+import dev.taway.catnip.service.file.DirectoryWatchService;
+import dev.taway.catnip.service.file.PersistenceService;
+import dev.taway.catnip.service.music.cache.storage.BinaryMusicCacheStorage;
+import dev.taway.catnip.service.music.cache.storage.JsonMusicCacheStorage;
+import dev.taway.catnip.service.music.cache.storage.MusicCacheJsonMigrator;
+import dev.taway.catnip.service.music.cache.storage.MusicCacheStorage;
+import dev.taway.catnip.service.music.util.VideoId;
+import dev.taway.catnip.util.LongObjectHashMap;
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
 import org.apache.logging.log4j.LogManager;
@@ -10,28 +18,82 @@ import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * In-memory music cache. Entries are indexed by their packed video ID for lookups and by title and artist words for
+ * {@link #search(String, int)}. Lookups and searches only take the read lock, so they run concurrently with each other
+ * and are only held up while the cache is being changed.
+ * <br>
+ * Entries are kept on disk by a {@link MusicCacheStorage} picked with {@code catnip.cache.storageFormat}.
+ * <br>
+ * Song files are checked against the cache once on startup by listing their directories. After that the download
+ * directory is watched and entries are dropped as soon as their file is deleted, so the cache never has to be
+ * rescanned while running.
+ */
 @Service
 public class MusicCacheManagerService {
     private static final String PATH = "/cache/music-cache.json";
+    private static final String BINARY_PATH = "/cache/music-cache.bin";
+    private static final Path DOWNLOAD_DIRECTORY = Path.of(System.getProperty("user.dir") + "/cache/music/download/");
+//    Caches with at least this many entries are validated in parallel
+    private static final int PARALLEL_CLEANUP_THRESHOLD = 2048;
     private static final Logger log = LogManager.getLogger(MusicCacheManagerService.class);
     private final CatnipConfig config;
-    private final CacheDataHandler<MusicCacheEntry> cacheDataHandler;
-    private ArrayList<MusicCacheEntry> cacheEntries = new ArrayList<>();
+    private final MusicCacheStorage storage;
+    private final DirectoryWatchService directoryWatch;
+    private final Consumer<DirectoryWatchService.DirectoryChange> downloadListener = this::onDirectoryChange;
+//    Keyed by the packed video ID (see VideoId), so lookups neither compare strings nor allocate
+    private LongObjectHashMap<MusicCacheEntry> cacheEntries = new LongObjectHashMap<>();
+//    Entries whose shortened URL is not a YouTube video ID. Should stay empty, only searched if the ID can not be packed.
+    private ArrayList<MusicCacheEntry> unindexedEntries = new ArrayList<>();
+    private final MusicCacheSearchIndex searchIndex = new MusicCacheSearchIndex();
+//    Entries with local data keyed by their normalized absolute file path, for matching file deletions
+    private final Map<Path, MusicCacheEntry> entriesByFile = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+//    Sum of LocalData.size of all entries. Kept up to date on add and remove so the disk is never walked.
+    private long diskUsageBytes = 0;
+//    Set while a validation after a watch overflow runs. Overflows during it ask for one more run.
+    private final AtomicBoolean revalidating = new AtomicBoolean(false);
+    private final AtomicBoolean revalidateAgain = new AtomicBoolean(false);
 
     @Autowired
-    public MusicCacheManagerService(CatnipConfig config) {
+    public MusicCacheManagerService(CatnipConfig config, PersistenceService persistence, DirectoryWatchService directoryWatch) {
         this.config = config;
-        this.cacheDataHandler = new CacheDataHandler<>(MusicCacheEntry.class);
+        this.directoryWatch = directoryWatch;
+        this.storage = persistence.register(config.getCache().getStorageFormat() == MusicCacheStorageFormat.BINARY
+                ? new BinaryMusicCacheStorage(Path.of(System.getProperty("user.dir") + BINARY_PATH))
+                : new JsonMusicCacheStorage(PATH, this::getEntries));
     }
 
     @PostConstruct
     public void init() {
         loadCache();
         cleanupCache();
+
+        try {
+            directoryWatch.watch(DOWNLOAD_DIRECTORY, downloadListener);
+        } catch (IOException e) {
+            log.error("Could not watch music download directory! Deleted songs stay cached until restart. {}", e.getMessage());
+        }
     }
 
     /**
@@ -39,15 +101,41 @@ public class MusicCacheManagerService {
      * If the file does not exist or is empty, the cache will remain empty.
      */
     public void loadCache() {
-        cacheEntries = cacheDataHandler.load(PATH);
+        if (storage instanceof BinaryMusicCacheStorage) {
+            MusicCacheJsonMigrator.migrate(PATH, Path.of(storage.getPath()));
+        }
+        List<MusicCacheEntry> loaded = storage.load();
+        Set<MusicCacheEntry> measured = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (MusicCacheEntry entry : loaded) {
+            if (measure(entry)) measured.add(entry);
+        }
+
+        lock.writeLock().lock();
+        try {
+            cacheEntries = new LongObjectHashMap<>(loaded.size());
+            unindexedEntries = new ArrayList<>();
+            searchIndex.clear();
+            entriesByFile.clear();
+            diskUsageBytes = 0;
+            for (MusicCacheEntry entry : loaded) {
+//                Loaded entries are already stored, only duplicates and new sizes are written back
+                if (!indexLocked(entry)) {
+                    storage.remove(entry);
+                } else if (measured.contains(entry)) {
+                    storage.put(entry);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Saves the current in-memory music cache entries to the specified file on disk.
-     * This ensures persistence of the cache data across application restarts.
+     * Saves the current in-memory music cache entries to the specified file on disk right away.
+     * Changes are also saved in the background shortly after they are made, this is only needed on shutdown.
      */
     public void saveCache() {
-        cacheDataHandler.save(PATH, cacheEntries);
+        storage.flush();
     }
 
     /**
@@ -57,18 +145,108 @@ public class MusicCacheManagerService {
      * @return An Optional containing the MusicCacheEntry if found, or an empty Optional if not found.
      */
     public Optional<MusicCacheEntry> getEntry(String urlShortened) {
-        return cacheEntries.stream()
-                .filter(entry -> entry.getUrlShortened().equals(urlShortened))
-                .findFirst();
+        lock.readLock().lock();
+        try {
+            return getEntryLocked(urlShortened);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Adds a new MusicCacheEntry to the cache.
+     * Searches cached songs by title and artist. Every word of the query has to match the start of a word in the
+     * title or artist. Blocked songs and songs without a local file are not returned.
+     *
+     * @param query Search text, e.g. {@code "never gonna"}
+     * @param limit Maximum number of results
+     * @return Matching entries, best match first
+     */
+    public List<MusicCacheEntry> search(String query, int limit) {
+        lock.readLock().lock();
+        try {
+//            Ask for a few more than needed, unplayable entries are dropped afterwards
+            return searchIndex.search(query, limit + 8).stream()
+                    .filter(entry -> !entry.isBlocked() && entry.getLocalData() != null)
+                    .limit(limit)
+                    .toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a new MusicCacheEntry to the cache. Entries whose shortened URL is already cached are ignored.
      *
      * @param entry The MusicCacheEntry to be added to the cache.
      */
     public void addEntry(MusicCacheEntry entry) {
-        cacheEntries.add(entry);
+        measure(entry);
+
+        lock.writeLock().lock();
+        try {
+            if (indexLocked(entry)) storage.put(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of entries in the cache.
+     */
+    public int getEntryCount() {
+        lock.readLock().lock();
+        try {
+            return cacheEntries.size() + unindexedEntries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Total size of all cached song files in bytes.
+     */
+    public long getDiskUsageBytes() {
+        lock.readLock().lock();
+        try {
+            return diskUsageBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records that playback of the song started: updates its last played timestamp and play count.
+     *
+     * @param urlShortened Shortened URL (video ID) of the song
+     * @return The updated entry, or empty if the song is not cached
+     */
+    public Optional<MusicCacheEntry> markPlayed(String urlShortened) {
+        lock.writeLock().lock();
+        try {
+            Optional<MusicCacheEntry> entry = getEntryLocked(urlShortened);
+            entry.map(MusicCacheEntry::getLocalData).ifPresent(localData -> {
+                localData.setLastPlayedTimestamp(System.currentTimeMillis());
+                localData.setPlayCount(localData.getPlayCount() + 1);
+                storage.put(entry.get());
+            });
+            return entry;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Copy of all cache entries, in no particular order.
+     */
+    public List<MusicCacheEntry> getEntries() {
+        lock.readLock().lock();
+        try {
+            List<MusicCacheEntry> entries = cacheEntries.values();
+            entries.addAll(unindexedEntries);
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -77,7 +255,23 @@ public class MusicCacheManagerService {
      * @param entry The MusicCacheEntry to be removed from the cache.
      */
     public void removeEntry(MusicCacheEntry entry) {
-        cacheEntries.remove(entry);
+        lock.writeLock().lock();
+        try {
+            if (VideoId.isValid(entry.getUrlShortened())) {
+                long key = VideoId.encode(entry.getUrlShortened());
+                if (cacheEntries.get(key) != entry) return;
+                cacheEntries.remove(key);
+            } else if (!unindexedEntries.removeIf(e -> e == entry)) {
+                return;
+            }
+            searchIndex.remove(entry);
+            Path file = fileOf(entry);
+            if (file != null) entriesByFile.remove(file, entry);
+            diskUsageBytes -= sizeOf(entry);
+            storage.remove(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -85,39 +279,159 @@ public class MusicCacheManagerService {
      * Invalid entries include:
      * - Blocked entries without local data.
      * - Entries where the local file no longer exists on disk.
-     * Logs the number of entries removed during the cleanup process.
+     * Every directory holding songs is listed once and the listing is compared with the entries, large caches are
+     * checked in parallel. Logs the number of entries removed during the cleanup process.
      */
     public void cleanupCache() {
-        int cleanupCount = 0;
-        ArrayList<MusicCacheEntry> validEntries = new ArrayList<>();
+        List<MusicCacheEntry> entries = getEntries();
+        boolean parallel = entries.size() >= PARALLEL_CLEANUP_THRESHOLD;
 
-        for (MusicCacheEntry entry : cacheEntries) {
-            boolean isValid = true;
+        Set<Path> directories = entries.stream()
+                .map(MusicCacheManagerService::fileOf)
+                .filter(file -> file != null && file.getParent() != null)
+                .map(Path::getParent)
+                .collect(Collectors.toSet());
+        Map<Path, Set<Path>> listings = new ConcurrentHashMap<>();
+        (parallel ? directories.parallelStream() : directories.stream()).forEach(directory -> {
+            Set<Path> listing = listDirectory(directory);
+            if (listing != null) listings.put(directory, listing);
+        });
 
-            if (!entry.isBlocked() && entry.getLocalData() == null) {
-                isValid = false;
-            }
+        List<MusicCacheEntry> invalidEntries = (parallel ? entries.parallelStream() : entries.stream())
+                .filter(entry -> !isValid(entry, listings))
+                .toList();
 
-            if (entry.getLocalData() != null && !new File(entry.getLocalData().getFullPath()).exists()) {
-                isValid = false;
-            }
+        if (!invalidEntries.isEmpty()) {
+            invalidEntries.forEach(this::removeEntry);
+            log.debug("Removed {} invalid entries from music cache!", invalidEntries.size());
+        }
+    }
 
-            if (isValid) {
-                validEntries.add(entry);
-            } else {
-                cleanupCount++;
+    private void onDirectoryChange(DirectoryWatchService.DirectoryChange change) {
+        if (change.type() == DirectoryWatchService.ChangeType.OVERFLOW) {
+//            Some deletions may have been missed
+            startRevalidation();
+            return;
+        }
+        if (change.type() != DirectoryWatchService.ChangeType.DELETED) return;
+
+        MusicCacheEntry entry;
+        lock.readLock().lock();
+        try {
+            entry = entriesByFile.get(change.file());
+        } finally {
+            lock.readLock().unlock();
+        }
+//        Replacing a file can report a delete for a file that is back already
+        if (entry == null || Files.exists(change.file())) return;
+
+        removeEntry(entry);
+        log.info("[{}] Song file was deleted, removed from cache: {}", entry.getUrlShortened(), change.file().getFileName());
+    }
+
+//    Lists every song directory, far too slow for the watcher or the shared scheduler. Overflows come in bursts, they
+//    are coalesced into one run at a time on its own thread.
+    private void startRevalidation() {
+        revalidateAgain.set(true);
+        if (!revalidating.compareAndSet(false, true)) return;
+
+        Thread.ofVirtual().name("catnip-cache-validation").start(() -> {
+            try {
+                while (revalidateAgain.getAndSet(false)) {
+                    cleanupCache();
+                }
+            } catch (RuntimeException e) {
+                log.error("Music cache validation failed", e);
+            } finally {
+                revalidating.set(false);
             }
+//            Overflow right after the last run ended
+            if (revalidateAgain.get()) startRevalidation();
+        });
+    }
+
+    private static boolean isValid(MusicCacheEntry entry, Map<Path, Set<Path>> listings) {
+        if (entry.getLocalData() == null) return entry.isBlocked();
+
+        Path file = fileOf(entry);
+        if (file == null) return false;
+        Set<Path> listing = file.getParent() == null ? null : listings.get(file.getParent());
+//        Directory could not be listed, fall back to checking the file itself
+        if (listing == null) return Files.exists(file);
+        return listing.contains(file);
+    }
+
+//    Null if the directory could not be listed for a reason other than not existing
+    private static Set<Path> listDirectory(Path directory) {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.toAbsolutePath().normalize()).collect(Collectors.toSet());
+        } catch (NoSuchFileException e) {
+            return Set.of();
+        } catch (IOException e) {
+            log.warn("Could not list {}! {}", directory, e.getMessage());
+            return null;
         }
+    }
 
-        if (cleanupCount > 0) {
-            cacheEntries = validEntries;
-            log.debug("Removed {} invalid entries from music cache!", cleanupCount);
+    private static Path fileOf(MusicCacheEntry entry) {
+        MusicCacheEntry.LocalData localData = entry.getLocalData();
+        if (localData == null || localData.getFullPath() == null) return null;
+        try {
+            return Path.of(localData.getFullPath()).toAbsolutePath().normalize();
+        } catch (InvalidPathException e) {
+            return null;
         }
     }
 
+//    Adds the entry to the indexes without storing it. False if its shortened URL is already cached.
+    private boolean indexLocked(MusicCacheEntry entry) {
+        if (entry.getUrlShortened() != null && getEntryLocked(entry.getUrlShortened()).isPresent()) {
+            log.warn("[{}] Song is already cached. Duplicate entry was not added.", entry.getUrlShortened());
+            return false;
+        }
+        if (VideoId.isValid(entry.getUrlShortened())) {
+            cacheEntries.put(VideoId.encode(entry.getUrlShortened()), entry);
+        } else {
+            unindexedEntries.add(entry);
+        }
+        searchIndex.add(entry);
+        Path file = fileOf(entry);
+        if (file != null) entriesByFile.put(file, entry);
+        diskUsageBytes += sizeOf(entry);
+        return true;
+    }
+
+    private Optional<MusicCacheEntry> getEntryLocked(String urlShortened) {
+        if (VideoId.isValid(urlShortened)) {
+            return Optional.ofNullable(cacheEntries.get(VideoId.encode(urlShortened)));
+        }
+        return unindexedEntries.stream()
+                .filter(entry -> urlShortened != null && urlShortened.equals(entry.getUrlShortened()))
+                .findFirst();
+    }
+
+//    Entries cached before sizes were tracked get measured once. True if the size was set.
+    private static boolean measure(MusicCacheEntry entry) {
+        MusicCacheEntry.LocalData localData = entry.getLocalData();
+        if (localData == null || localData.getSize() > 0 || localData.getFullPath() == null) return false;
+        try {
+            localData.setSize(Files.size(Path.of(localData.getFullPath())));
+            return true;
+        } catch (IOException e) {
+//            Missing files are dropped by cleanupCache
+            log.trace("[{}] Could not read file size of {}", entry.getUrlShortened(), localData.getFullPath());
+            return false;
+        }
+    }
+
+    private static long sizeOf(MusicCacheEntry entry) {
+        return entry.getLocalData() == null ? 0 : entry.getLocalData().getSize();
+    }
+
     @PreDestroy
     public void destroy() {
+        directoryWatch.unwatch(DOWNLOAD_DIRECTORY, downloadListener);
         cleanupCache();
-        saveCache();
+        storage.close();
     }
 }
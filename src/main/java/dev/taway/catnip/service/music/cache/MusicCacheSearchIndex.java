@@ -0,0 +1,133 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Inverted index over titles and artists of cached songs. Text is lowercased, stripped of accents and split on
+ * anything that is not a letter or digit. Tokens are kept sorted, so every query word also matches the tokens it is a
+ * prefix of ("nev gon" finds "Never Gonna Give You Up").
+ * <br>
+ * This class is NOT thread safe. Callers are expected to guard it with their own lock.
+ */
+class MusicCacheSearchIndex {
+//    Token -> entries containing it. Entries are compared by identity, MusicCacheEntry equality is by value.
+    private final TreeMap<String, List<MusicCacheEntry>> postings = new TreeMap<>();
+
+    void add(MusicCacheEntry entry) {
+        for (String token : tokensOf(entry)) {
+            List<MusicCacheEntry> entries = postings.computeIfAbsent(token, k -> new ArrayList<>(1));
+            if (!containsIdentity(entries, entry)) entries.add(entry);
+        }
+    }
+
+    void remove(MusicCacheEntry entry) {
+        for (String token : tokensOf(entry)) {
+            List<MusicCacheEntry> entries = postings.get(token);
+            if (entries == null) continue;
+            entries.removeIf(e -> e == entry);
+            if (entries.isEmpty()) postings.remove(token);
+        }
+    }
+
+    void clear() {
+        postings.clear();
+    }
+
+    /**
+     * Finds entries containing every word of the query, as a whole token or a token prefix. Whole token matches rank
+     * higher, ties are broken by title.
+     *
+     * @param query Search text
+     * @param limit Maximum number of results
+     * @return Matching entries, best first
+     */
+    List<MusicCacheEntry> search(String query, int limit) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty() || limit <= 0) return List.of();
+
+        Map<MusicCacheEntry, Integer> scores = null;
+        for (String word : words) {
+            Map<MusicCacheEntry, Integer> matches = new IdentityHashMap<>();
+            SortedMap<String, List<MusicCacheEntry>> range = postings.subMap(word, word + Character.MAX_VALUE);
+            for (Map.Entry<String, List<MusicCacheEntry>> posting : range.entrySet()) {
+                int score = posting.getKey().length() == word.length() ? 2 : 1;
+                for (MusicCacheEntry entry : posting.getValue()) {
+                    matches.merge(entry, score, Math::max);
+                }
+            }
+
+            if (scores == null) {
+                scores = matches;
+            } else {
+//                Every word has to match
+                Map<MusicCacheEntry, Integer> previous = scores;
+                scores = new IdentityHashMap<>();
+                for (Map.Entry<MusicCacheEntry, Integer> match : matches.entrySet()) {
+                    Integer score = previous.get(match.getKey());
+                    if (score != null) scores.put(match.getKey(), score + match.getValue());
+                }
+            }
+            if (scores.isEmpty()) return List.of();
+        }
+
+        Map<MusicCacheEntry, Integer> finalScores = scores;
+        return finalScores.keySet().stream()
+                .sorted(Comparator.<MusicCacheEntry>comparingInt(finalScores::get).reversed()
+                        .thenComparing(entry -> entry.getTitle() == null ? "" : entry.getTitle(), String.CASE_INSENSITIVE_ORDER))
+                .limit(limit)
+                .toList();
+    }
+
+    private static List<String> tokensOf(MusicCacheEntry entry) {
+        List<String> tokens = tokenize(entry.getTitle());
+        tokens.addAll(tokenize(entry.getArtist()));
+        return tokens;
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) return tokens;
+
+//        Decompose accented characters and drop the accents, so "beyonce" finds "Beyoncé"
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) continue;
+
+            if (Character.isLetterOrDigit(c)) {
+                if (start == -1) start = i;
+            } else if (start != -1) {
+                tokens.add(stripMarks(normalized, start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static String stripMarks(String text, int start, int end) {
+        StringBuilder token = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) token.append(c);
+        }
+        return token.toString();
+    }
+
+    private static boolean containsIdentity(List<MusicCacheEntry> entries, MusicCacheEntry entry) {
+        for (MusicCacheEntry e : entries) {
+            if (e == entry) return true;
+        }
+        return false;
+    }
+}
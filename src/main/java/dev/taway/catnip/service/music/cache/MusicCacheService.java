@@ -2,20 +2,37 @@ package dev.taway.catnip.service.music.cache;
 
 import dev.taway.catnip.data.music.MusicCacheEntry;
 import dev.taway.catnip.service.music.util.UrlUtil;
+import dev.taway.catnip.util.SingleFlight;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 @Service
 public class MusicCacheService {
+    private static final Logger log = LogManager.getLogger(MusicCacheService.class);
     private final MusicCacheManagerService cacheManager;
     private final DownloadService downloadService;
+    private final NegativeCacheService negativeCache;
+//    Keyed by shortened URL (video ID). Concurrent requests for the same song share one yt-dlp run.
+    private final SingleFlight<String, MusicCacheEntry> inFlightDownloads = new SingleFlight<>();
+//    Keyed by shortened URL (video ID). Present from the moment a download is submitted until it is over.
+    private final Map<String, DownloadHandle> downloadHandles = new ConcurrentHashMap<>();
 
     @Autowired
-    public MusicCacheService(MusicCacheManagerService cacheManager, DownloadService downloadService) {
+    public MusicCacheService(MusicCacheManagerService cacheManager, DownloadService downloadService, NegativeCacheService negativeCache) {
         this.cacheManager = cacheManager;
         this.downloadService = downloadService;
+        this.negativeCache = negativeCache;
     }
 
     /**
@@ -28,24 +45,190 @@ public class MusicCacheService {
         return cacheManager.getEntry(urlShortened);
     }
 
+    /**
+     * @param urlShortened Shortened URL (video ID)
+     * @return The last failure if the song failed to download recently and must not be tried again yet.
+     */
+    public Optional<NegativeCacheService.Failure> getRecentFailure(String urlShortened) {
+        return negativeCache.check(urlShortened);
+    }
+
+    /**
+     * Searches cached songs by title and artist. Never downloads anything.
+     *
+     * @param query Search text
+     * @param limit Maximum number of results
+     * @return Playable cached songs matching the query, best match first
+     */
+    public List<MusicCacheEntry> search(String query, int limit) {
+        return cacheManager.search(query, limit);
+    }
+
     /**
      * Caches a song by downloading it (if not already cached) and adds its metadata to the cache.
      * If the song is already cached, the existing entry is returned without re-downloading.
+     * Blocks until the song is cached. Failed, cancelled and recently failed downloads are logged, not thrown.
      *
      * @param url The URL of the song to be cached.
-     * @return An Optional containing the MusicCacheEntry for the cached song.
+     * @return An Optional containing the MusicCacheEntry for the cached song, or an empty Optional if it could not be cached.
      */
     public Optional<MusicCacheEntry> cacheSong(String url) {
+        try {
+            return Optional.ofNullable(cacheSongAsync(url, Runnable::run).join());
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            log.warn("[{}] Could not cache song! {}", UrlUtil.shortenURL(url), cause.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Caches a song by downloading it (if not already cached) and adds its metadata to the cache.
+     * If the same song is already being downloaded the returned future is attached to that download
+     * instead of spawning yt-dlp again. Songs that failed recently fail right away with a
+     * {@link DownloadFailedException} holding the earlier reason. A download cancelled through
+     * {@link #cancelDownload(String)} fails with a {@link DownloadCancelledException}.
+     *
+     * @param url      The URL of the song to be cached.
+     * @param executor Executor the download runs on if a new download has to be started.
+     * @return Future completed with the MusicCacheEntry for the cached song.
+     * @throws java.util.concurrent.RejectedExecutionException If a new download is needed and the executor refused it.
+     */
+    public CompletableFuture<MusicCacheEntry> cacheSongAsync(String url, Executor executor) {
         String shortenedUrl = UrlUtil.shortenURL(url);
         Optional<MusicCacheEntry> existing = cacheManager.getEntry(shortenedUrl);
 
         if (existing.isPresent()) {
-            return existing;
+            return CompletableFuture.completedFuture(existing.get());
         }
 
-        MusicCacheEntry newEntry = downloadService.downloadSong(url);
+//        Without a video ID there is nothing to deduplicate on
+        if (shortenedUrl == null) {
+            return CompletableFuture.supplyAsync(() -> download(url, null, new DownloadHandle()), executor);
+        }
+
+        Optional<NegativeCacheService.Failure> failure = negativeCache.check(shortenedUrl);
+        if (failure.isPresent()) {
+            log.debug("[{}] Song failed to download recently. Not trying again for {}s.", shortenedUrl, failure.get().getRetryInSeconds());
+            return CompletableFuture.failedFuture(new DownloadFailedException(failure.get().reason(), "Song failed to download recently"));
+        }
+
+        if (inFlightDownloads.isInFlight(shortenedUrl)) {
+            log.debug("[{}] Song is already being downloaded. Waiting for it instead of downloading again.", shortenedUrl);
+        }
+
+        return inFlightDownloads.execute(shortenedUrl, () -> {
+            DownloadHandle handle = new DownloadHandle();
+            downloadHandles.put(shortenedUrl, handle);
+            try {
+                return CompletableFuture.supplyAsync(() -> download(url, shortenedUrl, handle), executor)
+                        .whenComplete((entry, error) -> downloadHandles.remove(shortenedUrl, handle));
+            } catch (RuntimeException e) {
+                downloadHandles.remove(shortenedUrl, handle);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Cancels the download of a song. A download still waiting for a worker never starts, a running one has yt-dlp
+     * killed and its partial files deleted. Everyone waiting for the song gets a {@link DownloadCancelledException}.
+     *
+     * @param urlShortened Shortened URL (video ID)
+     * @return True if the song was being downloaded.
+     */
+    public boolean cancelDownload(String urlShortened) {
+        DownloadHandle handle = urlShortened == null ? null : downloadHandles.get(urlShortened);
+        if (handle == null) return false;
+
+        log.info("[{}] Cancelling download", urlShortened);
+        handle.cancel();
+        return true;
+    }
+
+    private MusicCacheEntry download(String url, String shortenedUrl, DownloadHandle handle) {
+//        Another download of the same song could have finished between the cache check and this call
+        Optional<MusicCacheEntry> existing = shortenedUrl == null ? Optional.empty() : cacheManager.getEntry(shortenedUrl);
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+
+        MusicCacheEntry newEntry;
+        handle.start(shortenedUrl);
+        try {
+            newEntry = downloadService.downloadSong(url);
+        } catch (DownloadFailedException e) {
+//            Killed yt-dlp can look like any other failure, the song itself is not to blame
+            if (handle.isCancelled()) throw new DownloadCancelledException("Download was cancelled: " + shortenedUrl, e);
+            negativeCache.recordFailure(shortenedUrl, e.getReason());
+            throw e;
+        } finally {
+            handle.finish();
+        }
+        negativeCache.recordSuccess(shortenedUrl);
         cacheManager.addEntry(newEntry);
-        return Optional.of(newEntry);
+        return newEntry;
+    }
+
+    /**
+     * @param urlShortened Shortened URL (video ID)
+     * @return True if the song is currently being downloaded.
+     */
+    public boolean isDownloading(String urlShortened) {
+        return urlShortened != null && inFlightDownloads.isInFlight(urlShortened);
+    }
+
+    /**
+     * Lets one download be cancelled from another thread. Cancelling interrupts the worker running it, which kills
+     * yt-dlp. The interrupt is only delivered between {@link #start(String)} and {@link #finish()}, so it never leaks
+     * into whatever the worker runs next.
+     */
+    private static final class DownloadHandle {
+        private Thread worker;
+        private boolean cancelled = false;
+
+        synchronized void start(String urlShortened) {
+            if (cancelled) throw new DownloadCancelledException("Download was cancelled before it started: " + urlShortened);
+            worker = Thread.currentThread();
+        }
+
+        synchronized void finish() {
+            worker = null;
+//            Cancelled right as the download ended, nothing was left to interrupt
+            if (cancelled) Thread.interrupted();
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (worker != null) worker.interrupt();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return Single-flight registry of running downloads. Exposes how many yt-dlp runs were saved.
+     */
+    public SingleFlight<String, MusicCacheEntry> getInFlightDownloads() {
+        return inFlightDownloads;
+    }
+
+    /**
+     * @return Number of songs in cache.
+     */
+    public int getCacheSize() {
+        return cacheManager.getEntryCount();
+    }
+
+    /**
+     * Removes a single song from the cache without touching its file, e.g. because the file is gone.
+     *
+     * @param entry The MusicCacheEntry to be removed from the cache.
+     */
+    public void removeEntry(MusicCacheEntry entry) {
+        cacheManager.removeEntry(entry);
     }
 
     /**
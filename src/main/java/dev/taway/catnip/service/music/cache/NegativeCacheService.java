@@ -0,0 +1,146 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.DownloadFailureReason;
+import dev.taway.catnip.service.music.util.VideoId;
+import dev.taway.catnip.util.BloomFilter;
+import dev.taway.catnip.util.LongObjectHashMap;
+import jakarta.annotation.PostConstruct;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers songs that failed to download so the same dead link does not start yt-dlp again and again. A failed song
+ * is refused for a backoff that depends on the {@link DownloadFailureReason} and doubles with every further failure,
+ * up to {@code catnip.download.maximumFailureBackoffMinutes}. Songs that stay quiet for as long as their last backoff
+ * are forgotten.
+ * <br>
+ * Lookups go through a {@link BloomFilter} first. Almost every requested song never failed and is answered by the
+ * filter without touching the failure map.
+ */
+@Service
+public class NegativeCacheService {
+    private static final Logger log = LogManager.getLogger(NegativeCacheService.class);
+    private static final int EXPECTED_FAILURES = 1024;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final long PRUNE_INTERVAL_MINUTES = 10;
+
+    private final CatnipConfig config;
+    private final ScheduledExecutorService scheduler;
+//    Keyed by packed video ID. Songs whose ID can not be packed are never remembered.
+    private final LongObjectHashMap<Failure> failures = new LongObjectHashMap<>();
+    private BloomFilter filter = new BloomFilter(EXPECTED_FAILURES, FALSE_POSITIVE_RATE);
+
+    /**
+     * @param reason        Why the last attempt failed
+     * @param attempts      Failed attempts in a row
+     * @param retryAtMillis Time after which the song may be tried again
+     */
+    public record Failure(DownloadFailureReason reason, int attempts, long retryAtMillis) {
+        /**
+         * @return Seconds until the song may be tried again, at least 1
+         */
+        public long getRetryInSeconds() {
+            return Math.max(1, (retryAtMillis - System.currentTimeMillis() + 999) / 1000);
+        }
+    }
+
+    @Autowired
+    public NegativeCacheService(CatnipConfig config, ScheduledExecutorService scheduler) {
+        this.config = config;
+        this.scheduler = scheduler;
+    }
+
+    @PostConstruct
+    public void init() {
+        scheduler.scheduleWithFixedDelay(this::prune, PRUNE_INTERVAL_MINUTES, PRUNE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param urlShortened Shortened URL (video ID)
+     * @return The failure if the song must not be tried again yet
+     */
+    public synchronized Optional<Failure> check(String urlShortened) {
+        if (!VideoId.isValid(urlShortened)) return Optional.empty();
+
+        long key = VideoId.encode(urlShortened);
+        if (!filter.mightContain(key)) return Optional.empty();
+
+        Failure failure = failures.get(key);
+        if (failure == null || failure.retryAtMillis() <= System.currentTimeMillis()) return Optional.empty();
+        return Optional.of(failure);
+    }
+
+    /**
+     * Remembers a failed attempt. The backoff doubles if the song already failed recently.
+     *
+     * @param urlShortened Shortened URL (video ID)
+     * @param reason       Why it failed
+     * @return The recorded failure, or empty if the ID can not be remembered
+     */
+    public synchronized Optional<Failure> recordFailure(String urlShortened, DownloadFailureReason reason) {
+        if (!VideoId.isValid(urlShortened)) return Optional.empty();
+
+        long key = VideoId.encode(urlShortened);
+        Failure previous = failures.get(key);
+        int attempts = previous == null ? 1 : previous.attempts() + 1;
+        long retryAt = System.currentTimeMillis() + backoffMillis(reason, attempts);
+
+        Failure failure = new Failure(reason, attempts, retryAt);
+        failures.put(key, failure);
+        filter.add(key);
+        log.info("[{}] Download failed ({}), refused for {}s. Failures in a row: {}", urlShortened, reason, failure.getRetryInSeconds(), attempts);
+        return Optional.of(failure);
+    }
+
+    /**
+     * Forgets earlier failures of a song that was downloaded after all.
+     *
+     * @param urlShortened Shortened URL (video ID)
+     */
+    public synchronized void recordSuccess(String urlShortened) {
+        if (!VideoId.isValid(urlShortened)) return;
+
+        long key = VideoId.encode(urlShortened);
+        if (filter.mightContain(key)) failures.remove(key);
+    }
+
+    /**
+     * @return Number of remembered failures, including expired ones not pruned yet
+     */
+    public synchronized int size() {
+        return failures.size();
+    }
+
+    private long backoffMillis(DownloadFailureReason reason, int attempts) {
+        long maximum = Math.max(1, config.getDownload().getMaximumFailureBackoffMinutes()) * 60_000L;
+//        Shift capped well before overflow, the maximum applies long before that
+        long backoff = reason.getBaseBackoffSeconds() * 1000L << Math.min(attempts - 1, 20);
+        return Math.min(backoff, maximum);
+    }
+
+//    Drops failures that stayed quiet for as long as their backoff and rebuilds the filter without them
+    private synchronized void prune() {
+        long now = System.currentTimeMillis();
+        List<Long> expired = new ArrayList<>();
+        List<Long> kept = new ArrayList<>();
+        failures.forEach((key, failure) -> {
+            long quietFor = backoffMillis(failure.reason(), failure.attempts());
+            (failure.retryAtMillis() + quietFor < now ? expired : kept).add(key);
+        });
+        if (expired.isEmpty()) return;
+
+        expired.forEach(failures::remove);
+        filter = new BloomFilter(Math.max(EXPECTED_FAILURES, kept.size() * 2), FALSE_POSITIVE_RATE);
+        kept.forEach(filter::add);
+        log.debug("Forgot {} old download failures, {} remembered", expired.size(), kept.size());
+    }
+}
@@ -0,0 +1,270 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.dto.websocket.NextTrackMessage;
+import dev.taway.catnip.service.music.queue.MusicQueueManager;
+import dev.taway.catnip.service.music.queue.MusicQueueService;
+import dev.taway.catnip.websocket.PlaybackStatusHandler;
+import jakarta.annotation.PostConstruct;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the next {@code catnip.queue.lookaheadEntries} queue entries ready to play, so a missing file shows up long
+ * before the transition instead of as dead air. Files of those entries are checked on disk and read once, so they sit
+ * in the page cache when playback switches over. Missing files are downloaded again, due when the entry starts
+ * playing. Entries just past the window are prefetched speculatively while download workers are idle.
+ * <br>
+ * If the next entry can not be downloaded before it starts, the first ready entry behind it takes its place.
+ * Overlays get the next entry over the WebSocket ahead of time so they can preload its audio.
+ * <br>
+ * Refreshes run on the shared scheduler after every queue change and every {@value #REFRESH_INTERVAL_SECONDS}s, files
+ * can disappear without the queue changing.
+ */
+@Service
+public class QueueLookaheadService {
+    private static final Logger log = LogManager.getLogger(QueueLookaheadService.class);
+//    Queue changes come in bursts, one refresh covers them all
+    private static final long REFRESH_DELAY_MILLIS = 200;
+    private static final long REFRESH_INTERVAL_SECONDS = 30;
+//    Served by MusicQueueController
+    private static final String AUDIO_PATH = "/api/music/queue/audio/";
+
+    private final CatnipConfig config;
+    private final MusicQueueManager queueManager;
+    private final MusicQueueService musicQueueService;
+    private final MusicCacheService musicCacheService;
+    private final DownloadScheduler downloadScheduler;
+    private final ExtractorLimiter limiter;
+    private final PlaybackStatusHandler playbackStatusHandler;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+
+//    Only touched on the scheduler thread
+    private final Set<Path> preloaded = new HashSet<>();
+    private final Set<Long> bumped = new HashSet<>();
+    private long announcedHandle = -1;
+    private boolean announcedReady = false;
+
+    @Autowired
+    public QueueLookaheadService(CatnipConfig config, MusicQueueManager queueManager, MusicQueueService musicQueueService, MusicCacheService musicCacheService, DownloadScheduler downloadScheduler, ExtractorLimiter limiter, PlaybackStatusHandler playbackStatusHandler, ScheduledExecutorService scheduler) {
+        this.config = config;
+        this.queueManager = queueManager;
+        this.musicQueueService = musicQueueService;
+        this.musicCacheService = musicCacheService;
+        this.downloadScheduler = downloadScheduler;
+        this.limiter = limiter;
+        this.playbackStatusHandler = playbackStatusHandler;
+        this.scheduler = scheduler;
+
+//        Called with the queue locked, only schedules
+        queueManager.addListener(operation -> scheduleRefresh());
+    }
+
+    @PostConstruct
+    public void init() {
+        if (config.getQueue().getLookaheadEntries() <= 0) return;
+        scheduler.scheduleWithFixedDelay(this::refresh, REFRESH_INTERVAL_SECONDS, REFRESH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void scheduleRefresh() {
+        if (config.getQueue().getLookaheadEntries() <= 0) return;
+        if (refreshPending.compareAndSet(false, true)) {
+            scheduler.schedule(this::refresh, REFRESH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refresh() {
+        refreshPending.set(false);
+        try {
+            int window = config.getQueue().getLookaheadEntries();
+            List<MusicQueueEntry> entries = queueManager.getQueueEntries();
+
+            Set<Path> inWindow = new HashSet<>();
+//            Position 0 is playing already
+            for (int position = 1; position < entries.size() && position <= window * 2; position++) {
+                MusicQueueEntry entry = entries.get(position);
+                boolean speculative = position > window;
+                if (isReady(entry)) {
+                    if (speculative) continue;
+                    Path file = Path.of(entry.getLocalData().getFullPath());
+                    inWindow.add(file);
+                    if (preloaded.add(file)) preload(file);
+                } else {
+                    fetch(entry, speculative);
+                }
+            }
+            preloaded.retainAll(inWindow);
+            bumped.retainAll(entries.stream().map(MusicQueueEntry::getHandle).toList());
+
+            if (!bumpIfLate(entries, window)) announceNext();
+        } catch (RuntimeException e) {
+            log.error("Queue look-ahead failed", e);
+        }
+    }
+
+    private void fetch(MusicQueueEntry entry, boolean speculative) {
+//        Backup playlist songs are local files, nothing to download them from
+        if (entry.isFromBackupPlaylist() || entry.isBlocked() || entry.getUrl() == null) return;
+        String urlShortened = entry.getUrlShortened();
+
+        Optional<MusicCacheEntry> cached = musicCacheService.getMusicCacheEntry(urlShortened);
+        if (cached.isPresent() && isReady(cached.get())) {
+//            Downloaded again in the meantime, e.g. requested by someone else. The change triggers another refresh.
+            queueManager.setLocalData(entry.getHandle(), cached.get().getLocalData());
+            return;
+        }
+        if (cached.isPresent()) {
+//            Cache still lists the lost file, the download would return it as is. Only this entry is dropped, a full
+//            cache validation is far too slow for the shared scheduler.
+            musicCacheService.removeEntry(cached.get());
+        }
+
+        if (musicCacheService.getRecentFailure(urlShortened).isPresent()) {
+            dropUnplayable(entry);
+            return;
+        }
+
+        long handle = entry.getHandle();
+        LongSupplier deadline = () -> musicQueueService.etaOf(handle)
+                .map(startsIn -> System.currentTimeMillis() + (long) (startsIn * 1000))
+                .orElse(Long.MAX_VALUE);
+        if (musicCacheService.isDownloading(urlShortened)) {
+            if (!speculative) downloadScheduler.promote(urlShortened, DownloadScheduler.Urgency.PLAYBACK, handle, deadline);
+            return;
+        }
+
+        Executor executor = speculative
+                ? downloadScheduler.executor(urlShortened, DownloadScheduler.Urgency.SPECULATIVE, deadline, () -> musicCacheService.cancelDownload(urlShortened))
+                : downloadScheduler.executor(urlShortened, DownloadScheduler.Urgency.PLAYBACK, deadline, null);
+        try {
+            musicCacheService.cacheSongAsync(entry.getUrl(), executor)
+                    .whenComplete((downloaded, error) -> scheduler.execute(() -> onFetched(entry, downloaded, error)));
+            log.info("[{}] Queued song {} - {} is not on disk. Downloading it again{}.",
+                    urlShortened,
+                    entry.getArtist(),
+                    entry.getTitle(),
+                    speculative ? " while nothing else is downloading" : ""
+            );
+        } catch (RejectedExecutionException e) {
+//            Tried again on the next refresh
+            log.debug("[{}] Download queue is full, queued song not fetched yet", urlShortened);
+        }
+    }
+
+    private void onFetched(MusicQueueEntry entry, MusicCacheEntry downloaded, Throwable error) {
+        if (downloaded != null && isReady(downloaded)) {
+            if (queueManager.setLocalData(entry.getHandle(), downloaded.getLocalData())) {
+                log.info("[{}] Queued song {} - {} is back on disk", entry.getUrlShortened(), entry.getArtist(), entry.getTitle());
+            }
+            return;
+        }
+
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof DownloadFailedException) {
+            dropUnplayable(entry);
+        } else if (!(cause instanceof DownloadCancelledException)) {
+            log.error("[{}] Could not fetch queued song again", entry.getUrlShortened(), cause);
+        }
+    }
+
+//    Playing it would only be silence
+    private void dropUnplayable(MusicQueueEntry entry) {
+        if (queueManager.getByHandle(entry.getHandle()).isEmpty()) return;
+
+        log.warn("[{}] Queued song {} - {} is not on disk and can not be downloaded. Removed from queue.",
+                entry.getUrlShortened(),
+                entry.getArtist(),
+                entry.getTitle()
+        );
+        musicQueueService.removeFromQueue(entry);
+    }
+
+    /**
+     * Lets the first ready entry play before the next one if the next one can not be downloaded before it starts.
+     * Every entry is bumped at most once, so it can not be pushed back forever.
+     *
+     * @return True if the queue was changed. The change triggers another refresh.
+     */
+    private boolean bumpIfLate(List<MusicQueueEntry> entries, int window) {
+        if (entries.size() < 3) return false;
+
+        MusicQueueEntry next = entries.get(1);
+        if (isReady(next) || next.isFromBackupPlaylist() || bumped.contains(next.getHandle())) return false;
+
+        double startsIn = musicQueueService.etaOf(next.getHandle()).orElse(0.0);
+        if (startsIn >= limiter.estimateSeconds(1)) return false;
+
+        for (int position = 2; position < entries.size() && position <= window; position++) {
+            MusicQueueEntry ready = entries.get(position);
+            if (!isReady(ready)) continue;
+
+            bumped.add(next.getHandle());
+            log.info("[{}] {} - {} will not be downloaded in time, {} - {} plays first",
+                    next.getUrlShortened(),
+                    next.getArtist(),
+                    next.getTitle(),
+                    ready.getArtist(),
+                    ready.getTitle()
+            );
+            return musicQueueService.moveInQueue(ready.getHandle(), 1);
+        }
+        return false;
+    }
+
+    private void announceNext() {
+        Optional<MusicQueueEntry> next = queueManager.get(1);
+        long handle = next.map(MusicQueueEntry::getHandle).orElse(0L);
+        boolean ready = next.map(this::isReady).orElse(false);
+        if (handle == announcedHandle && ready == announcedReady) return;
+
+        announcedHandle = handle;
+        announcedReady = ready;
+        double startsIn = next.flatMap(entry -> musicQueueService.etaOf(entry.getHandle())).orElse(-1.0);
+        playbackStatusHandler.broadcast(new NextTrackMessage(
+                next.orElse(null),
+                startsIn,
+                ready,
+                ready ? AUDIO_PATH + handle : null
+        ));
+    }
+
+//    Reads the file once so the page cache holds it when it starts playing. Disk reads stay off the scheduler.
+    private void preload(Path file) {
+        Thread.ofVirtual().name("catnip-preload").start(() -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                long bytes = in.transferTo(OutputStream.nullOutputStream());
+                log.trace("Preloaded {} bytes of {}", bytes, file);
+            } catch (IOException e) {
+                log.debug("Could not preload {}: {}", file, e.getMessage());
+            }
+        });
+    }
+
+    private boolean isReady(MusicCacheEntry entry) {
+        if (entry.getLocalData() == null || entry.getLocalData().getFullPath() == null) return false;
+        Path file = Path.of(entry.getLocalData().getFullPath());
+        return Files.isRegularFile(file) && file.toFile().length() > 0;
+    }
+}
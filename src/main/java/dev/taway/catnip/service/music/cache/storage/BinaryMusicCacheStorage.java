@@ -0,0 +1,474 @@
+package dev.taway.catnip.service.music.cache.storage;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.MusicCacheEntryBlockReason;
+import dev.taway.catnip.service.music.util.VideoId;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Music cache kept in a memory-mapped file of fixed size records followed by a string heap:
+ * <pre>
+ * | header (64 B) | record 0 | record 1 | ... | unused records | string heap ... |
+ * </pre>
+ * Every record is {@value #RECORD_SIZE} bytes and holds the numeric fields and the packed video ID directly, plus
+ * (offset, length) references to UTF-8 strings in the heap. Fields can be read straight from the mapping without
+ * building an entry, see {@link #getVideoId(int)} and friends.
+ * <br>
+ * The file is append-only: a new or changed entry gets a new record and new strings, the previous record is marked
+ * as a tombstone. Changes cost a few memory writes, {@link #flushIfDirty()} syncs the mapping to disk. When the record
+ * area is full the live entries are copied into a new file (dropping tombstones and dead strings), which replaces the
+ * old one with an atomic rename.
+ * <br>
+ * All methods are synchronized, the persistence thread flushes while the cache changes.
+ */
+public class BinaryMusicCacheStorage implements MusicCacheStorage {
+    private static final Logger log = LogManager.getLogger(BinaryMusicCacheStorage.class);
+//    "CATNIPMC"
+    private static final long MAGIC = 0x4341544E49504D43L;
+    private static final int VERSION = 1;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int HEAP_SLACK = 64 * 1024;
+
+    static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 8;
+    private static final int H_CAPACITY = 12;
+    private static final int H_COUNT = 16;
+    private static final int H_LIVE = 20;
+    private static final int H_HEAP_START = 24;
+    private static final int H_HEAP_END = 32;
+
+    static final int RECORD_SIZE = 128;
+    private static final int R_FLAGS = 0;
+    private static final int R_BLOCK_REASON = 1;
+    private static final int R_PLAY_COUNT = 4;
+    private static final int R_VIDEO_ID = 8;
+    private static final int R_DURATION = 16;
+    private static final int R_DOWNLOADED = 24;
+    private static final int R_LAST_PLAYED = 32;
+    private static final int R_SIZE = 40;
+//    8 string references of (int offset into the heap, int length). Length -1 is null.
+    private static final int R_STRINGS = 48;
+
+    private static final int S_URL = 0;
+//    Only stored if the ID can not be packed into R_VIDEO_ID
+    private static final int S_URL_SHORTENED = 1;
+    private static final int S_TITLE = 2;
+    private static final int S_ARTIST = 3;
+    private static final int S_FULL_PATH = 4;
+    private static final int S_FILENAME = 5;
+    private static final int S_EXTENSION = 6;
+    private static final int S_PATH = 7;
+
+    private static final byte F_LIVE = 1;
+    private static final byte F_BLOCKED = 2;
+    private static final byte F_LOCAL_DATA = 4;
+    private static final byte F_PACKED_ID = 8;
+
+    private final Path file;
+//    Record index of every loaded or stored entry
+    private final Map<MusicCacheEntry, Integer> records = new IdentityHashMap<>();
+
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int count;
+    private int live;
+    private long heapStart;
+    private long heapEnd;
+    private boolean dirty = false;
+
+    /**
+     * @param file Absolute path of the cache file. Created on {@link #load()} if it does not exist.
+     */
+    public BinaryMusicCacheStorage(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Writes a new cache file holding the entries. Used for migration and compaction.
+     *
+     * @param target   File to write, replaced atomically if it exists
+     * @param entries  Entries to store
+     * @param capacity Number of records to reserve, at least the number of entries
+     * @throws IOException If the file could not be written
+     */
+    public static void write(Path target, List<MusicCacheEntry> entries, int capacity) throws IOException {
+        capacity = Math.max(capacity, entries.size());
+        List<byte[][]> strings = new ArrayList<>(entries.size());
+        long heapSize = 0;
+        for (MusicCacheEntry entry : entries) {
+            byte[][] encoded = encodeStrings(entry);
+            for (byte[] bytes : encoded) heapSize += bytes == null ? 0 : bytes.length;
+            strings.add(encoded);
+        }
+
+        long heapStart = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        long size = heapStart + heapSize + HEAP_SLACK;
+        if (size > Integer.MAX_VALUE) throw new IOException("Music cache too large for a single mapping");
+
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = out.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            long heapEnd = heapStart;
+            for (int i = 0; i < entries.size(); i++) {
+                heapEnd = writeRecord(buffer, i, entries.get(i), strings.get(i), heapStart, heapEnd);
+            }
+            writeHeader(buffer, capacity, entries.size(), entries.size(), heapStart, heapEnd);
+            buffer.force();
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public synchronized List<MusicCacheEntry> load() {
+        List<MusicCacheEntry> entries = new ArrayList<>();
+        try {
+            if (!Files.exists(file)) {
+                write(file, entries, INITIAL_CAPACITY);
+            }
+            open();
+
+            for (int i = 0; i < count; i++) {
+                if (!isLive(i)) continue;
+                MusicCacheEntry entry = readEntry(i);
+                records.put(entry, i);
+                entries.add(entry);
+            }
+            log.info("Loaded {} entries from \"{}\" ({} tombstones)", live, file.getFileName(), count - live);
+
+//            Mostly tombstones. Start the next run with a tight file.
+            if (count - live > live && count - live > INITIAL_CAPACITY) {
+                compact(capacity);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Error while reading \"{}\"! Starting with an empty cache. {}", file, e.getMessage());
+            moveAside();
+            records.clear();
+            entries.clear();
+            try {
+                write(file, entries, INITIAL_CAPACITY);
+                open();
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not create music cache file " + file, ex);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized void put(MusicCacheEntry entry) {
+        try {
+//            Stays live until the new record is written, a failed write must not lose the entry
+            Integer previous = records.get(entry);
+
+            if (count == capacity) {
+//                Double only if compaction would not free enough room
+                compact(live * 2 > capacity ? capacity * 2 : capacity);
+//                Compaction copies every entry as it is now, a known entry is stored already
+                if (previous != null) return;
+            }
+
+            byte[][] strings = encodeStrings(entry);
+            long needed = heapEnd;
+            for (byte[] bytes : strings) needed += bytes == null ? 0 : bytes.length;
+            ensureMapped(needed);
+
+            int index = count;
+            heapEnd = writeRecord(map, index, entry, strings, heapStart, heapEnd);
+            count++;
+            live++;
+            records.put(entry, index);
+            if (previous != null) tombstone(previous);
+            writeHeader(map, capacity, count, live, heapStart, heapEnd);
+            dirty = true;
+        } catch (IOException e) {
+            log.error("[{}] Could not store music cache entry in \"{}\"! {}", entry.getUrlShortened(), file.getFileName(), e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void remove(MusicCacheEntry entry) {
+        Integer index = records.remove(entry);
+        if (index == null) return;
+        tombstone(index);
+        writeHeader(map, capacity, count, live, heapStart, heapEnd);
+        dirty = true;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if (map == null) return;
+        map.force();
+        dirty = false;
+    }
+
+    @Override
+    public synchronized boolean flushIfDirty() {
+        if (dirty) flush();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        flush();
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            log.error("Error while closing \"{}\"! {}", file.getFileName(), e.getMessage());
+        }
+    }
+
+    @Override
+    public String getPath() {
+        return file.toString();
+    }
+
+    /**
+     * @return Number of records including tombstones. Valid record indexes are 0 to this - 1.
+     */
+    public synchronized int getRecordCount() {
+        return count;
+    }
+
+    /**
+     * @param record Record index
+     * @return False if the record was replaced or removed
+     */
+    public synchronized boolean isLive(int record) {
+        return (map.get(offset(record) + R_FLAGS) & F_LIVE) != 0;
+    }
+
+    /**
+     * @param record Record index
+     * @return Video ID of the record, null if it has none
+     */
+    public synchronized String getVideoId(int record) {
+        int offset = offset(record);
+        if ((map.get(offset + R_FLAGS) & F_PACKED_ID) != 0) {
+            return VideoId.decode(map.getLong(offset + R_VIDEO_ID));
+        }
+        return readString(offset, S_URL_SHORTENED);
+    }
+
+    /**
+     * @param record Record index
+     * @return Title of the record
+     */
+    public synchronized String getTitle(int record) {
+        return readString(offset(record), S_TITLE);
+    }
+
+    /**
+     * @param record Record index
+     * @return Artist of the record
+     */
+    public synchronized String getArtist(int record) {
+        return readString(offset(record), S_ARTIST);
+    }
+
+    /**
+     * Builds an entry from a record.
+     *
+     * @param record Record index
+     * @return New entry holding the record's data
+     */
+    public synchronized MusicCacheEntry readEntry(int record) {
+        int offset = offset(record);
+        byte flags = map.get(offset + R_FLAGS);
+        byte blockReason = map.get(offset + R_BLOCK_REASON);
+
+        MusicCacheEntry.LocalData localData = null;
+        if ((flags & F_LOCAL_DATA) != 0) {
+            localData = new MusicCacheEntry.LocalData(
+                    readString(offset, S_FULL_PATH),
+                    readString(offset, S_FILENAME),
+                    readString(offset, S_EXTENSION),
+                    readString(offset, S_PATH),
+                    map.getLong(offset + R_DOWNLOADED),
+                    map.getLong(offset + R_LAST_PLAYED)
+            );
+            localData.setPlayCount(map.getInt(offset + R_PLAY_COUNT));
+            localData.setSize(map.getLong(offset + R_SIZE));
+        }
+
+        return new MusicCacheEntry(
+                readString(offset, S_URL),
+                getVideoId(record),
+                readString(offset, S_TITLE),
+                readString(offset, S_ARTIST),
+                map.getDouble(offset + R_DURATION),
+                (flags & F_BLOCKED) != 0,
+                blockReason == 0 ? null : MusicCacheEntryBlockReason.values()[blockReason - 1],
+                localData
+        );
+    }
+
+    private void open() throws IOException {
+        if (channel != null) channel.close();
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) throw new IOException("File is too short");
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+
+        if (map.getLong(H_MAGIC) != MAGIC) throw new IOException("Not a music cache file");
+        if (map.getInt(H_VERSION) != VERSION) throw new IOException("Unsupported music cache file version " + map.getInt(H_VERSION));
+
+        capacity = map.getInt(H_CAPACITY);
+        count = map.getInt(H_COUNT);
+        live = map.getInt(H_LIVE);
+        heapStart = map.getLong(H_HEAP_START);
+        heapEnd = map.getLong(H_HEAP_END);
+        if (count > capacity || heapStart != HEADER_SIZE + (long) capacity * RECORD_SIZE || heapEnd > map.capacity()) {
+            throw new IOException("Music cache file header is inconsistent");
+        }
+    }
+
+//    Copies live entries into a fresh file. Record indexes change, so the index map is rebuilt.
+    private void compact(int newCapacity) throws IOException {
+        List<MusicCacheEntry> entries = new ArrayList<>(records.keySet());
+        entries.sort(Comparator.comparingInt(records::get));
+
+        map.force();
+        write(file, entries, newCapacity);
+        open();
+
+        records.clear();
+        for (int i = 0; i < entries.size(); i++) {
+            records.put(entries.get(i), i);
+        }
+        log.debug("Compacted \"{}\" to {} entries, capacity {}", file.getFileName(), live, capacity);
+    }
+
+    private void ensureMapped(long needed) throws IOException {
+        if (needed <= map.capacity()) return;
+
+        long size = Math.max(needed + HEAP_SLACK, (long) map.capacity() * 2);
+        if (size > Integer.MAX_VALUE) throw new IOException("Music cache too large for a single mapping");
+        map.force();
+//        Mapping past the end grows the file
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void tombstone(int index) {
+        int offset = offset(index);
+        byte flags = map.get(offset + R_FLAGS);
+        if ((flags & F_LIVE) == 0) return;
+        map.put(offset + R_FLAGS, (byte) (flags & ~F_LIVE));
+        live--;
+    }
+
+    private String readString(int recordOffset, int field) {
+        int ref = recordOffset + R_STRINGS + field * 8;
+        int length = map.getInt(ref + 4);
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        map.get((int) (heapStart + map.getInt(ref)), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long writeRecord(MappedByteBuffer buffer, int index, MusicCacheEntry entry, byte[][] strings, long heapStart, long heapEnd) {
+        int offset = offset(index);
+
+//        Strings first, the record only becomes live once everything it points to is in place
+        for (int field = 0; field < strings.length; field++) {
+            int ref = offset + R_STRINGS + field * 8;
+            byte[] bytes = strings[field];
+            if (bytes == null) {
+                buffer.putInt(ref, 0);
+                buffer.putInt(ref + 4, -1);
+                continue;
+            }
+            buffer.put((int) heapEnd, bytes);
+            buffer.putInt(ref, (int) (heapEnd - heapStart));
+            buffer.putInt(ref + 4, bytes.length);
+            heapEnd += bytes.length;
+        }
+
+        boolean packed = VideoId.isValid(entry.getUrlShortened());
+        MusicCacheEntry.LocalData localData = entry.getLocalData();
+        buffer.put(offset + R_BLOCK_REASON, (byte) (entry.getBlockReason() == null ? 0 : entry.getBlockReason().ordinal() + 1));
+        buffer.putInt(offset + R_PLAY_COUNT, localData == null ? 0 : localData.getPlayCount());
+        buffer.putLong(offset + R_VIDEO_ID, packed ? VideoId.encode(entry.getUrlShortened()) : 0);
+        buffer.putDouble(offset + R_DURATION, entry.getDuration());
+        buffer.putLong(offset + R_DOWNLOADED, localData == null ? 0 : localData.getDownloadedTimestamp());
+        buffer.putLong(offset + R_LAST_PLAYED, localData == null ? 0 : localData.getLastPlayedTimestamp());
+        buffer.putLong(offset + R_SIZE, localData == null ? 0 : localData.getSize());
+
+        byte flags = F_LIVE;
+        if (entry.isBlocked()) flags |= F_BLOCKED;
+        if (localData != null) flags |= F_LOCAL_DATA;
+        if (packed) flags |= F_PACKED_ID;
+        buffer.put(offset + R_FLAGS, flags);
+        return heapEnd;
+    }
+
+    private static void writeHeader(MappedByteBuffer buffer, int capacity, int count, int live, long heapStart, long heapEnd) {
+        buffer.putLong(H_MAGIC, MAGIC);
+        buffer.putInt(H_VERSION, VERSION);
+        buffer.putInt(H_CAPACITY, capacity);
+        buffer.putInt(H_COUNT, count);
+        buffer.putInt(H_LIVE, live);
+        buffer.putLong(H_HEAP_START, heapStart);
+        buffer.putLong(H_HEAP_END, heapEnd);
+    }
+
+    private static byte[][] encodeStrings(MusicCacheEntry entry) {
+        MusicCacheEntry.LocalData localData = entry.getLocalData();
+        byte[][] strings = new byte[8][];
+        strings[S_URL] = utf8(entry.getUrl());
+        strings[S_URL_SHORTENED] = VideoId.isValid(entry.getUrlShortened()) ? null : utf8(entry.getUrlShortened());
+        strings[S_TITLE] = utf8(entry.getTitle());
+        strings[S_ARTIST] = utf8(entry.getArtist());
+        if (localData != null) {
+            strings[S_FULL_PATH] = utf8(localData.getFullPath());
+            strings[S_FILENAME] = utf8(localData.getFilename());
+            strings[S_EXTENSION] = utf8(localData.getExtension());
+            strings[S_PATH] = utf8(localData.getPath());
+        }
+        return strings;
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int offset(int record) {
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    private void moveAside() {
+        try {
+            if (channel != null) channel.close();
+            channel = null;
+            if (Files.exists(file)) {
+                Path corrupt = file.resolveSibling(file.getFileName() + ".corrupt");
+                Files.move(file, corrupt, StandardCopyOption.REPLACE_EXISTING);
+                log.warn("Unreadable music cache file moved to \"{}\"", corrupt.getFileName());
+            }
+        } catch (IOException e) {
+            log.error("Could not move unreadable music cache file aside! {}", e.getMessage());
+        }
+    }
+}
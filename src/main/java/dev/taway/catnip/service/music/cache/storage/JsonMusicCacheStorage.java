@@ -0,0 +1,52 @@
+package dev.taway.catnip.service.music.cache.storage;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.util.PersistentStore;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Music cache kept as one JSON array. Every flush rewrites the whole file from a snapshot of the cache.
+ */
+public class JsonMusicCacheStorage implements MusicCacheStorage {
+    private final PersistentStore<MusicCacheEntry> store;
+
+    /**
+     * @param path     Path relative to the working directory
+     * @param snapshot Returns all cache entries. Called on the persistence thread.
+     */
+    public JsonMusicCacheStorage(String path, Supplier<List<MusicCacheEntry>> snapshot) {
+        this.store = new PersistentStore<>(MusicCacheEntry.class, path, snapshot);
+    }
+
+    @Override
+    public List<MusicCacheEntry> load() {
+        return store.load();
+    }
+
+    @Override
+    public void put(MusicCacheEntry entry) {
+        store.markDirty();
+    }
+
+    @Override
+    public void remove(MusicCacheEntry entry) {
+        store.markDirty();
+    }
+
+    @Override
+    public void flush() {
+        store.flush();
+    }
+
+    @Override
+    public boolean flushIfDirty() {
+        return store.flushIfDirty();
+    }
+
+    @Override
+    public String getPath() {
+        return store.getPath();
+    }
+}
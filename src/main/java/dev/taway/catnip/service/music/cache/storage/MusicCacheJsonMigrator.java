@@ -0,0 +1,43 @@
+package dev.taway.catnip.service.music.cache.storage;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.util.CacheDataHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * One-time conversion of the JSON music cache to the binary format. Runs before the binary cache is loaded and does
+ * nothing once the binary file exists. The JSON file is kept as {@code music-cache.json.migrated} so switching back
+ * to {@code JSON} only needs a rename.
+ */
+public class MusicCacheJsonMigrator {
+    private static final Logger log = LogManager.getLogger(MusicCacheJsonMigrator.class);
+
+    /**
+     * @param jsonPath JSON cache path relative to the working directory
+     * @param binary   Absolute path of the binary cache file
+     * @return True if entries were migrated
+     */
+    public static boolean migrate(String jsonPath, Path binary) {
+        Path json = Path.of(System.getProperty("user.dir") + jsonPath);
+        if (Files.exists(binary) || !Files.exists(json)) return false;
+
+        List<MusicCacheEntry> entries = new CacheDataHandler<>(MusicCacheEntry.class).load(jsonPath);
+        try {
+//            Room to grow so the first downloads do not trigger a compaction
+            BinaryMusicCacheStorage.write(binary, entries, Math.max(1024, entries.size() * 2));
+            Files.move(json, json.resolveSibling(json.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            log.info("Migrated {} music cache entries from \"{}\" to \"{}\"", entries.size(), json.getFileName(), binary.getFileName());
+            return true;
+        } catch (IOException e) {
+            log.error("Could not migrate music cache to \"{}\"! {}", binary, e.getMessage());
+            return false;
+        }
+    }
+}
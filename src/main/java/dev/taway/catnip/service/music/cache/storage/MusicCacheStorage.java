@@ -0,0 +1,42 @@
+package dev.taway.catnip.service.music.cache.storage;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.util.BackgroundFlushable;
+
+import java.util.List;
+
+/**
+ * Where the music cache is kept on disk. {@link #put(MusicCacheEntry)} and {@link #remove(MusicCacheEntry)} are called
+ * while the cache is locked and must not block on the disk, durability comes from {@link #flushIfDirty()} on the
+ * persistence thread.
+ */
+public interface MusicCacheStorage extends BackgroundFlushable {
+    /**
+     * @return All stored entries. Entries passed to put/remove later are the same instances.
+     */
+    List<MusicCacheEntry> load();
+
+    /**
+     * Stores a new entry or the changed state of an already stored one.
+     *
+     * @param entry Entry returned by {@link #load()} or newly cached
+     */
+    void put(MusicCacheEntry entry);
+
+    /**
+     * @param entry Entry to forget. Unknown entries are ignored.
+     */
+    void remove(MusicCacheEntry entry);
+
+    /**
+     * Writes everything to disk now.
+     */
+    void flush();
+
+    /**
+     * Flushes and releases the file. Called once on shutdown.
+     */
+    default void close() {
+        flush();
+    }
+}
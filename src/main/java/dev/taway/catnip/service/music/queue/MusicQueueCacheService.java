@@ -1,39 +1,28 @@
 package dev.taway.catnip.service.music.queue;
 
-import dev.taway.catnip.data.music.MusicQueueEntry;
-import dev.taway.catnip.util.CacheDataHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
-import java.util.List;
-
 @Service
 public class MusicQueueCacheService {
-    private static final String CACHE_PATH = "/cache/music-queue.json";
-    private final CacheDataHandler<MusicQueueEntry> cacheHandler;
-    private final MusicQueueManager queueManager;
+    private final MusicQueueJournal journal;
 
     @Autowired
-    public MusicQueueCacheService(MusicQueueManager queueManager) {
-        this.queueManager = queueManager;
-        this.cacheHandler = new CacheDataHandler<>(MusicQueueEntry.class);
+    public MusicQueueCacheService(MusicQueueJournal journal) {
+        this.journal = journal;
     }
 
     /**
-     * Loads queue from disk
+     * Restores queue from the last snapshot and journal. Queue changes are journaled from then on.
      */
     public void loadCache() {
-//        TODO: index "/cache/music/backup-playlist/" on init
-        List<MusicQueueEntry> cached = cacheHandler.load(CACHE_PATH);
-        queueManager.getQueueEntries().clear();
-        queueManager.getQueueEntries().addAll(cached);
+        journal.recover();
     }
 
     /**
-     * Saves queue to disk
+     * Writes a full snapshot of the queue to disk. Changes are journaled as they happen, this only shortens recovery.
      */
     public void saveCache() {
-        cacheHandler.save(CACHE_PATH, new ArrayList<>(queueManager.getQueueEntries()));
+        journal.snapshotNow();
     }
 }
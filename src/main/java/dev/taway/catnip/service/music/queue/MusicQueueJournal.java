@@ -0,0 +1,261 @@
+package dev.taway.catnip.service.music.queue;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.data.music.MusicQueueSnapshot;
+import dev.taway.catnip.data.music.QueueOperation;
+import dev.taway.catnip.util.CacheDataHandler;
+import jakarta.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead journal of the music queue. Every {@link QueueOperation} is appended to
+ * {@code /cache/music-queue.journal} as one JSON line. Appends are batched and each batch is made durable with a single
+ * fsync, so a burst of queue changes costs one disk sync instead of one per change.
+ * <br>
+ * The journal is periodically folded into {@code /cache/music-queue-snapshot.json} and truncated. On startup the
+ * snapshot is loaded and the journal replayed on top of it, so a crash loses at most one flush interval.
+ * <br>
+ * All file access happens on the journal's own thread.
+ */
+@Service
+public class MusicQueueJournal {
+    private static final Logger log = LogManager.getLogger(MusicQueueJournal.class);
+    private static final String SNAPSHOT_PATH = "/cache/music-queue-snapshot.json";
+    private static final String JOURNAL_PATH = "/cache/music-queue.journal";
+//    Queue saved as a plain array before the journal existed. Only read if there is no snapshot yet.
+    private static final String LEGACY_PATH = "/cache/music-queue.json";
+
+    private final MusicQueueManager queueManager;
+    private final CatnipConfig config;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+//    Serialized operations waiting for the next flush
+    private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("catnip-queue-journal").daemon(true).factory()
+    );
+
+    private boolean recovered = false;
+    private FileChannel journal;
+//    Only touched on the journal thread
+    private long operationsSinceCompaction = 0;
+
+    @Autowired
+    public MusicQueueJournal(MusicQueueManager queueManager, CatnipConfig config) {
+        this.queueManager = queueManager;
+        this.config = config;
+    }
+
+    /**
+     * Restores the queue from the snapshot and journal, then starts journaling every further queue operation.
+     * Must be called once before the queue is used.
+     */
+    public synchronized void recover() {
+        if (recovered) return;
+        recovered = true;
+
+        long start = System.nanoTime();
+        MusicQueueSnapshot snapshot = loadSnapshot();
+        List<QueueOperation> operations = readJournal();
+        int replayed = queueManager.restore(snapshot, operations);
+
+        log.info("Restored music queue with {} entries from snapshot {} and {} journaled operations in {} ms",
+                queueManager.size(), snapshot.getSequence(), replayed, (System.nanoTime() - start) / 1_000_000);
+
+        try {
+            journal = FileChannel.open(path(JOURNAL_PATH), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            queueManager.addListener(this::append);
+        } catch (IOException e) {
+            log.error("Could not open queue journal \"{}\"! Queue is only saved on shutdown. {}", JOURNAL_PATH, e.getMessage());
+        }
+
+        CatnipConfig.QueueJournal journalConfig = config.getQueueJournal();
+        long flushInterval = Math.max(1, journalConfig.getFlushIntervalMillis());
+        long compactInterval = Math.max(1, journalConfig.getCompactIntervalSeconds());
+        executor.scheduleWithFixedDelay(this::flushAndCompactIfLarge, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::compactIfChanged, compactInterval, compactInterval, TimeUnit.SECONDS);
+
+//        Replayed operations (or a legacy queue file) are folded in right away so the next start is a plain snapshot load
+        if (replayed > 0 || !Files.exists(path(SNAPSHOT_PATH))) {
+            executor.execute(this::compact);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current queue and truncates the journal. Blocks until done.
+     */
+    public void snapshotNow() {
+        try {
+            executor.submit(this::compact).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Failed to snapshot the music queue", e.getCause());
+        } catch (RejectedExecutionException e) {
+            log.warn("Queue journal is shutting down. Snapshot is written on shutdown instead.");
+        }
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Queue journal thread did not stop in time");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!recovered) return;
+        compact();
+        if (journal == null) return;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.error("Error while closing queue journal! {}", e.getMessage());
+        }
+    }
+
+//    Called by the queue manager while the queue is locked. Only serializes, the disk is touched on the journal thread.
+    private void append(QueueOperation operation) {
+        try {
+            byte[] line = objectMapper.writeValueAsBytes(operation);
+            byte[] terminated = new byte[line.length + 1];
+            System.arraycopy(line, 0, terminated, 0, line.length);
+            terminated[line.length] = '\n';
+            pending.add(terminated);
+        } catch (JsonProcessingException e) {
+            log.error("Could not serialize queue operation {}! {}", operation.getSequence(), e.getMessage());
+        }
+    }
+
+    private void flushAndCompactIfLarge() {
+        flush();
+        if (operationsSinceCompaction >= Math.max(1, config.getQueueJournal().getCompactAfterOperations())) {
+            compact();
+        }
+    }
+
+    private void compactIfChanged() {
+        if (operationsSinceCompaction > 0) compact();
+    }
+
+    private void flush() {
+        if (pending.isEmpty() || journal == null) return;
+
+        List<byte[]> batch = new ArrayList<>();
+        int bytes = 0;
+        byte[] line;
+        while ((line = pending.poll()) != null) {
+            batch.add(line);
+            bytes += line.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        for (byte[] b : batch) buffer.put(b);
+        buffer.flip();
+
+        try {
+            while (buffer.hasRemaining()) journal.write(buffer);
+            journal.force(false);
+            operationsSinceCompaction += batch.size();
+        } catch (IOException e) {
+            log.error("Failed to append {} operations to queue journal! {}", batch.size(), e.getMessage());
+        }
+    }
+
+    private void compact() {
+        flush();
+
+//        Everything flushed so far has a sequence at or below the snapshot. Operations still pending are written after
+//        the truncate and have higher sequences, or are skipped on replay if they are already part of the snapshot.
+        MusicQueueSnapshot snapshot = queueManager.snapshot();
+        Path target = path(SNAPSHOT_PATH);
+        Path temp = path(SNAPSHOT_PATH + ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(objectMapper.writeValueAsBytes(snapshot)));
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            if (journal != null) {
+                journal.truncate(0);
+                journal.force(true);
+            }
+            operationsSinceCompaction = 0;
+            log.debug("Compacted music queue journal into snapshot {} ({} entries)", snapshot.getSequence(), snapshot.getEntries().size());
+        } catch (IOException e) {
+            log.error("Failed to write music queue snapshot \"{}\"! {}", SNAPSHOT_PATH, e.getMessage());
+        }
+    }
+
+    private MusicQueueSnapshot loadSnapshot() {
+        Path snapshotPath = path(SNAPSHOT_PATH);
+        if (Files.exists(snapshotPath)) {
+            try {
+                return objectMapper.readValue(snapshotPath.toFile(), MusicQueueSnapshot.class);
+            } catch (IOException e) {
+                log.error("Error while reading \"{}\"! {}", SNAPSHOT_PATH, e.getMessage());
+            }
+        }
+
+        List<MusicQueueEntry> legacy = Files.exists(path(LEGACY_PATH))
+                ? new CacheDataHandler<>(MusicQueueEntry.class).load(LEGACY_PATH)
+                : new ArrayList<>();
+        return new MusicQueueSnapshot(0, 1, legacy);
+    }
+
+    private List<QueueOperation> readJournal() {
+        List<QueueOperation> operations = new ArrayList<>();
+        Path journalPath = path(JOURNAL_PATH);
+        if (!Files.exists(journalPath)) return operations;
+
+        try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    operations.add(objectMapper.readValue(line, QueueOperation.class));
+                } catch (JsonProcessingException e) {
+//                    Torn write from a crash mid-append. Nothing after it can be trusted.
+                    log.warn("Queue journal ends with an unreadable operation after {} operations. Ignoring the rest.", operations.size());
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            log.error("Error while reading \"{}\"! {}", JOURNAL_PATH, e.getMessage());
+        }
+        return operations;
+    }
+
+    private static Path path(String path) {
+        return Path.of(System.getProperty("user.dir") + path);
+    }
+}
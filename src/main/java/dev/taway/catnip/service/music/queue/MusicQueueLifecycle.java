@@ -9,16 +9,20 @@ import org.springframework.stereotype.Service;
 public class MusicQueueLifecycle {
     private final MusicQueueCacheService cacheService;
     private final PlaybackControlService playbackControl;
+    private final PlaybackClockService playbackClock;
 
     @Autowired
-    public MusicQueueLifecycle(MusicQueueCacheService cacheService, PlaybackControlService playbackControl) {
+    public MusicQueueLifecycle(MusicQueueCacheService cacheService, PlaybackControlService playbackControl, PlaybackClockService playbackClock) {
         this.cacheService = cacheService;
         this.playbackControl = playbackControl;
+        this.playbackClock = playbackClock;
     }
 
     @PostConstruct
     public void init() {
         cacheService.loadCache();
+//        Resume the clock of the restored track unless it was paused
+        playbackClock.sync();
     }
 
     @PreDestroy
@@ -2,18 +2,64 @@ package dev.taway.catnip.service.music.queue;
 
 import dev.taway.catnip.data.music.MusicCacheEntry;
 import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.data.music.MusicQueueSnapshot;
+import dev.taway.catnip.data.music.QueueOperation;
+import dev.taway.catnip.data.music.QueueOperationType;
 import dev.taway.catnip.service.music.util.UrlUtil;
-import lombok.Getter;
+import dev.taway.catnip.service.music.util.VideoId;
+import dev.taway.catnip.util.LongObjectHashMap;
+import dev.taway.catnip.util.OrderStatisticList;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
-@Getter
+/**
+ * Holds the music queue. Entries are kept in an order-statistic tree so positional insert, move and remove are
+ * O(log n), and indexed by handle and video ID so lookups do not scan the queue.
+ * The tree also keeps running duration totals of non-backup tracks, so queue duration and time until any entry starts
+ * are answered in O(log n) without walking the queue.
+ * A per-user index finds the entries requested by a user without walking the queue either.
+ * Every mutation is published as a numbered {@link QueueOperation} to the registered listeners, in sequence order.
+ * All methods are safe to call from multiple request threads.
+ */
 @Service
 public class MusicQueueManager {
-    private final List<MusicQueueEntry> queueEntries = new ArrayList<>();
+    private static final Logger log = LogManager.getLogger(MusicQueueManager.class);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+//    Backup playlist tracks are only filler and get cut off by requests, they do not count towards queue duration
+    private final OrderStatisticList<MusicQueueEntry> queueEntries = new OrderStatisticList<>(
+            entry -> entry.isFromBackupPlaylist() ? 0 : entry.getDuration()
+    );
+    private final LongObjectHashMap<OrderStatisticList.Node<MusicQueueEntry>> byHandle = new LongObjectHashMap<>();
+//    Packed video ID -> entries, same song can be queued more than once. Backup playlist entries have no ID.
+    private final LongObjectHashMap<List<OrderStatisticList.Node<MusicQueueEntry>>> byVideoId = new LongObjectHashMap<>();
+//    Lowercase username -> entries by handle. Handles grow with every add, so the last key is the user's newest entry.
+    private final Map<String, TreeMap<Long, OrderStatisticList.Node<MusicQueueEntry>>> byRequester = new HashMap<>();
+    private long nextHandle = 1;
+//    Sequence of the last operation applied to the queue
+    private long sequence = 0;
+    private final List<Consumer<QueueOperation>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a listener called for every queue operation. Listeners run while the queue is locked, in sequence
+     * order, so they have to be quick and must not call back into the manager.
+     * @param listener Operation listener
+     */
+    public void addListener(Consumer<QueueOperation> listener) {
+        listeners.add(listener);
+    }
 
     /**
      * Adds a track to the queue with detailed configuration
@@ -21,35 +67,396 @@ public class MusicQueueManager {
      * @param playTime Time already played in seconds
      * @param paused Initial paused state
      * @param fromBackupPlaylist Backup playlist origin flag
+     * @return Added queue entry
+     */
+    public MusicQueueEntry addToQueue(MusicCacheEntry entry, double playTime, boolean paused, boolean fromBackupPlaylist) {
+        lock.writeLock().lock();
+        try {
+            return insertLocked(queueEntries.size(), new MusicQueueEntry(entry, playTime, paused, fromBackupPlaylist));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a track requested by a user, unless the user already has the maximum number of tracks queued.
+     * Check and add happen atomically so parallel requests of one user can not exceed the limit.
+     * @param entry Music cache entry to add
+     * @param requestedBy Username of the requester
+     * @param maxEntriesPerUser Maximum number of tracks the user may have queued. 0 means no limit.
+     * @return Added queue entry or empty if the user reached the limit
      */
-    public void addToQueue(MusicCacheEntry entry, double playTime, boolean paused, boolean fromBackupPlaylist) {
-        queueEntries.add(new MusicQueueEntry(entry, playTime, paused, fromBackupPlaylist));
+    public Optional<MusicQueueEntry> addToQueue(MusicCacheEntry entry, String requestedBy, int maxEntriesPerUser) {
+        lock.writeLock().lock();
+        try {
+            if (maxEntriesPerUser > 0 && countRequestedByLocked(requestedBy) >= maxEntriesPerUser) return Optional.empty();
+
+            MusicQueueEntry queueEntry = new MusicQueueEntry(entry, 0, false, false);
+            queueEntry.setRequestedBy(requestedBy);
+            return Optional.of(insertLocked(queueEntries.size(), queueEntry));
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
      * Adds a track to the queue with default parameters
      * @param entry Music cache entry to add
+     * @return Added queue entry
+     */
+    public MusicQueueEntry addToQueue(MusicCacheEntry entry) {
+        return addToQueue(entry, 0, false, false);
+    }
+
+    /**
+     * Inserts a track at a position. Positions past the end of the queue append the track.
+     * @param position Zero-based index
+     * @param entry Music cache entry to insert
+     * @return Inserted queue entry
+     */
+    public MusicQueueEntry insertIntoQueue(int position, MusicCacheEntry entry) {
+        return insertIntoQueue(position, entry, 0, false, false);
+    }
+
+    /**
+     * Inserts a track at a position with detailed configuration. Positions past the end of the queue append the track.
+     * @param position Zero-based index
+     * @param entry Music cache entry to insert
+     * @param playTime Time already played in seconds
+     * @param paused Initial paused state
+     * @param fromBackupPlaylist Backup playlist origin flag
+     * @return Inserted queue entry
+     */
+    public MusicQueueEntry insertIntoQueue(int position, MusicCacheEntry entry, double playTime, boolean paused, boolean fromBackupPlaylist) {
+        lock.writeLock().lock();
+        try {
+            int index = Math.max(0, Math.min(position, queueEntries.size()));
+            return insertLocked(index, new MusicQueueEntry(entry, playTime, paused, fromBackupPlaylist));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the currently playing entry with new metadata. Paused state, origin and requester are kept,
+     * play time starts over.
+     * @param entry Music cache entry to play instead
+     * @return New currently playing entry or empty if the queue is empty
+     */
+    public Optional<MusicQueueEntry> replaceFirst(MusicCacheEntry entry) {
+        lock.writeLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> first = queueEntries.first();
+            if (first == null) return Optional.empty();
+
+            MusicQueueEntry current = first.getValue();
+            MusicQueueEntry replacement = new MusicQueueEntry(entry, 0, current.isPaused(), current.isFromBackupPlaylist());
+            replacement.setRequestedBy(current.getRequestedBy());
+            replacement.setRequestedTimestamp(current.getRequestedTimestamp());
+
+            removeLocked(first);
+            return Optional.of(insertLocked(0, replacement));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the whole queue. Entries get new handles.
+     * @param entries Entries in play order
+     */
+    public void replaceQueue(Collection<MusicQueueEntry> entries) {
+        lock.writeLock().lock();
+        try {
+            clearLocked();
+            emit(QueueOperation.clear());
+            for (MusicQueueEntry entry : entries) {
+                insertLocked(queueEntries.size(), entry);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves an entry to a new position
+     * @param handle Entry handle
+     * @param position New zero-based index. Clamped to the queue bounds.
+     * @return True if the entry was found and moved
      */
-    public void addToQueue(MusicCacheEntry entry) {
-        addToQueue(entry, 0, false, false);
+    public boolean moveInQueue(long handle, int position) {
+        lock.writeLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(handle);
+            if (node == null) return false;
+
+            int index = Math.max(0, Math.min(position, queueEntries.size() - 1));
+            if (!queueEntries.move(node, index)) return false;
+            emit(QueueOperation.move(handle, index));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Removes entry by URL (full or shortened)
+     * Removes all entries of a track by URL (full or shortened)
      * @param url Track URL to remove
+     * @return Number of removed entries
      */
-    public void removeFromQueue(String url) {
+    public int removeFromQueue(String url) {
         String shortened = UrlUtil.shortenURL(url);
-        queueEntries.removeIf(e -> e.getUrlShortened().equals(shortened));
+        if (shortened == null) shortened = url;
+        if (!VideoId.isValid(shortened)) return 0;
+        long videoKey = VideoId.encode(shortened);
+
+        lock.writeLock().lock();
+        try {
+            List<OrderStatisticList.Node<MusicQueueEntry>> nodes = byVideoId.get(videoKey);
+            if (nodes == null) return 0;
+
+            int removed = 0;
+            for (OrderStatisticList.Node<MusicQueueEntry> node : new ArrayList<>(nodes)) {
+                if (removeLocked(node)) removed++;
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
      * Removes entry by position
      * @param position Zero-based index
+     * @return Removed entry or empty if the position is out of bounds
+     */
+    public Optional<MusicQueueEntry> removeFromQueue(int position) {
+        lock.writeLock().lock();
+        try {
+            if (position < 0 || position >= queueEntries.size()) return Optional.empty();
+
+            OrderStatisticList.Node<MusicQueueEntry> node = queueEntries.getNode(position);
+            removeLocked(node);
+            return Optional.of(node.getValue());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes entry by its handle
+     * @param handle Entry handle
+     * @return True if the entry was in the queue
+     */
+    public boolean removeByHandle(long handle) {
+        lock.writeLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(handle);
+            return node != null && removeLocked(node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the first entry (the currently playing one)
+     * @return Removed entry or empty if the queue is empty
+     */
+    public Optional<MusicQueueEntry> pollFirst() {
+        return removeFromQueue(0);
+    }
+
+    /**
+     * Removes the first entry only if it is the expected one. Stops a late skip from skipping the next track.
+     * @param handle Handle of the entry expected to be playing
+     * @return Removed entry or empty if a different entry (or nothing) is playing
+     */
+    public Optional<MusicQueueEntry> pollFirst(long handle) {
+        lock.writeLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> first = queueEntries.first();
+            if (first == null || first.getValue().getHandle() != handle) return Optional.empty();
+
+            removeLocked(first);
+            return Optional.of(first.getValue());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes the paused state of an entry. Use this instead of {@link MusicQueueEntry#setPaused(boolean)} so the
+     * change is published to the listeners.
+     * @param handle Entry handle
+     * @param paused New paused state
+     * @return True if the entry is queued and its state changed
+     */
+    public boolean setPaused(long handle, boolean paused) {
+        lock.writeLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(handle);
+            if (node == null || node.getValue().isPaused() == paused) return false;
+
+            MusicQueueEntry entry = node.getValue();
+            entry.setPaused(paused);
+            emit(QueueOperation.paused(handle, paused, entry.getPlayTime()));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the downloaded file of an entry. Use this instead of {@link MusicQueueEntry#setLocalData} so readers
+     * holding the lock never see a half-updated entry and the change is published to the listeners.
+     * @param handle Entry handle
+     * @param localData New file
+     * @return True if the entry is queued
+     */
+    public boolean setLocalData(long handle, MusicCacheEntry.LocalData localData) {
+        lock.writeLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(handle);
+            if (node == null) return false;
+
+            node.getValue().setLocalData(localData);
+            emit(QueueOperation.localData(handle, localData));
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the most recently queued entry of a user
+     * @param username Requester
+     * @return Removed entry or empty if the user has nothing queued
+     */
+    public Optional<MusicQueueEntry> removeLastRequestedBy(String username) {
+        lock.writeLock().lock();
+        try {
+            TreeMap<Long, OrderStatisticList.Node<MusicQueueEntry>> nodes = byRequester.get(requesterKey(username));
+            if (nodes == null || nodes.isEmpty()) return Optional.empty();
+
+            OrderStatisticList.Node<MusicQueueEntry> last = nodes.lastEntry().getValue();
+            removeLocked(last);
+            return Optional.of(last.getValue());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param username Requester
+     * @return Most recently queued entry of the user
+     */
+    public Optional<MusicQueueEntry> findLastRequestedBy(String username) {
+        lock.readLock().lock();
+        try {
+            TreeMap<Long, OrderStatisticList.Node<MusicQueueEntry>> nodes = byRequester.get(requesterKey(username));
+            return nodes == null || nodes.isEmpty() ? Optional.empty() : Optional.of(nodes.lastEntry().getValue().getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param username Requester
+     * @return Entries queued by the user, oldest request first
+     */
+    public List<MusicQueueEntry> getRequestedBy(String username) {
+        lock.readLock().lock();
+        try {
+            TreeMap<Long, OrderStatisticList.Node<MusicQueueEntry>> nodes = byRequester.get(requesterKey(username));
+            if (nodes == null) return List.of();
+
+            List<MusicQueueEntry> entries = new ArrayList<>(nodes.size());
+            for (OrderStatisticList.Node<MusicQueueEntry> node : nodes.values()) entries.add(node.getValue());
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param username Requester
+     * @return Number of entries queued by the user
+     */
+    public int countRequestedBy(String username) {
+        lock.readLock().lock();
+        try {
+            return countRequestedByLocked(username);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param videoId Shortened URL of the track
+     * @return First queued entry of the track
+     */
+    public Optional<MusicQueueEntry> findFirst(String videoId) {
+        if (!VideoId.isValid(videoId)) return Optional.empty();
+        long videoKey = VideoId.encode(videoId);
+
+        lock.readLock().lock();
+        try {
+            List<OrderStatisticList.Node<MusicQueueEntry>> nodes = byVideoId.get(videoKey);
+            if (nodes == null) return Optional.empty();
+
+            OrderStatisticList.Node<MusicQueueEntry> first = null;
+            int firstIndex = Integer.MAX_VALUE;
+            for (OrderStatisticList.Node<MusicQueueEntry> node : nodes) {
+                int index = queueEntries.indexOf(node);
+                if (index < firstIndex) {
+                    firstIndex = index;
+                    first = node;
+                }
+            }
+            return first == null ? Optional.empty() : Optional.of(first.getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param handle Entry handle
+     * @return Entry with the handle or empty if it is not queued
+     */
+    public Optional<MusicQueueEntry> getByHandle(long handle) {
+        lock.readLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(handle);
+            return node == null ? Optional.empty() : Optional.of(node.getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param handle Entry handle
+     * @return Zero-based position of the entry or -1 if it is not queued
+     */
+    public int positionOf(long handle) {
+        lock.readLock().lock();
+        try {
+            return queueEntries.indexOf(byHandle.get(handle));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param position Zero-based index
+     * @return Entry at the position or empty if out of bounds
      */
-    public void removeFromQueue(int position) {
-        if (position >= 0 && position < queueEntries.size()) {
-            queueEntries.remove(position);
+    public Optional<MusicQueueEntry> get(int position) {
+        lock.readLock().lock();
+        try {
+            if (position < 0 || position >= queueEntries.size()) return Optional.empty();
+            return Optional.of(queueEntries.get(position));
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
@@ -57,6 +464,259 @@ public class MusicQueueManager {
      * @return Currently playing track or empty if queue is empty
      */
     public Optional<MusicQueueEntry> getCurrentlyPlaying() {
-        return queueEntries.isEmpty() ? Optional.empty() : Optional.of(queueEntries.getFirst());
+        lock.readLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> first = queueEntries.first();
+            return first == null ? Optional.empty() : Optional.of(first.getValue());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Copy of the queue in play order
+     */
+    public List<MusicQueueEntry> getQueueEntries() {
+        lock.readLock().lock();
+        try {
+            return queueEntries.toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Total duration of non-backup tracks in seconds
+     */
+    public double totalDuration() {
+        lock.readLock().lock();
+        try {
+            return queueEntries.totalWeight();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param position Zero-based index. Clamped to the queue bounds.
+     * @return Total duration of non-backup tracks before the position in seconds
+     */
+    public double durationBefore(int position) {
+        lock.readLock().lock();
+        try {
+            return queueEntries.prefixWeight(Math.max(0, Math.min(position, queueEntries.size())));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param handle Entry handle
+     * @return Total duration of non-backup tracks before the entry in seconds or empty if it is not queued
+     */
+    public Optional<Double> durationBefore(long handle) {
+        lock.readLock().lock();
+        try {
+            OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(handle);
+            return node == null ? Optional.empty() : Optional.of(queueEntries.weightBefore(node));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return queueEntries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            clearLocked();
+            emit(QueueOperation.clear());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Sequence of the last operation applied to the queue
+     */
+    public long getSequence() {
+        lock.readLock().lock();
+        try {
+            return sequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Queue state consistent with {@link MusicQueueSnapshot#getSequence()}
+     */
+    public MusicQueueSnapshot snapshot() {
+        lock.readLock().lock();
+        try {
+            return new MusicQueueSnapshot(sequence, nextHandle, queueEntries.toList());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Restores the queue from a snapshot and the operations that followed it. Nothing is published to the listeners.
+     * Operations at or below the snapshot sequence are skipped, replay stops at the first gap in the sequence.
+     * @param snapshot Snapshot to start from
+     * @param operations Journaled operations in sequence order
+     * @return Number of replayed operations
+     */
+    public int restore(MusicQueueSnapshot snapshot, List<QueueOperation> operations) {
+        lock.writeLock().lock();
+        try {
+            clearLocked();
+            sequence = snapshot.getSequence();
+            nextHandle = Math.max(1, snapshot.getNextHandle());
+
+            for (MusicQueueEntry entry : snapshot.getEntries()) {
+//                Queues saved before handles existed have none
+                if (entry.getHandle() <= 0) entry.setHandle(nextHandle++);
+                attachLocked(queueEntries.size(), entry);
+            }
+
+            int replayed = 0;
+            for (QueueOperation operation : operations) {
+                if (operation.getSequence() <= sequence) continue;
+                if (operation.getSequence() != sequence + 1) {
+                    log.warn("Queue journal jumps from operation {} to {}. Ignoring the rest.", sequence, operation.getSequence());
+                    break;
+                }
+                replayLocked(operation);
+                sequence = operation.getSequence();
+                replayed++;
+            }
+            return replayed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void replayLocked(QueueOperation operation) {
+        OrderStatisticList.Node<MusicQueueEntry> node = byHandle.get(operation.getHandle());
+        switch (operation.getType()) {
+            case ADD -> {
+                MusicQueueEntry entry = operation.getEntry();
+                entry.setHandle(operation.getHandle());
+                attachLocked(Math.max(0, Math.min(operation.getPosition(), queueEntries.size())), entry);
+                nextHandle = Math.max(nextHandle, operation.getHandle() + 1);
+            }
+            case REMOVE -> {
+                if (node != null) detachLocked(node);
+            }
+            case MOVE -> {
+                if (node != null) queueEntries.move(node, Math.max(0, Math.min(operation.getPosition(), queueEntries.size() - 1)));
+            }
+            case PAUSE, PLAY -> {
+                if (node != null) {
+                    node.getValue().setPaused(operation.getType() == QueueOperationType.PAUSE);
+                    node.getValue().setPlayTime(operation.getPlayTime());
+                }
+            }
+            case CLEAR -> clearLocked();
+            case LOCAL_DATA -> {
+                if (node != null) node.getValue().setLocalData(operation.getLocalData());
+            }
+        }
+    }
+
+    private MusicQueueEntry insertLocked(int index, MusicQueueEntry entry) {
+        entry.setHandle(nextHandle++);
+        attachLocked(index, entry);
+        emit(QueueOperation.add(index, entry));
+        return entry;
+    }
+
+    private void attachLocked(int index, MusicQueueEntry entry) {
+        if (entry.getRequestedTimestamp() == 0) entry.setRequestedTimestamp(System.currentTimeMillis());
+
+        OrderStatisticList.Node<MusicQueueEntry> node = queueEntries.insert(index, entry);
+        byHandle.put(entry.getHandle(), node);
+        if (VideoId.isValid(entry.getUrlShortened())) {
+            long videoKey = VideoId.encode(entry.getUrlShortened());
+            List<OrderStatisticList.Node<MusicQueueEntry>> nodes = byVideoId.get(videoKey);
+            if (nodes == null) {
+                nodes = new ArrayList<>(1);
+                byVideoId.put(videoKey, nodes);
+            }
+            nodes.add(node);
+        }
+        if (entry.getRequestedBy() != null) {
+            byRequester.computeIfAbsent(requesterKey(entry.getRequestedBy()), k -> new TreeMap<>()).put(entry.getHandle(), node);
+        }
+    }
+
+    private boolean removeLocked(OrderStatisticList.Node<MusicQueueEntry> node) {
+        if (!detachLocked(node)) return false;
+        emit(QueueOperation.remove(node.getValue().getHandle()));
+        return true;
+    }
+
+    private boolean detachLocked(OrderStatisticList.Node<MusicQueueEntry> node) {
+        if (!queueEntries.remove(node)) return false;
+
+        MusicQueueEntry entry = node.getValue();
+        byHandle.remove(entry.getHandle());
+        if (VideoId.isValid(entry.getUrlShortened())) {
+            long videoKey = VideoId.encode(entry.getUrlShortened());
+            List<OrderStatisticList.Node<MusicQueueEntry>> nodes = byVideoId.get(videoKey);
+            if (nodes != null) {
+                nodes.remove(node);
+                if (nodes.isEmpty()) byVideoId.remove(videoKey);
+            }
+        }
+        if (entry.getRequestedBy() != null) {
+            String key = requesterKey(entry.getRequestedBy());
+            TreeMap<Long, OrderStatisticList.Node<MusicQueueEntry>> requested = byRequester.get(key);
+            if (requested != null) {
+                requested.remove(entry.getHandle());
+                if (requested.isEmpty()) byRequester.remove(key);
+            }
+        }
+        return true;
+    }
+
+    private void clearLocked() {
+        queueEntries.clear();
+        byHandle.clear();
+        byVideoId.clear();
+        byRequester.clear();
+    }
+
+    private int countRequestedByLocked(String username) {
+        TreeMap<Long, OrderStatisticList.Node<MusicQueueEntry>> nodes = byRequester.get(requesterKey(username));
+        return nodes == null ? 0 : nodes.size();
+    }
+
+//    Usernames are case-insensitive
+    private static String requesterKey(String username) {
+        return username == null ? "" : username.toLowerCase(Locale.ROOT);
+    }
+
+    private void emit(QueueOperation operation) {
+        operation.setSequence(++sequence);
+        for (Consumer<QueueOperation> listener : listeners) {
+            try {
+                listener.accept(operation);
+            } catch (RuntimeException e) {
+                log.error("Queue operation listener failed on operation {}", operation.getSequence(), e);
+            }
+        }
     }
-}
\ No newline at end of file
+}
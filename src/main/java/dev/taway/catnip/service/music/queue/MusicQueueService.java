@@ -2,11 +2,13 @@ package dev.taway.catnip.service.music.queue;
 
 import dev.taway.catnip.data.music.MusicCacheEntry;
 import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.data.music.MusicQueueSnapshot;
+import dev.taway.catnip.data.music.QueueOperation;
 import dev.taway.catnip.service.music.util.UrlUtil;
-import dev.taway.catnip.websocket.PlaybackStatusHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -21,7 +23,9 @@ public class MusicQueueService {
     private final PlaybackControlService playbackControl;
     private final QueueDurationService durationService;
     private final MusicQueueCacheService cacheService;
-    private final PlaybackStatusHandler playbackStatusHandler;
+    private final PlaybackStatusPublisher statusPublisher;
+    private final PlaybackClockService playbackClock;
+    private final QueueChangeLog changeLog;
 
     /**
      * Constructs the facade with required dependencies.
@@ -30,17 +34,25 @@ public class MusicQueueService {
      * @param playbackControl Playback control service
      * @param durationService Queue duration calculation service
      * @param cacheService    Cache persistence service
+     * @param statusPublisher WebSocket playback status publisher
+     * @param playbackClock   Server side playback clock
+     * @param changeLog       Recent queue operations for delta reads
      */
     @Autowired
     public MusicQueueService(MusicQueueManager queueManager,
                              PlaybackControlService playbackControl,
                              QueueDurationService durationService,
-                             MusicQueueCacheService cacheService, PlaybackStatusHandler playbackStatusHandler) {
+                             MusicQueueCacheService cacheService,
+                             PlaybackStatusPublisher statusPublisher,
+                             PlaybackClockService playbackClock,
+                             QueueChangeLog changeLog) {
         this.queueManager = queueManager;
         this.playbackControl = playbackControl;
         this.durationService = durationService;
         this.cacheService = cacheService;
-        this.playbackStatusHandler = playbackStatusHandler;
+        this.statusPublisher = statusPublisher;
+        this.playbackClock = playbackClock;
+        this.changeLog = changeLog;
     }
 
     /**
@@ -50,40 +62,74 @@ public class MusicQueueService {
      * @param playTime   Already played time in seconds
      * @param paused     Initial paused state
      * @param fromBackup Backup playlist origin flag
+     * @return Added queue entry
      */
-    public void addToQueue(MusicCacheEntry entry, double playTime, boolean paused, boolean fromBackup) {
-        queueManager.addToQueue(entry, playTime, paused, fromBackup);
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+    public MusicQueueEntry addToQueue(MusicCacheEntry entry, double playTime, boolean paused, boolean fromBackup) {
+        MusicQueueEntry added = queueManager.addToQueue(entry, playTime, paused, fromBackup);
+        onQueueChanged();
+        return added;
     }
 
     /**
      * Adds track to queue with default parameters (0 play time, not paused).
      *
      * @param entry Music metadata entry
+     * @return Added queue entry
      */
-    public void addToQueue(MusicCacheEntry entry) {
-        queueManager.addToQueue(entry);
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+    public MusicQueueEntry addToQueue(MusicCacheEntry entry) {
+        MusicQueueEntry added = queueManager.addToQueue(entry);
+        onQueueChanged();
+        return added;
     }
 
     /**
      * Adds existing queue entry to the queue.
      *
      * @param entry Pre-configured queue entry
+     * @return Added queue entry
      */
-    public void addToQueue(MusicQueueEntry entry) {
-        queueManager.addToQueue(entry);
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+    public MusicQueueEntry addToQueue(MusicQueueEntry entry) {
+        MusicQueueEntry added = queueManager.addToQueue(entry);
+        onQueueChanged();
+        return added;
+    }
+
+    /**
+     * Inserts track at a position in the queue.
+     *
+     * @param position Zero-based index. Positions past the end append the track.
+     * @param entry    Music metadata entry
+     * @return Inserted queue entry
+     */
+    public MusicQueueEntry insertIntoQueue(int position, MusicCacheEntry entry) {
+        MusicQueueEntry inserted = queueManager.insertIntoQueue(position, entry);
+        onQueueChanged();
+        return inserted;
+    }
+
+    /**
+     * Moves entry to a new position in the queue.
+     *
+     * @param handle   Queue entry handle
+     * @param position New zero-based index
+     * @return True if the entry was found and moved
+     */
+    public boolean moveInQueue(long handle, int position) {
+        boolean moved = queueManager.moveInQueue(handle, position);
+        if (moved) onQueueChanged();
+        return moved;
     }
 
     /**
      * Removes entry by URL (full or shortened).
      *
      * @param url Track URL to remove
+     * @return Number of removed entries
      */
-    public void removeFromQueue(String url) {
-        queueManager.removeFromQueue(url);
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+    public int removeFromQueue(String url) {
+        int removed = queueManager.removeFromQueue(url);
+        if (removed > 0) onQueueChanged();
+        return removed;
     }
 
     /**
@@ -93,7 +139,57 @@ public class MusicQueueService {
      */
     public void removeFromQueue(int position) {
         queueManager.removeFromQueue(position);
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+        onQueueChanged();
+    }
+
+    /**
+     * Adds a track requested by a user, unless the user already has the maximum number of tracks queued.
+     *
+     * @param entry             Music cache entry to add
+     * @param requestedBy       Username of the requester
+     * @param maxEntriesPerUser Maximum number of tracks the user may have queued. 0 means no limit.
+     * @return Added queue entry or empty if the user reached the limit
+     */
+    public Optional<MusicQueueEntry> addToQueue(MusicCacheEntry entry, String requestedBy, int maxEntriesPerUser) {
+        Optional<MusicQueueEntry> added = queueManager.addToQueue(entry, requestedBy, maxEntriesPerUser);
+        if (added.isPresent()) onQueueChanged();
+        return added;
+    }
+
+    /**
+     * Removes the most recently queued track of a user.
+     *
+     * @param username Requester
+     * @return Removed entry or empty if the user has nothing queued
+     */
+    public Optional<MusicQueueEntry> removeLastRequestedBy(String username) {
+        Optional<MusicQueueEntry> removed = queueManager.removeLastRequestedBy(username);
+        if (removed.isPresent()) onQueueChanged();
+        return removed;
+    }
+
+    /**
+     * @param username Requester
+     * @return Entries queued by the user, oldest request first
+     */
+    public List<MusicQueueEntry> getRequestedBy(String username) {
+        return queueManager.getRequestedBy(username);
+    }
+
+    /**
+     * @param username Requester
+     * @return Number of entries queued by the user
+     */
+    public int countRequestedBy(String username) {
+        return queueManager.countRequestedBy(username);
+    }
+
+    /**
+     * @param handle Queue entry handle
+     * @return Zero-based position of the entry or -1 if it is not queued
+     */
+    public int positionOf(long handle) {
+        return queueManager.positionOf(handle);
     }
 
     /**
@@ -102,8 +198,16 @@ public class MusicQueueService {
      * @param entry Queue entry to remove
      */
     public void removeFromQueue(MusicQueueEntry entry) {
-        queueManager.getQueueEntries().remove(entry);
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+        queueManager.removeByHandle(entry.getHandle());
+        onQueueChanged();
+    }
+
+    /**
+     * @param handle Queue entry handle
+     * @return Entry with the handle or empty if it is not queued
+     */
+    public Optional<MusicQueueEntry> findByHandle(long handle) {
+        return queueManager.getByHandle(handle);
     }
 
     /**
@@ -114,9 +218,8 @@ public class MusicQueueService {
      * @throws IllegalArgumentException if URL is null/empty
      */
     public Optional<MusicQueueEntry> findInQueue(String url) {
-        return queueManager.getQueueEntries().stream()
-                .filter(e -> e.getUrlShortened().equals(UrlUtil.shortenURL(url)))
-                .findFirst();
+        String shortened = UrlUtil.shortenURL(url);
+        return queueManager.findFirst(shortened == null ? url : shortened);
     }
 
     /**
@@ -124,7 +227,7 @@ public class MusicQueueService {
      */
     public void pause() {
         playbackControl.pause();
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+        onQueueChanged();
     }
 
     /**
@@ -132,7 +235,7 @@ public class MusicQueueService {
      */
     public void play() {
         playbackControl.play();
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+        onQueueChanged();
     }
 
     /**
@@ -140,7 +243,19 @@ public class MusicQueueService {
      */
     public void skip() {
         playbackControl.skip();
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+        onQueueChanged();
+    }
+
+    /**
+     * Skips current track only if it is still the expected one.
+     *
+     * @param handle Queue entry handle of the track to skip
+     * @return True if the track was skipped
+     */
+    public boolean skip(long handle) {
+        boolean skipped = playbackControl.skip(handle);
+        if (skipped) onQueueChanged();
+        return skipped;
     }
 
     /**
@@ -164,6 +279,30 @@ public class MusicQueueService {
         return durationService.queueEmptyInAsString();
     }
 
+    /**
+     * @param position Zero-based queue index
+     * @return Seconds until the entry at the position starts playing
+     */
+    public double etaOfPosition(int position) {
+        return durationService.etaOfPosition(position);
+    }
+
+    /**
+     * @param handle Queue entry handle
+     * @return Seconds until the entry starts playing or empty if it is not queued
+     */
+    public Optional<Double> etaOf(long handle) {
+        return durationService.etaOf(handle);
+    }
+
+    /**
+     * @param handle Queue entry handle
+     * @return Human-readable time until the entry starts playing or empty if it is not queued
+     */
+    public Optional<String> etaOfAsString(long handle) {
+        return etaOf(handle).map(durationService::formatDuration);
+    }
+
     /**
      * Loads queue state from persistent storage.
      */
@@ -185,6 +324,28 @@ public class MusicQueueService {
         return queueManager.getCurrentlyPlaying();
     }
 
+    /**
+     * @return Version of the queue. Increases with every change.
+     */
+    public long getVersion() {
+        return queueManager.getSequence();
+    }
+
+    /**
+     * @return Whole queue together with its version
+     */
+    public MusicQueueSnapshot snapshot() {
+        return queueManager.snapshot();
+    }
+
+    /**
+     * @param version Queue version the client has
+     * @return Operations since the version, or empty if the client has to fetch the whole queue
+     */
+    public Optional<List<QueueOperation>> changesSince(long version) {
+        return changeLog.since(version);
+    }
+
     /**
      * Replaces currently playing entry while preserving playback state.
      * WARNING: Should only be used for metadata updates, not track replacement.
@@ -192,10 +353,13 @@ public class MusicQueueService {
      * @param entry New entry to set as current
      */
     public void replaceCurrentlyPlaying(MusicQueueEntry entry) {
-        queueManager.getCurrentlyPlaying().ifPresent(current -> {
-            queueManager.removeFromQueue(0);
-            queueManager.addToQueue(entry, 0, current.isPaused(), current.isFromBackupPlaylist());
-        });
-        getCurrentlyPlaying().ifPresent(playbackStatusHandler::broadcastStatus);
+        queueManager.replaceFirst(entry);
+        onQueueChanged();
+    }
+
+//    Currently playing entry could have changed. Keep the playback clock in step before telling clients.
+    private void onQueueChanged() {
+        playbackClock.sync();
+        statusPublisher.publish();
     }
 }
\ No newline at end of file
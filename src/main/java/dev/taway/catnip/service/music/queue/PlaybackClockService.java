@@ -0,0 +1,184 @@
+package dev.taway.catnip.service.music.queue;
+
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.service.music.backup.BackupPlaylistService;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Server side playback clock. The currently playing entry derives its play time from a monotonic start timestamp,
+ * so nothing ticks while a track plays. The only timer is a single one-shot task on the shared scheduler that fires
+ * when the current track should end, pops it from the queue and starts the next one.
+ * When the queue runs empty a song from the backup playlist is queued.
+ * <br>
+ * {@link #sync()} has to be called after anything that can change the currently playing entry or its paused state.
+ */
+@Service
+public class PlaybackClockService {
+    private static final Logger log = LogManager.getLogger(PlaybackClockService.class);
+//    Timer can fire a little early. Anything closer to the end than this counts as finished.
+    private static final double END_TOLERANCE_SECONDS = 0.05;
+//    Resuming an entry that already played longer than this is not a new start
+    private static final double START_TOLERANCE_SECONDS = 1;
+    private final MusicQueueManager queueManager;
+    private final PlaybackStatusPublisher statusPublisher;
+    private final ScheduledExecutorService scheduler;
+    private final BackupPlaylistService backupPlaylist;
+    private final List<Consumer<MusicQueueEntry>> startListeners = new CopyOnWriteArrayList<>();
+
+    private MusicQueueEntry clockedEntry;
+//    Handle of clockedEntry for lock-free readers. 0 if nothing is playing.
+    private volatile long currentHandle;
+    private ScheduledFuture<?> endOfTrack;
+//    Handle of the last entry start listeners were told about
+    private long startedHandle;
+
+    @Autowired
+    public PlaybackClockService(MusicQueueManager queueManager, PlaybackStatusPublisher statusPublisher, ScheduledExecutorService scheduler, BackupPlaylistService backupPlaylist) {
+        this.queueManager = queueManager;
+        this.statusPublisher = statusPublisher;
+        this.scheduler = scheduler;
+        this.backupPlaylist = backupPlaylist;
+
+//        Songs can show up in the backup playlist while nothing is playing
+        backupPlaylist.addIndexListener(() -> {
+            if (sync()) statusPublisher.publish();
+        });
+    }
+
+    /**
+     * Aligns the clock with the queue: fills an empty queue from the backup playlist, starts or stops the clock of the
+     * currently playing entry depending on its paused state and (re)schedules the end of track timer.
+     *
+     * @return True if the currently playing entry changed since the last call
+     */
+    public synchronized boolean sync() {
+        if (queueManager.isEmpty()) {
+            backupPlaylist.nextEntry().ifPresent(entry -> {
+                queueManager.addToQueue(entry, 0, false, true);
+                log.info("♫ Queue is empty. Playing from backup playlist: {} - {}", entry.getArtist(), entry.getTitle());
+            });
+        }
+
+        long now = System.nanoTime();
+        Optional<MusicQueueEntry> current = queueManager.getCurrentlyPlaying();
+
+        boolean changed = current.map(entry -> entry != clockedEntry).orElse(clockedEntry != null);
+        if (changed && clockedEntry != null) {
+//            Previous entry was removed or moved back in the queue. It is not playing anymore.
+            clockedEntry.stopClock(now);
+        }
+        clockedEntry = current.orElse(null);
+        currentHandle = clockedEntry == null ? 0 : clockedEntry.getHandle();
+
+        cancelEndOfTrack();
+        if (clockedEntry == null) return changed;
+
+        if (clockedEntry.isPaused()) {
+            clockedEntry.stopClock(now);
+        } else {
+            clockedEntry.startClock(now);
+            scheduleEndOfTrack(clockedEntry);
+            notifyStarted(clockedEntry);
+        }
+
+        if (changed) {
+            log.debug("♫ Playback clock now follows: {} - {}", clockedEntry.getArtist(), clockedEntry.getTitle());
+        }
+        return changed;
+    }
+
+    /**
+     * Registers a listener called when playback of an entry starts from the beginning. Resuming a paused entry does
+     * not count. Called while the clock is locked, listeners have to be quick and must not call back into the clock.
+     *
+     * @param listener Called with the entry that started playing
+     */
+    public void addStartListener(Consumer<MusicQueueEntry> listener) {
+        startListeners.add(listener);
+    }
+
+    /**
+     * @return Handle of the currently playing entry as of the last {@link #sync()}, 0 if nothing is playing. Does not
+     * lock anything.
+     */
+    public long getCurrentHandle() {
+        return currentHandle;
+    }
+
+    /**
+     * Stops the clock of the currently playing entry without touching the queue. Used on shutdown so the reached
+     * play time gets persisted.
+     */
+    public synchronized void stop() {
+        cancelEndOfTrack();
+        if (clockedEntry != null) {
+            clockedEntry.stopClock(System.nanoTime());
+        }
+    }
+
+    private void notifyStarted(MusicQueueEntry entry) {
+        if (entry.getHandle() == startedHandle || entry.getPlayTime() > START_TOLERANCE_SECONDS) return;
+        startedHandle = entry.getHandle();
+
+        for (Consumer<MusicQueueEntry> listener : startListeners) {
+            try {
+                listener.accept(entry);
+            } catch (RuntimeException e) {
+                log.error("Playback start listener failed", e);
+            }
+        }
+    }
+
+    private void scheduleEndOfTrack(MusicQueueEntry entry) {
+//        Unknown duration. Track has to be skipped manually.
+        if (entry.getDuration() <= 0) return;
+
+        double remaining = Math.max(0, entry.getDuration() - entry.getPlayTime());
+        endOfTrack = scheduler.schedule(this::onEndOfTrack, (long) Math.ceil(remaining * 1000), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelEndOfTrack() {
+        if (endOfTrack != null) {
+            endOfTrack.cancel(false);
+            endOfTrack = null;
+        }
+    }
+
+    private void onEndOfTrack() {
+        try {
+            boolean advanced;
+            synchronized (this) {
+                MusicQueueEntry finished = clockedEntry;
+                if (finished == null || finished.isPaused()) return;
+
+                if (finished.getDuration() - finished.getPlayTime() > END_TOLERANCE_SECONDS) {
+                    scheduleEndOfTrack(finished);
+                    return;
+                }
+
+                finished.stopClock(System.nanoTime());
+                advanced = queueManager.removeByHandle(finished.getHandle());
+                if (advanced) {
+                    log.info("♫ Finished: {} - {}", finished.getArtist(), finished.getTitle());
+                    queueManager.getCurrentlyPlaying().ifPresent(next -> queueManager.setPaused(next.getHandle(), false));
+                }
+                sync();
+            }
+
+            if (advanced) statusPublisher.publish();
+        } catch (Exception e) {
+            log.error("Playback clock failed to advance the queue", e);
+        }
+    }
+}
@@ -6,14 +6,18 @@ import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.Optional;
+
 @Service
 public class PlaybackControlService {
     private static final Logger log = LogManager.getLogger(PlaybackControlService.class);
     private final MusicQueueManager queueManager;
+    private final PlaybackClockService playbackClock;
 
     @Autowired
-    public PlaybackControlService(MusicQueueManager queueManager) {
+    public PlaybackControlService(MusicQueueManager queueManager, PlaybackClockService playbackClock) {
         this.queueManager = queueManager;
+        this.playbackClock = playbackClock;
     }
 
     /**
@@ -21,9 +25,9 @@ public class PlaybackControlService {
      */
     public void pause() {
         queueManager.getCurrentlyPlaying().ifPresent(entry -> {
-            entry.setPaused(true);
-            log.info("♫ Paused: {} - {}", entry.getArtist(), entry.getTitle());
+            if (queueManager.setPaused(entry.getHandle(), true)) log.info("♫ Paused: {} - {}", entry.getArtist(), entry.getTitle());
         });
+        playbackClock.sync();
     }
 
     /**
@@ -31,23 +35,42 @@ public class PlaybackControlService {
      */
     public void play() {
         queueManager.getCurrentlyPlaying().ifPresent(entry -> {
-            entry.setPaused(false);
-            log.info("♫ Resumed: {} - {}", entry.getArtist(), entry.getTitle());
+            if (queueManager.setPaused(entry.getHandle(), false)) log.info("♫ Resumed: {} - {}", entry.getArtist(), entry.getTitle());
         });
+        playbackClock.sync();
     }
 
     /**
      * Skips current track and starts next
      */
     public void skip() {
-        if (queueManager.getQueueEntries().isEmpty()) {
+        Optional<MusicQueueEntry> skipped = queueManager.pollFirst();
+        if (skipped.isEmpty()) {
             log.info("♫ Nothing to skip. Queue is empty.");
             return;
         }
 
-        MusicQueueEntry skipped = queueManager.getQueueEntries().removeFirst();
+        startNext(skipped.get());
+    }
+
+    /**
+     * Skips current track only if it is the expected one
+     *
+     * @param handle Handle of the track to skip
+     * @return True if the track was skipped
+     */
+    public boolean skip(long handle) {
+        Optional<MusicQueueEntry> skipped = queueManager.pollFirst(handle);
+        if (skipped.isEmpty()) return false;
+
+        startNext(skipped.get());
+        return true;
+    }
+
+    private void startNext(MusicQueueEntry skipped) {
         log.info("♫ Skipped: {} - {}", skipped.getArtist(), skipped.getTitle());
 
-        queueManager.getCurrentlyPlaying().ifPresent(next -> next.setPaused(false));
+        queueManager.getCurrentlyPlaying().ifPresent(next -> queueManager.setPaused(next.getHandle(), false));
+        playbackClock.sync();
     }
 }
@@ -0,0 +1,51 @@
+package dev.taway.catnip.service.music.queue;
+
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.dto.websocket.PlaybackStatusMessage;
+import dev.taway.catnip.websocket.PlaybackStatusHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+
+/**
+ * Builds playback status messages (currently playing entry plus queue timing) and pushes them to WebSocket clients.
+ */
+@Service
+public class PlaybackStatusPublisher {
+    private final MusicQueueManager queueManager;
+    private final QueueDurationService durationService;
+    private final PlaybackStatusHandler playbackStatusHandler;
+
+    @Autowired
+    public PlaybackStatusPublisher(MusicQueueManager queueManager, QueueDurationService durationService, PlaybackStatusHandler playbackStatusHandler) {
+        this.queueManager = queueManager;
+        this.durationService = durationService;
+        this.playbackStatusHandler = playbackStatusHandler;
+    }
+
+    /**
+     * Broadcasts current playback status. Nothing is sent if the queue is empty.
+     */
+    public void publish() {
+        buildStatus().ifPresent(playbackStatusHandler::broadcast);
+    }
+
+    /**
+     * @return Current playback status or empty if nothing is playing
+     */
+    public Optional<PlaybackStatusMessage> buildStatus() {
+        Optional<MusicQueueEntry> current = queueManager.getCurrentlyPlaying();
+        if (current.isEmpty()) return Optional.empty();
+
+        long version = queueManager.getSequence();
+        int queueLength = queueManager.size();
+        return Optional.of(new PlaybackStatusMessage(
+                current.get(),
+                queueLength,
+                durationService.queueEmptyIn(),
+                queueLength > 1 ? durationService.etaOfPosition(1) : -1,
+                version
+        ));
+    }
+}
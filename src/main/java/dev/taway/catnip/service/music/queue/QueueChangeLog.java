@@ -0,0 +1,52 @@
+package dev.taway.catnip.service.music.queue;
+
+import dev.taway.catnip.data.music.QueueOperation;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps the most recent queue operations in a ring buffer so clients that already hold a copy of the queue can catch
+ * up by fetching only what changed since their version, instead of the whole queue.
+ * <br>
+ * The queue version is the sequence of the last applied {@link QueueOperation}.
+ */
+@Service
+public class QueueChangeLog {
+    private static final int CAPACITY = 1024;
+    private final QueueOperation[] operations = new QueueOperation[CAPACITY];
+    private long lastSequence;
+
+    @Autowired
+    public QueueChangeLog(MusicQueueManager queueManager) {
+        this.lastSequence = queueManager.getSequence();
+        queueManager.addListener(this::record);
+    }
+
+    /**
+     * @param version Queue version the client has
+     * @return Operations that happened after the version in order, or empty if the version is too old (or unknown) to
+     * be answered from the buffer and the client has to fetch the whole queue
+     */
+    public synchronized Optional<List<QueueOperation>> since(long version) {
+        if (version > lastSequence || lastSequence - version > CAPACITY) return Optional.empty();
+
+        List<QueueOperation> changes = new ArrayList<>((int) (lastSequence - version));
+        for (long sequence = version + 1; sequence <= lastSequence; sequence++) {
+            QueueOperation operation = operations[(int) (sequence % CAPACITY)];
+//            Operations restored from the journal on startup are not in the buffer
+            if (operation == null || operation.getSequence() != sequence) return Optional.empty();
+            changes.add(operation);
+        }
+        return Optional.of(changes);
+    }
+
+//    Called by the queue manager while the queue is locked, so operations arrive in sequence order
+    private synchronized void record(QueueOperation operation) {
+        operations[(int) (operation.getSequence() % CAPACITY)] = operation;
+        lastSequence = operation.getSequence();
+    }
+}
@@ -4,6 +4,12 @@ import dev.taway.catnip.data.music.MusicQueueEntry;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.Optional;
+
+/**
+ * Answers queue timing questions from the running totals kept by {@link MusicQueueManager}.
+ * Nothing here walks the queue, every call is O(log n).
+ */
 @Service
 public class QueueDurationService {
     private final MusicQueueManager queueManager;
@@ -17,28 +23,63 @@ public class QueueDurationService {
      * @return Total duration of non-backup tracks in seconds
      */
     public double totalDuration() {
-        double totalDuration = 0;
-        for (MusicQueueEntry entry : queueManager.getQueueEntries()) {
-            if (!entry.isFromBackupPlaylist()) totalDuration += entry.getDuration();
-        }
-        return totalDuration;
+        return queueManager.totalDuration();
     }
 
     /**
      * @return Remaining queue time excluding already played portion
      */
     public double queueEmptyIn() {
-        double total = totalDuration();
         return queueManager.getCurrentlyPlaying()
-                .map(current -> total - current.getPlayTime())
+                .map(current -> Math.max(0, totalDuration() - countedPlayTime(current)))
                 .orElse(0.0);
     }
 
+    /**
+     * @param position Zero-based queue index
+     * @return Seconds until the entry at the position starts playing. 0 for the currently playing entry.
+     */
+    public double etaOfPosition(int position) {
+        if (position <= 0) return 0;
+
+        Optional<MusicQueueEntry> current = queueManager.getCurrentlyPlaying();
+        if (current.isEmpty()) return 0;
+
+        return Math.max(0, queueManager.durationBefore(position) - countedPlayTime(current.get()));
+    }
+
+    /**
+     * @param handle Queue entry handle
+     * @return Seconds until the entry starts playing or empty if it is not queued
+     */
+    public Optional<Double> etaOf(long handle) {
+        Optional<Double> before = queueManager.durationBefore(handle);
+        if (before.isEmpty()) return Optional.empty();
+
+        double played = queueManager.getCurrentlyPlaying()
+                .filter(current -> current.getHandle() != handle)
+                .map(this::countedPlayTime)
+                .orElse(0.0);
+        return Optional.of(Math.max(0, before.get() - played));
+    }
+
     /**
      * @return Human-readable remaining time
      */
     public String queueEmptyInAsString() {
-        double time = queueEmptyIn();
-        return time == 0 ? "now" : String.format("%.1f minutes", time / 60);
+        return formatDuration(queueEmptyIn());
+    }
+
+    /**
+     * @param seconds Time in seconds
+     * @return Human-readable time
+     */
+    public String formatDuration(double seconds) {
+        return seconds == 0 ? "now" : String.format("%.1f minutes", seconds / 60);
+    }
+
+//    Play time of backup tracks does not count because their duration is not part of the totals either
+    private double countedPlayTime(MusicQueueEntry current) {
+        return current.isFromBackupPlaylist() ? 0 : current.getPlayTime();
     }
 }
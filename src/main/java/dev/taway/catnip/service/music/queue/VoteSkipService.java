@@ -0,0 +1,102 @@
+package dev.taway.catnip.service.music.queue;
+
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.dto.response.VoteSkipResponse;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts skip votes for the currently playing song. Chat can send hundreds of votes within a second, so the vote path
+ * takes no locks: voters are deduplicated in a concurrent set of username hashes and counted with a {@link LongAdder}.
+ * <br>
+ * Votes belong to a round tied to the handle of the playing entry. When the song changes the next vote swaps in a
+ * fresh round with a single compare-and-set, so votes for the previous song can never skip the next one.
+ */
+@Service
+public class VoteSkipService {
+    private static final Logger log = LogManager.getLogger(VoteSkipService.class);
+    private final MusicQueueService musicQueueService;
+    private final PlaybackClockService playbackClock;
+    private final CatnipConfig config;
+    private final AtomicReference<Round> round = new AtomicReference<>(new Round(0));
+
+    private static final class Round {
+        private final long handle;
+        private final Set<Long> voters = ConcurrentHashMap.newKeySet();
+        private final LongAdder votes = new LongAdder();
+//        Only the vote that crosses the threshold skips
+        private final AtomicBoolean skipTriggered = new AtomicBoolean(false);
+
+        private Round(long handle) {
+            this.handle = handle;
+        }
+    }
+
+    @Autowired
+    public VoteSkipService(MusicQueueService musicQueueService, PlaybackClockService playbackClock, CatnipConfig config) {
+        this.musicQueueService = musicQueueService;
+        this.playbackClock = playbackClock;
+        this.config = config;
+    }
+
+    /**
+     * Registers a skip vote for the currently playing song. Every user counts once per song.
+     *
+     * @param username Voting user
+     * @return Vote count after this vote and whether it skipped the song
+     */
+    public VoteSkipResponse vote(String username) {
+        int threshold = Math.max(1, config.getVoteSkip().getThreshold());
+        long handle = playbackClock.getCurrentHandle();
+        if (handle == 0) {
+            return new VoteSkipResponse(true, "Nothing is playing right now!", 0, threshold, false);
+        }
+
+        Round current = roundFor(handle);
+        if (!current.voters.add(hashUsername(username))) {
+            return new VoteSkipResponse(true, "You already voted to skip this song!", current.votes.sum(), threshold, false);
+        }
+
+        current.votes.increment();
+        long votes = current.votes.sum();
+        if (votes < threshold || !current.skipTriggered.compareAndSet(false, true)) {
+            return new VoteSkipResponse(false, String.format("Vote counted! (%d/%d)", Math.min(votes, threshold), threshold), votes, threshold, false);
+        }
+
+        boolean skipped = musicQueueService.skip(current.handle);
+        if (skipped) log.info("♫ Vote skip reached {} votes", votes);
+        return new VoteSkipResponse(false, skipped ? "Vote skip passed! Skipping song." : "Song already changed.", votes, threshold, skipped);
+    }
+
+//    Round of the song, replacing the previous song's round if the song changed since the last vote
+    private Round roundFor(long handle) {
+        while (true) {
+            Round current = round.get();
+            if (current.handle == handle) return current;
+
+            Round fresh = new Round(handle);
+            if (round.compareAndSet(current, fresh)) return fresh;
+        }
+    }
+
+//    64-bit FNV-1a of the lowercase username. Usernames are case-insensitive on Twitch.
+    private static long hashUsername(String username) {
+        byte[] bytes = (username == null ? "" : username.toLowerCase(Locale.ROOT)).getBytes(StandardCharsets.UTF_8);
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,299 @@
+package dev.taway.catnip.service.music.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads title, artist and duration straight from MP3 (ID3v2 + MPEG frame header) and MP4/M4A (moov atom) files.
+ * Only the few bytes that hold the metadata are read, so indexing a file takes well under a millisecond and does not
+ * need yt-dlp or ffprobe.
+ */
+public class AudioTagReader {
+//    Cover art can make the tag or moov atom large. Anything above this is not worth reading for three fields.
+    private static final int MAX_METADATA_BYTES = 16 * 1024 * 1024;
+//    How far after the ID3 tag to look for the first MPEG frame
+    private static final int FRAME_SYNC_SEARCH_BYTES = 64 * 1024;
+
+    private static final int[] MPEG1_LAYER3_KBPS = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0};
+    private static final int[] MPEG2_LAYER3_KBPS = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160, 0};
+    private static final int[][] SAMPLE_RATES = {
+            {11025, 12000, 8000, 0}, // MPEG 2.5
+            {0, 0, 0, 0},            // reserved
+            {22050, 24000, 16000, 0},// MPEG 2
+            {44100, 48000, 32000, 0} // MPEG 1
+    };
+
+    /**
+     * @param title    Title tag or null
+     * @param artist   Artist tag or null
+     * @param duration Duration in seconds. 0 if it could not be determined.
+     */
+    public record AudioTags(String title, String artist, double duration) {
+    }
+
+    /**
+     * @param file Audio file
+     * @return Tags of the file. Unsupported formats return empty tags with 0 duration.
+     * @throws IOException If the file can not be read
+     */
+    public static AudioTags read(Path file) throws IOException {
+        String name = file.getFileName().toString().toLowerCase();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (name.endsWith(".mp3")) return readMp3(channel);
+            if (name.endsWith(".m4a") || name.endsWith(".mp4") || name.endsWith(".aac")) return readMp4(channel);
+        }
+        return new AudioTags(null, null, 0);
+    }
+
+    private static AudioTags readMp3(FileChannel channel) throws IOException {
+        String title = null;
+        String artist = null;
+        double tagDuration = 0;
+        long audioStart = 0;
+
+        ByteBuffer header = readAt(channel, 0, 10);
+        if (header.remaining() == 10 && header.get(0) == 'I' && header.get(1) == 'D' && header.get(2) == '3') {
+            int version = header.get(3);
+            boolean footer = (header.get(5) & 0x10) != 0;
+            int tagSize = syncSafe(header, 6);
+            audioStart = 10 + tagSize + (footer ? 10 : 0);
+
+            ByteBuffer tag = readAt(channel, 10, Math.min(tagSize, MAX_METADATA_BYTES));
+            boolean extendedHeader = (header.get(5) & 0x40) != 0;
+            if (extendedHeader && tag.remaining() >= 4) {
+                int extendedSize = version == 4 ? syncSafe(tag, 0) : tag.getInt(0) + 4;
+                tag.position(Math.min(tag.limit(), extendedSize));
+            }
+
+            int idLength = version == 2 ? 3 : 4;
+            int headerLength = version == 2 ? 6 : 10;
+            while (tag.remaining() >= headerLength) {
+                int start = tag.position();
+                String id = new String(bytes(tag, start, idLength), StandardCharsets.ISO_8859_1);
+                if (id.charAt(0) == 0) break; // padding
+
+                int frameSize = switch (version) {
+                    case 2 -> ((tag.get(start + 3) & 0xFF) << 16) | ((tag.get(start + 4) & 0xFF) << 8) | (tag.get(start + 5) & 0xFF);
+                    case 4 -> syncSafe(tag, start + 4);
+                    default -> tag.getInt(start + 4);
+                };
+                int dataStart = start + headerLength;
+                if (frameSize <= 0 || dataStart + frameSize > tag.limit()) break;
+
+                switch (id) {
+                    case "TIT2", "TT2" -> title = textFrame(tag, dataStart, frameSize);
+                    case "TPE1", "TP1" -> artist = textFrame(tag, dataStart, frameSize);
+                    case "TLEN", "TLE" -> tagDuration = parseMillis(textFrame(tag, dataStart, frameSize));
+                    default -> {
+                    }
+                }
+                tag.position(dataStart + frameSize);
+            }
+        }
+
+        double duration = tagDuration > 0 ? tagDuration : mpegDuration(channel, audioStart);
+        return new AudioTags(title, artist, duration);
+    }
+
+//    Duration from the Xing/Info or VBRI frame count, or estimated from the bitrate for CBR files
+    private static double mpegDuration(FileChannel channel, long audioStart) throws IOException {
+        ByteBuffer buffer = readAt(channel, audioStart, FRAME_SYNC_SEARCH_BYTES);
+
+        for (int i = 0; i + 4 <= buffer.limit(); i++) {
+            if ((buffer.get(i) & 0xFF) != 0xFF || (buffer.get(i + 1) & 0xE0) != 0xE0) continue;
+
+            int b1 = buffer.get(i + 1) & 0xFF;
+            int b2 = buffer.get(i + 2) & 0xFF;
+            int b3 = buffer.get(i + 3) & 0xFF;
+            int versionBits = (b1 >> 3) & 0x03;
+            int layerBits = (b1 >> 1) & 0x03;
+            int bitrateIndex = (b2 >> 4) & 0x0F;
+            int sampleRateIndex = (b2 >> 2) & 0x03;
+            int channelMode = (b3 >> 6) & 0x03;
+
+//            Only layer III is used in practice. Anything else is most likely a false sync.
+            if (versionBits == 1 || layerBits != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) continue;
+
+            boolean mpeg1 = versionBits == 3;
+            int sampleRate = SAMPLE_RATES[versionBits][sampleRateIndex];
+            int samplesPerFrame = mpeg1 ? 1152 : 576;
+            int bitrate = (mpeg1 ? MPEG1_LAYER3_KBPS : MPEG2_LAYER3_KBPS)[bitrateIndex] * 1000;
+            boolean mono = channelMode == 3;
+
+            int xingOffset = i + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            if (xingOffset + 12 <= buffer.limit()) {
+                String marker = new String(bytes(buffer, xingOffset, 4), StandardCharsets.ISO_8859_1);
+                if (marker.equals("Xing") || marker.equals("Info")) {
+                    int flags = buffer.getInt(xingOffset + 4);
+                    if ((flags & 0x01) != 0) {
+                        long frames = buffer.getInt(xingOffset + 8) & 0xFFFFFFFFL;
+                        return (double) frames * samplesPerFrame / sampleRate;
+                    }
+                }
+            }
+
+            int vbriOffset = i + 4 + 32;
+            if (vbriOffset + 18 <= buffer.limit()
+                    && new String(bytes(buffer, vbriOffset, 4), StandardCharsets.ISO_8859_1).equals("VBRI")) {
+                long frames = buffer.getInt(vbriOffset + 14) & 0xFFFFFFFFL;
+                return (double) frames * samplesPerFrame / sampleRate;
+            }
+
+            long audioBytes = channel.size() - audioStart - i;
+            return audioBytes * 8.0 / bitrate;
+        }
+        return 0;
+    }
+
+    private static String textFrame(ByteBuffer tag, int start, int size) {
+        if (size < 2) return null;
+        Charset charset = switch (tag.get(start)) {
+            case 1 -> StandardCharsets.UTF_16;
+            case 2 -> StandardCharsets.UTF_16BE;
+            case 3 -> StandardCharsets.UTF_8;
+            default -> StandardCharsets.ISO_8859_1;
+        };
+        String text = new String(bytes(tag, start + 1, size - 1), charset);
+//        Frames can hold several null separated values. The first one is enough.
+        int end = text.indexOf('\0');
+        text = (end == -1 ? text : text.substring(0, end)).trim();
+        return text.isEmpty() ? null : text;
+    }
+
+    private static double parseMillis(String value) {
+        if (value == null) return 0;
+        try {
+            return Long.parseLong(value.trim()) / 1000.0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int syncSafe(ByteBuffer buffer, int index) {
+        return ((buffer.get(index) & 0x7F) << 21)
+                | ((buffer.get(index + 1) & 0x7F) << 14)
+                | ((buffer.get(index + 2) & 0x7F) << 7)
+                | (buffer.get(index + 3) & 0x7F);
+    }
+
+    private static AudioTags readMp4(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long position = 0;
+
+//        Only the moov atom is read. mdat (the audio itself) is skipped without reading it.
+        while (position + 8 <= fileSize) {
+            ByteBuffer header = readAt(channel, position, 16);
+            if (header.remaining() < 8) break;
+
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            String type = new String(bytes(header, 4, 4), StandardCharsets.ISO_8859_1);
+            int headerLength = 8;
+            if (size == 1 && header.remaining() >= 16) {
+                size = header.getLong(8);
+                headerLength = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerLength) break;
+
+            if (type.equals("moov")) {
+                long bodySize = size - headerLength;
+                if (bodySize > MAX_METADATA_BYTES) break;
+                return parseMoov(readAt(channel, position + headerLength, (int) bodySize));
+            }
+            position += size;
+        }
+        return new AudioTags(null, null, 0);
+    }
+
+    private static AudioTags parseMoov(ByteBuffer moov) {
+        String[] texts = new String[2];
+        double duration = 0;
+
+        for (int[] atom : children(moov, 0, moov.limit())) {
+            String type = atomType(moov, atom);
+            if (type.equals("mvhd")) {
+                duration = mvhdDuration(moov, atom[1]);
+            } else if (type.equals("udta")) {
+                for (int[] meta : children(moov, atom[1], atom[2])) {
+                    if (!atomType(moov, meta).equals("meta")) continue;
+//                    meta is a full box, children start after version and flags
+                    for (int[] ilst : children(moov, meta[1] + 4, meta[2])) {
+                        if (atomType(moov, ilst).equals("ilst")) readIlst(moov, ilst, texts);
+                    }
+                }
+            }
+        }
+        return new AudioTags(texts[0], texts[1], duration);
+    }
+
+    private static double mvhdDuration(ByteBuffer moov, int bodyStart) {
+        int version = moov.get(bodyStart);
+        if (version == 1) {
+            long timescale = moov.getInt(bodyStart + 20) & 0xFFFFFFFFL;
+            long duration = moov.getLong(bodyStart + 24);
+            return timescale == 0 ? 0 : (double) duration / timescale;
+        }
+        long timescale = moov.getInt(bodyStart + 12) & 0xFFFFFFFFL;
+        long duration = moov.getInt(bodyStart + 16) & 0xFFFFFFFFL;
+        return timescale == 0 ? 0 : (double) duration / timescale;
+    }
+
+    private static void readIlst(ByteBuffer moov, int[] ilst, String[] texts) {
+        for (int[] item : children(moov, ilst[1], ilst[2])) {
+            int index = switch (atomType(moov, item)) {
+                case "©nam" -> 0;
+                case "©ART" -> 1;
+                default -> -1;
+            };
+            if (index == -1) continue;
+
+            for (int[] data : children(moov, item[1], item[2])) {
+//                data atom: 4 bytes type indicator, 4 bytes locale, then the value
+                if (!atomType(moov, data).equals("data") || data[2] - data[1] <= 8) continue;
+                String text = new String(bytes(moov, data[1] + 8, data[2] - data[1] - 8), StandardCharsets.UTF_8).trim();
+                if (!text.isEmpty()) texts[index] = text;
+            }
+        }
+    }
+
+//    Child atoms as {start, bodyStart, end}
+    private static List<int[]> children(ByteBuffer buffer, int from, int to) {
+        List<int[]> atoms = new ArrayList<>();
+        int position = from;
+        while (position + 8 <= to) {
+            long size = buffer.getInt(position) & 0xFFFFFFFFL;
+            if (size < 8 || position + size > to) break;
+            atoms.add(new int[]{position, position + 8, (int) (position + size)});
+            position += (int) size;
+        }
+        return atoms;
+    }
+
+    private static String atomType(ByteBuffer buffer, int[] atom) {
+        return new String(bytes(buffer, atom[0] + 4, 4), StandardCharsets.ISO_8859_1);
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - position)));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int index, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(index, bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,196 @@
+package dev.taway.catnip.service.music.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an external process and streams its output. STDOUT and STDERR are drained at the same time on two virtual
+ * threads, so a process writing a lot to one stream can never block on a full pipe while the other one is read.
+ * <br>
+ * Lines are not collected. Every line is handed to the {@link LineParser}s as soon as it is read, parsers keep only
+ * what they need. Only the last {@value #TAIL_LINES} lines of each stream are kept for error messages.
+ * <br>
+ * The process is killed once the timeout runs out, a parser asks to stop, e.g. because the outcome is already known,
+ * or the waiting thread is interrupted. Killing takes down the whole process tree, yt-dlp starts ffmpeg and may itself
+ * run under a wrapper script, killing only the started process would leave those running.
+ */
+public class ProcessRunner {
+    private static final Logger log = LogManager.getLogger(ProcessRunner.class);
+    private static final int TAIL_LINES = 32;
+//    Output still in the pipes after the process exited is read for at most this long
+    private static final long DRAIN_MILLIS = 2000;
+
+    /**
+     * Stream a line was read from.
+     */
+    public enum Source {
+        STDOUT,
+        STDERR
+    }
+
+    /**
+     * Line of output. The lower case form is computed once and shared by all parsers.
+     */
+    public static final class Line {
+        private final Source source;
+        private final String text;
+        private String lower;
+
+        Line(Source source, String text) {
+            this.source = source;
+            this.text = text;
+        }
+
+        public Source source() {
+            return source;
+        }
+
+        public String text() {
+            return text;
+        }
+
+        public String lower() {
+            if (lower == null) lower = text.toLowerCase(Locale.ROOT);
+            return lower;
+        }
+    }
+
+    /**
+     * Incremental parser fed one line at a time. Lines of both streams are delivered one after another, never at the
+     * same time, so parsers do not need their own locking.
+     */
+    @FunctionalInterface
+    public interface LineParser {
+        /**
+         * @param line Line read from the process
+         * @return False to stop the process, nothing more is needed from it
+         */
+        boolean accept(Line line);
+    }
+
+    /**
+     * @param exitCode   Exit code, -1 if the process was killed
+     * @param timedOut   True if the process was killed because the timeout ran out
+     * @param stopped    True if the process was killed because a parser asked to stop
+     * @param stdoutTail Last lines of STDOUT
+     * @param stderrTail Last lines of STDERR
+     */
+    public record Result(int exitCode, boolean timedOut, boolean stopped, List<String> stdoutTail, List<String> stderrTail) {
+    }
+
+    /**
+     * Starts the process and blocks until it exited, was stopped by a parser or ran out of time.
+     *
+     * @param builder Process to start
+     * @param timeout Maximum run time. The process is killed after that.
+     * @param parsers Parsers receiving every line
+     * @return Outcome of the run
+     * @throws IOException          If the process could not be started
+     * @throws InterruptedException If interrupted before the start or while waiting. The process tree is killed.
+     */
+    public static Result run(ProcessBuilder builder, Duration timeout, LineParser... parsers) throws IOException, InterruptedException {
+//        Interrupt could have come in between two runs, do not start another one
+        if (Thread.interrupted()) throw new InterruptedException("Interrupted before the process was started");
+
+        Process process = builder.start();
+        Run run = new Run(process, parsers);
+        Thread stdout = Thread.ofVirtual().name("process-stdout-" + process.pid()).start(() -> run.drain(process.getInputStream(), Source.STDOUT));
+        Thread stderr = Thread.ofVirtual().name("process-stderr-" + process.pid()).start(() -> run.drain(process.getErrorStream(), Source.STDERR));
+
+        boolean timedOut;
+        try {
+            timedOut = !process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            log.debug("Interrupted while waiting for process {}, killing it", process.pid());
+            destroyTree(process);
+            throw e;
+        }
+        if (timedOut) {
+            log.warn("Process {} did not finish within {}s and was killed", process.pid(), timeout.toSeconds());
+            destroyTree(process);
+        }
+
+//        Children of the process can keep the pipes open after it exited. Closing them ends the readers.
+        long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        stdout.join(Duration.ofNanos(Math.max(1, drainUntil - System.nanoTime())));
+        stderr.join(Duration.ofNanos(Math.max(1, drainUntil - System.nanoTime())));
+        if (stdout.isAlive() || stderr.isAlive()) {
+            process.getInputStream().close();
+            process.getErrorStream().close();
+        }
+
+        int exitCode = timedOut || run.isStopped() ? -1 : process.exitValue();
+        return run.result(exitCode, timedOut);
+    }
+
+    /**
+     * Kills the process and all its descendants. Descendants go first, once the process is dead its children are
+     * re-parented and can not be found through it anymore.
+     *
+     * @param process Process to kill
+     */
+    public static void destroyTree(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+
+    private static final class Run {
+        private final Process process;
+        private final LineParser[] parsers;
+        private final ArrayDeque<String> stdoutTail = new ArrayDeque<>(TAIL_LINES);
+        private final ArrayDeque<String> stderrTail = new ArrayDeque<>(TAIL_LINES);
+        private boolean stopped = false;
+
+        Run(Process process, LineParser[] parsers) {
+            this.process = process;
+            this.parsers = parsers;
+        }
+
+        void drain(InputStream stream, Source source) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String text;
+                while ((text = reader.readLine()) != null) {
+                    accept(new Line(source, text));
+                }
+            } catch (IOException e) {
+//                Stream closed after the process was killed
+                log.trace("Stopped reading {} of process {}: {}", source, process.pid(), e.getMessage());
+            }
+        }
+
+        synchronized void accept(Line line) {
+            ArrayDeque<String> tail = line.source() == Source.STDOUT ? stdoutTail : stderrTail;
+            if (tail.size() == TAIL_LINES) tail.removeFirst();
+            tail.addLast(line.text());
+
+            if (stopped) return;
+            for (LineParser parser : parsers) {
+                if (!parser.accept(line)) {
+                    stopped = true;
+                    destroyTree(process);
+                    return;
+                }
+            }
+        }
+
+        synchronized boolean isStopped() {
+            return stopped;
+        }
+
+        synchronized Result result(int exitCode, boolean timedOut) {
+            return new Result(exitCode, timedOut, stopped, new ArrayList<>(stdoutTail), new ArrayList<>(stderrTail));
+        }
+    }
+}
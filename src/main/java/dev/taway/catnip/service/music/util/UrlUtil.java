@@ -1,8 +1,5 @@
 package dev.taway.catnip.service.music.util;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 public class UrlUtil {
     /**
      * Shortens a YouTube URL. Example: <br>
@@ -10,13 +7,11 @@ public class UrlUtil {
      * Output: {@code "lgzCxqQUU5g"}
      *
      * @param url YouTube URL to be shortened.
-     * @return Shortened URL
+     * @return Shortened URL, or null if the URL is not a YouTube video URL
+     * @see YouTubeUrlParser
      */
     public static String shortenURL(String url) {
-//        11 is not a magic number. YouTube has 11 char long video IDs
-        String regex = "(?:youtu\\.be/|youtube\\.com/(?:.*v=|embed/|v/|shorts/|live/))([a-zA-Z0-9_-]{11})";
-        Matcher matcher = Pattern.compile(regex).matcher(url);
-        return matcher.find() ? matcher.group(1) : null;
+        return YouTubeUrlParser.parse(url) instanceof YouTubeUrlParser.Accepted accepted ? accepted.videoId() : null;
     }
 
     /**
@@ -27,13 +22,12 @@ public class UrlUtil {
      * Output: {@code "https://www.youtube.com/watch?v=cvaIgq5j2Q8"} <br>
      * Invalid input example: <br>
      * Input: {@code "invalid_url"} <br>
-     * Output: {@code "https://www.youtube.com/watch?v=null"}
+     * Output: {@code null}
      *
      * @param url YouTube URL to sanitize
-     * @return Sanitized YouTube watch URL, or URL with {@code "null"} if input is invalid
+     * @return Sanitized YouTube watch URL, or null if the URL is not a YouTube video URL
      */
     public static String sanitizeURL(String url) {
-        String urlShortened = shortenURL(url);
-        return String.format("https://www.youtube.com/watch?v=%s", urlShortened);
+        return YouTubeUrlParser.parse(url) instanceof YouTubeUrlParser.Accepted accepted ? accepted.watchUrl() : null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,82 @@
+package dev.taway.catnip.service.music.util;
+
+import java.util.Arrays;
+
+/**
+ * Packs YouTube video IDs into a single {@code long}. <br>
+ * An ID is 11 characters of base64url. The first 10 characters carry 6 bits each, the last one only 4 (YouTube always
+ * leaves its 2 lowest bits zero), which adds up to exactly 64 bits. Packing is lossless:
+ * {@code decode(encode(id)).equals(id)} for every valid ID. <br>
+ * Every {@code long} is a valid packed ID, so there is no spare value to mark "no ID". Check {@link #isValid(String)}
+ * before encoding anything that did not come from YouTube.
+ */
+public final class VideoId {
+    public static final int LENGTH = 11;
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+//    Character to its 6 bit value, -1 if it is not part of the alphabet
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private VideoId() {
+    }
+
+    /**
+     * @param id Possible video ID
+     * @return True if the ID is 11 base64url characters and its last character fits into 4 bits
+     */
+    public static boolean isValid(String id) {
+        if (id == null || id.length() != LENGTH) return false;
+        for (int i = 0; i < LENGTH; i++) {
+            if (value(id.charAt(i)) < 0) return false;
+        }
+        return (value(id.charAt(LENGTH - 1)) & 0b11) == 0;
+    }
+
+    /**
+     * Packs a video ID. Example: <br>
+     * Input: {@code "lgzCxqQUU5g"} <br>
+     * Output: the same ID as one {@code long}, first character in the highest bits
+     *
+     * @param id Video ID
+     * @return Packed ID
+     * @throws IllegalArgumentException If the ID is not valid, see {@link #isValid(String)}
+     */
+    public static long encode(String id) {
+        if (!isValid(id)) {
+            throw new IllegalArgumentException("Not a YouTube video ID: " + id);
+        }
+
+        long packed = 0;
+        for (int i = 0; i < LENGTH - 1; i++) {
+            packed = (packed << 6) | value(id.charAt(i));
+        }
+        return (packed << 4) | (value(id.charAt(LENGTH - 1)) >>> 2);
+    }
+
+    /**
+     * Unpacks a video ID packed by {@link #encode(String)}.
+     *
+     * @param packed Packed ID
+     * @return 11 character video ID
+     */
+    public static String decode(long packed) {
+        char[] chars = new char[LENGTH];
+        chars[LENGTH - 1] = ALPHABET[(int) (packed & 0xF) << 2];
+        packed >>>= 4;
+        for (int i = LENGTH - 2; i >= 0; i--) {
+            chars[i] = ALPHABET[(int) (packed & 0x3F)];
+            packed >>>= 6;
+        }
+        return new String(chars);
+    }
+
+    private static int value(char c) {
+        return c < VALUES.length ? VALUES[c] : -1;
+    }
+}
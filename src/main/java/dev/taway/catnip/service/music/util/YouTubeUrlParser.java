@@ -0,0 +1,214 @@
+package dev.taway.catnip.service.music.util;
+
+/**
+ * Extracts the video ID from YouTube URLs in a single pass over the input, without regular expressions. <br>
+ * Understood forms (scheme optional, host case insensitive, {@code www.}, {@code m.} and {@code music.} subdomains
+ * allowed on youtube.com):
+ * <ul>
+ *     <li>{@code https://youtu.be/<id>}</li>
+ *     <li>{@code https://www.youtube.com/watch?v=<id>} ({@code v} can be anywhere in the query)</li>
+ *     <li>{@code https://www.youtube.com/embed/<id>}, {@code /v/<id>}, {@code /shorts/<id>}, {@code /live/<id>}</li>
+ * </ul>
+ * Anything else is rejected with a reason. Rejections are shared constants, parsing only allocates for an accepted URL.
+ */
+public final class YouTubeUrlParser {
+    private static final String SHORT_HOST = "youtu.be";
+    private static final String HOST = "youtube.com";
+
+    private YouTubeUrlParser() {
+    }
+
+    /**
+     * Result of {@link #parse(CharSequence)}. Either {@link Accepted} or {@link Rejected}.
+     */
+    public sealed interface Result permits Accepted, Rejected {
+    }
+
+    /**
+     * @param videoId 11 character video ID
+     * @param form    URL form the ID was found in
+     */
+    public record Accepted(String videoId, Form form) implements Result {
+        /**
+         * @return Video ID packed by {@link VideoId#encode(String)}
+         */
+        public long packedId() {
+            return VideoId.encode(videoId);
+        }
+
+        /**
+         * @return Standard watch URL without playlist, tracking or timestamp parameters
+         */
+        public String watchUrl() {
+            return "https://www.youtube.com/watch?v=" + videoId;
+        }
+    }
+
+    /**
+     * @param reason Why the URL was not accepted
+     */
+    public record Rejected(Rejection reason) implements Result {
+        private static final Rejected[] BY_REASON = new Rejected[Rejection.values().length];
+
+        static {
+            for (Rejection reason : Rejection.values()) {
+                BY_REASON[reason.ordinal()] = new Rejected(reason);
+            }
+        }
+
+        private static Rejected of(Rejection reason) {
+            return BY_REASON[reason.ordinal()];
+        }
+    }
+
+    public enum Form {
+        SHORT_LINK,
+        WATCH,
+        EMBED,
+        V,
+        SHORTS,
+        LIVE
+    }
+
+    public enum Rejection {
+        /**
+         * Input is null or blank
+         */
+        EMPTY,
+        /**
+         * Host is not YouTube
+         */
+        NOT_YOUTUBE,
+        /**
+         * YouTube URL that does not point to a video (channel, playlist, search...)
+         */
+        NO_VIDEO_ID,
+        /**
+         * Video ID has the wrong length or characters
+         */
+        INVALID_VIDEO_ID
+    }
+
+    /**
+     * Parses a YouTube URL. Example: <br>
+     * Input: {@code "https://youtu.be/lgzCxqQUU5g?si=OGS77kTm_KTKp8I0"} <br>
+     * Output: {@code Accepted("lgzCxqQUU5g", SHORT_LINK)}
+     *
+     * @param url URL to parse, may be null
+     * @return {@link Accepted} with the video ID or {@link Rejected} with the reason
+     */
+    public static Result parse(CharSequence url) {
+        if (url == null) return Rejected.of(Rejection.EMPTY);
+
+        int end = url.length();
+        int pos = 0;
+        while (pos < end && Character.isWhitespace(url.charAt(pos))) pos++;
+        while (end > pos && Character.isWhitespace(url.charAt(end - 1))) end--;
+        if (pos == end) return Rejected.of(Rejection.EMPTY);
+
+//        Scheme
+        if (startsWithIgnoreCase(url, pos, end, "https://")) {
+            pos += 8;
+        } else if (startsWithIgnoreCase(url, pos, end, "http://")) {
+            pos += 7;
+        }
+
+//        Host ends at the path, query or fragment
+        int hostEnd = pos;
+        while (hostEnd < end && !isHostTerminator(url.charAt(hostEnd))) hostEnd++;
+
+        if (equalsIgnoreCase(url, pos, hostEnd, SHORT_HOST)) {
+            if (hostEnd == end || url.charAt(hostEnd) != '/') return Rejected.of(Rejection.NO_VIDEO_ID);
+            return videoId(url, hostEnd + 1, end, Form.SHORT_LINK);
+        }
+
+        int domain = pos;
+        if (startsWithIgnoreCase(url, domain, hostEnd, "www.")) {
+            domain += 4;
+        } else if (startsWithIgnoreCase(url, domain, hostEnd, "m.")) {
+            domain += 2;
+        } else if (startsWithIgnoreCase(url, domain, hostEnd, "music.")) {
+            domain += 6;
+        }
+        if (!equalsIgnoreCase(url, domain, hostEnd, HOST)) return Rejected.of(Rejection.NOT_YOUTUBE);
+        if (hostEnd == end || url.charAt(hostEnd) != '/') return Rejected.of(Rejection.NO_VIDEO_ID);
+
+        pos = hostEnd + 1;
+        if (startsWith(url, pos, end, "watch")) {
+            return watchQuery(url, pos + 5, end);
+        }
+        if (startsWith(url, pos, end, "embed/")) return videoId(url, pos + 6, end, Form.EMBED);
+        if (startsWith(url, pos, end, "v/")) return videoId(url, pos + 2, end, Form.V);
+        if (startsWith(url, pos, end, "shorts/")) return videoId(url, pos + 7, end, Form.SHORTS);
+        if (startsWith(url, pos, end, "live/")) return videoId(url, pos + 5, end, Form.LIVE);
+        return Rejected.of(Rejection.NO_VIDEO_ID);
+    }
+
+//    pos points right after "watch". Looks for the v parameter in the query.
+    private static Result watchQuery(CharSequence url, int pos, int end) {
+        if (pos == end || url.charAt(pos) != '?') return Rejected.of(Rejection.NO_VIDEO_ID);
+        pos++;
+
+        while (pos < end) {
+            char c = url.charAt(pos);
+            if (c == '#') break;
+            if (c == 'v' && pos + 1 < end && url.charAt(pos + 1) == '=') {
+                return videoId(url, pos + 2, end, Form.WATCH);
+            }
+//            Skip to the next parameter
+            while (pos < end && url.charAt(pos) != '&' && url.charAt(pos) != '#') pos++;
+            if (pos < end && url.charAt(pos) == '&') pos++;
+            else break;
+        }
+        return Rejected.of(Rejection.NO_VIDEO_ID);
+    }
+
+//    Video ID has to be exactly 11 characters followed by the end of the URL or a delimiter
+    private static Result videoId(CharSequence url, int start, int end, Form form) {
+        int idEnd = start;
+        while (idEnd < end && isIdChar(url.charAt(idEnd))) idEnd++;
+
+        if (idEnd == start) return Rejected.of(Rejection.NO_VIDEO_ID);
+        if (idEnd - start != VideoId.LENGTH || (idEnd < end && !isIdTerminator(url.charAt(idEnd)))) {
+            return Rejected.of(Rejection.INVALID_VIDEO_ID);
+        }
+
+        String id = url.subSequence(start, idEnd).toString();
+        return VideoId.isValid(id) ? new Accepted(id, form) : Rejected.of(Rejection.INVALID_VIDEO_ID);
+    }
+
+    private static boolean isIdChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+    }
+
+    private static boolean isIdTerminator(char c) {
+        return c == '?' || c == '&' || c == '#' || c == '/';
+    }
+
+    private static boolean isHostTerminator(char c) {
+        return c == '/' || c == '?' || c == '#';
+    }
+
+    private static boolean startsWith(CharSequence s, int from, int end, String prefix) {
+        if (end - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (s.charAt(from + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWithIgnoreCase(CharSequence s, int from, int end, String prefix) {
+        if (end - from < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+//            Prefixes are lowercase ASCII
+            char c = s.charAt(from + i);
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(CharSequence s, int from, int end, String expected) {
+        return end - from == expected.length() && startsWithIgnoreCase(s, from, end, expected);
+    }
+}
@@ -0,0 +1,160 @@
+package dev.taway.catnip.service.music.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * {@link ProcessRunner.LineParser}s for yt-dlp output. Each one looks for a single thing and remembers only that.
+ * Parsers are used for one run and read once the run is over.
+ */
+public class YtDlpOutput {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Metadata printed as a JSON line by {@code --print}. The first line with a title wins.
+     */
+    public static class MetadataParser implements ProcessRunner.LineParser {
+        private Map<String, Object> data;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean accept(ProcessRunner.Line line) {
+            if (data != null || !line.text().startsWith("{")) return true;
+            try {
+                Map<String, Object> candidate = objectMapper.readValue(line.text(), Map.class);
+                if (candidate.containsKey("title")) data = candidate;
+            } catch (JsonProcessingException ignored) {
+            }
+            return true;
+        }
+
+        /**
+         * @return Printed metadata, null if none was found
+         */
+        public Map<String, Object> getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Age gate. Nothing can be fetched once it is hit, so the run is stopped.
+     */
+    public static class AgeGateParser implements ProcessRunner.LineParser {
+        private boolean detected = false;
+
+        @Override
+        public boolean accept(ProcessRunner.Line line) {
+            if (line.text().contains("Sign in to confirm your age")) {
+                detected = true;
+                return false;
+            }
+            return true;
+        }
+
+        public boolean isDetected() {
+            return detected;
+        }
+    }
+
+    /**
+     * File the song is written to, from {@code Destination:} lines. The last one wins (post-processing adds more).
+     */
+    public static class DestinationParser implements ProcessRunner.LineParser {
+        private static final String MARKER = "destination:";
+        private String path;
+
+        @Override
+        public boolean accept(ProcessRunner.Line line) {
+            int index = line.lower().indexOf(MARKER);
+            if (index == -1) return true;
+
+            String candidate = line.text().substring(index + MARKER.length()).trim();
+            if (!candidate.endsWith(File.separator)) path = candidate;
+            return true;
+        }
+
+        /**
+         * @return Path of the downloaded file, null if none was reported
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Container correction (FixupM4a). The file is rewritten after the download when it runs.
+     */
+    public static class ContainerCorrectionParser implements ProcessRunner.LineParser {
+        private boolean correcting = false;
+
+        @Override
+        public boolean accept(ProcessRunner.Line line) {
+            if (!correcting && line.lower().contains("correcting container")) correcting = true;
+            return true;
+        }
+
+        public boolean isCorrecting() {
+            return correcting;
+        }
+    }
+
+    /**
+     * Final file path printed by {@code --print after_move:filepath}. Every STDOUT line that is neither JSON nor a
+     * {@code [tag]} message is taken as the path.
+     */
+    public static class FilePathParser implements ProcessRunner.LineParser {
+        private String path;
+
+        @Override
+        public boolean accept(ProcessRunner.Line line) {
+            String text = line.text();
+            if (line.source() != ProcessRunner.Source.STDOUT || text.isBlank() || text.startsWith("{") || text.startsWith("[")) {
+                return true;
+            }
+            path = text.trim();
+            return true;
+        }
+
+        /**
+         * @return Path of the downloaded file, null if none was printed
+         */
+        public String getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Download progress from {@code [download]  42.0% of ...} lines.
+     */
+    public static class ProgressParser implements ProcessRunner.LineParser {
+        private volatile double percent = 0;
+
+        @Override
+        public boolean accept(ProcessRunner.Line line) {
+            String text = line.text();
+            if (!text.startsWith("[download]")) return true;
+
+            int end = text.indexOf('%');
+            if (end == -1) return true;
+            int start = end;
+            while (start > 0 && (Character.isDigit(text.charAt(start - 1)) || text.charAt(start - 1) == '.')) start--;
+            if (start == end) return true;
+
+            try {
+                percent = Double.parseDouble(text.substring(start, end));
+            } catch (NumberFormatException ignored) {
+            }
+            return true;
+        }
+
+        /**
+         * @return Last reported progress, 0 to 100. Readable while the run is going on.
+         */
+        public double getPercent() {
+            return percent;
+        }
+    }
+}
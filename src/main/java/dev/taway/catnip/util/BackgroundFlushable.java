@@ -0,0 +1,19 @@
+package dev.taway.catnip.util;
+
+/**
+ * Something that buffers changes in memory and writes them to disk when asked to. Flushed periodically by
+ * {@code PersistenceService} on its I/O thread.
+ */
+public interface BackgroundFlushable {
+    /**
+     * Writes buffered changes to disk. Does nothing if nothing changed since the last flush.
+     *
+     * @return True if nothing had to be written or the write succeeded
+     */
+    boolean flushIfDirty();
+
+    /**
+     * @return Path of the file written, for log messages
+     */
+    String getPath();
+}
@@ -0,0 +1,66 @@
+package dev.taway.catnip.util;
+
+/**
+ * Bloom filter over {@code long} keys. {@link #mightContain(long)} never misses an added key and is wrong about keys
+ * that were never added at roughly the false positive rate given on creation. Keys can not be removed, rebuild the
+ * filter instead.
+ * <br>
+ * This class is NOT thread safe. Callers are expected to guard it with their own lock.
+ */
+public class BloomFilter {
+    private final long[] bits;
+    private final int bitCount;
+    private final int hashCount;
+
+    /**
+     * @param expectedKeys      Number of keys expected to be added
+     * @param falsePositiveRate Wanted false positive rate at that many keys, e.g. {@code 0.01}
+     */
+    public BloomFilter(int expectedKeys, double falsePositiveRate) {
+        int keys = Math.max(1, expectedKeys);
+        long optimalBits = (long) Math.ceil(-keys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, optimalBits));
+        this.bits = new long[(bitCount + 63) >>> 6];
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / keys * Math.log(2)));
+    }
+
+    /**
+     * @param key Key to add
+     */
+    public void add(long key) {
+        long hash1 = mix(key);
+        long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int index = index(hash1 + i * hash2);
+            bits[index >>> 6] |= 1L << index;
+        }
+    }
+
+    /**
+     * @param key Key to check
+     * @return False if the key was definitely never added
+     */
+    public boolean mightContain(long key) {
+        long hash1 = mix(key);
+        long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int index = index(hash1 + i * hash2);
+            if ((bits[index >>> 6] & (1L << index)) == 0) return false;
+        }
+        return true;
+    }
+
+    private int index(long hash) {
+        return (int) ((hash >>> 1) % bitCount);
+    }
+
+//    Murmur3 finalizer, same as LongObjectHashMap
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -7,10 +7,20 @@ import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class CacheDataHandler<T> {
+//    ObjectMapper is thread safe once configured and expensive to create
+    private static final ObjectMapper objectMapper = new ObjectMapper();
     private final Class<T> clazz;
     private static final Logger log = LogManager.getLogger(CacheDataHandler.class);
 
@@ -28,11 +38,9 @@ public class CacheDataHandler<T> {
             return data;
         }
 
-        ObjectMapper objectMapper = new ObjectMapper();
-
         try {
             JavaType arrayType = objectMapper.getTypeFactory().constructArrayType(clazz);
-            T[] entriesList = objectMapper.readValue(new File(System.getProperty("user.dir") + path), arrayType);
+            T[] entriesList = objectMapper.readValue(file, arrayType);
 
             data = new ArrayList<>(Arrays.asList(entriesList));
 
@@ -44,14 +52,38 @@ public class CacheDataHandler<T> {
         return data;
     }
 
-    public void save(String path, ArrayList<T> data) {
-        ObjectMapper objectMapper = new ObjectMapper();
+    /**
+     * Saves the data as a JSON array. The data is written to a temporary file next to the target, synced to disk and
+     * then renamed over the target, so a crash leaves either the old or the new file but never half of one.
+     *
+     * @param path Path relative to the working directory
+     * @param data Entries to save
+     * @return True if the data was saved
+     */
+    public boolean save(String path, List<T> data) {
+        Path target = Path.of(System.getProperty("user.dir") + path);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
 
         try {
-            objectMapper.writeValue(new File(System.getProperty("user.dir") + path), data);
-            log.info("Successfully saved {} entries to \"{}\"", data.size(), path);
+            byte[] json = objectMapper.writeValueAsBytes(data);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(json);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(true);
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+//                File system can not rename atomically. Still better than writing the target in place.
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            log.debug("Successfully saved {} entries to \"{}\"", data.size(), path);
+            return true;
         } catch (IOException e) {
             log.error("An error occurred while trying to save {} entries to \"{}\"! {}", data.size(), path, e.getMessage());
+            return false;
         }
     }
 }
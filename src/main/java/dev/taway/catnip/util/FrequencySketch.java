@@ -0,0 +1,88 @@
+package dev.taway.catnip.util;
+
+/**
+ * Count-min sketch estimating how often a {@code long} key was seen, in the style of TinyLFU. Each key maps to one
+ * 4 bit counter in each of 4 rows, the estimate is the smallest of the 4 (overestimates only on collisions, never
+ * underestimates). Counters saturate at 15.
+ * <br>
+ * Once as many increments were recorded as the sketch has slots per row times 10, every counter is halved. Old
+ * popularity fades this way, so a song played a lot last year does not outrank what is played this week.
+ * <br>
+ * This class is NOT thread safe. Callers are expected to guard it with their own lock.
+ */
+public class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final long[] SEEDS = {
+            0x97cb3127e2a5b1c5L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+//    16 counters of 4 bits per long
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeys Number of distinct keys the sketch should tell apart well
+     */
+    public FrequencySketch(int expectedKeys) {
+        int counters = Math.max(64, Integer.highestOneBit(Math.max(expectedKeys, 1) - 1) << 1);
+        this.table = new long[ROWS][counters / 16];
+        this.mask = counters - 1;
+        this.sampleSize = counters * 10;
+    }
+
+    /**
+     * Records one occurrence of the key.
+     *
+     * @param key Key
+     */
+    public void increment(long key) {
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(key, row);
+            long word = table[row][index >>> 4];
+            int shift = (index & 15) << 2;
+            if (((word >>> shift) & 0xF) != 0xF) {
+                table[row][index >>> 4] = word + (1L << shift);
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize) {
+            halve();
+        }
+    }
+
+    /**
+     * @param key Key
+     * @return Estimated number of occurrences, 0 to 15
+     */
+    public int frequency(long key) {
+        int frequency = 0xF;
+        for (int row = 0; row < ROWS; row++) {
+            int index = index(key, row);
+            int count = (int) ((table[row][index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    private void halve() {
+        for (long[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (row[i] >>> 1) & RESET_MASK;
+            }
+        }
+        additions /= 2;
+    }
+
+    private int index(long key, int row) {
+        long hash = (key + SEEDS[row]) * SEEDS[row];
+        hash ^= hash >>> 32;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 29;
+        return (int) hash & mask;
+    }
+}
@@ -0,0 +1,235 @@
+package dev.taway.catnip.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hash map from primitive {@code long} keys to objects. Keys and values live in two flat arrays (open addressing with
+ * linear probing), so there is no boxed key and no entry object per mapping, and lookups allocate nothing.
+ * <br>
+ * Every {@code long} is a usable key. A slot is empty when its value is null, which is why null values are not allowed.
+ * Removal shifts the following entries back instead of leaving tombstones, so lookups never slow down after many
+ * removals.
+ * <br>
+ * This class is NOT thread safe. Callers are expected to guard it with their own lock.
+ *
+ * @param <V> Value type
+ */
+public class LongObjectHashMap<V> {
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private V[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public LongObjectHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize Number of mappings the map should hold without resizing
+     */
+    public LongObjectHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * @param key Key
+     * @return Value mapped to the key, or null if there is none
+     */
+    public V get(long key) {
+        int slot = slot(key);
+        V value;
+        while ((value = values[slot]) != null) {
+            if (keys[slot] == key) return value;
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @param key Key
+     * @return True if the key is mapped
+     */
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Maps the key to the value, replacing any previous value.
+     *
+     * @param key   Key
+     * @param value Value, not null
+     * @return Previous value, or null if the key was not mapped
+     */
+    public V put(long key, V value) {
+        return put(key, value, true);
+    }
+
+    /**
+     * Maps the key to the value unless it is already mapped.
+     *
+     * @param key   Key
+     * @param value Value, not null
+     * @return Existing value, or null if the value was added
+     */
+    public V putIfAbsent(long key, V value) {
+        return put(key, value, false);
+    }
+
+    /**
+     * @param key Key
+     * @return Removed value, or null if the key was not mapped
+     */
+    public V remove(long key) {
+        int slot = slot(key);
+        V value;
+        while ((value = values[slot]) != null) {
+            if (keys[slot] == key) {
+                shiftBack(slot);
+                size--;
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Calls the action for every value, in no particular order. The map must not be changed from inside the action.
+     *
+     * @param action Called once per value
+     */
+    public void forEachValue(Consumer<? super V> action) {
+        for (V value : values) {
+            if (value != null) action.accept(value);
+        }
+    }
+
+    /**
+     * Calls the action for every mapping, in no particular order. The map must not be changed from inside the action.
+     *
+     * @param action Called once per mapping
+     */
+    public void forEach(EntryConsumer<? super V> action) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) action.accept(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * @return Copy of all values, in no particular order
+     */
+    public List<V> values() {
+        List<V> copy = new ArrayList<>(size);
+        forEachValue(copy::add);
+        return copy;
+    }
+
+    /**
+     * Receives a mapping without boxing its key.
+     *
+     * @param <V> Value type
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    private V put(long key, V value, boolean replace) {
+        if (value == null) throw new NullPointerException("LongObjectHashMap does not allow null values");
+
+        int slot = slot(key);
+        V existing;
+        while ((existing = values[slot]) != null) {
+            if (keys[slot] == key) {
+                if (replace) values[slot] = value;
+                return existing;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > resizeAt) resize(values.length << 1);
+        return null;
+    }
+
+//    Closes the gap left by a removed entry by moving back every following entry that would otherwise become
+//    unreachable from its home slot.
+    private void shiftBack(int gap) {
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            V value = values[slot];
+            if (value == null) break;
+
+            int home = slot(keys[slot]);
+//            Entry can move into the gap only if its home slot is not (cyclically) between the gap and its slot
+            boolean movable = gap <= slot ? (home <= gap || home > slot) : (home <= gap && home > slot);
+            if (movable) {
+                keys[gap] = keys[slot];
+                values[gap] = value;
+                gap = slot;
+            }
+        }
+        values[gap] = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = (V[]) new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        V[] oldValues = values;
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            V value = oldValues[i];
+            if (value == null) continue;
+
+            int slot = slot(oldKeys[i]);
+            while (values[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = value;
+        }
+    }
+
+    private int slot(long key) {
+//        Murmur3 finalizer. Packed IDs are fairly random already, but sequential keys would cluster badly without it.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key & mask;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int needed = (int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR) + 1;
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(needed - 1) << 1);
+    }
+}
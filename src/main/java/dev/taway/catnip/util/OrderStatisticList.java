@@ -0,0 +1,402 @@
+package dev.taway.catnip.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * List backed by an implicit treap (randomized balanced tree ordered by position).
+ * Positional insert, remove, move and lookup run in O(log n). Every element is wrapped in a {@link Node} which acts
+ * as a stable handle: its position can be found without searching, even after other elements were added or removed.
+ * <br>
+ * Optionally every element can carry a weight. Subtree weight sums are kept up to date on every change so prefix sums
+ * ("total weight of everything before position k") are O(log n) as well.
+ * <br>
+ * This class is NOT thread safe. Callers are expected to guard it with their own lock.
+ *
+ * @param <E> Element type
+ */
+public class OrderStatisticList<E> implements Iterable<E> {
+    private final SplittableRandom random = new SplittableRandom();
+    private final ToDoubleFunction<E> weightFunction;
+    private Node<E> root;
+
+    /**
+     * Creates a list without weights. Weight sums are always 0.
+     */
+    public OrderStatisticList() {
+        this(value -> 0);
+    }
+
+    /**
+     * @param weightFunction Weight of an element. Evaluated once when the element is inserted.
+     */
+    public OrderStatisticList(ToDoubleFunction<E> weightFunction) {
+        this.weightFunction = weightFunction;
+    }
+
+    public static final class Node<E> {
+        private final E value;
+        private final int priority;
+        private final double weight;
+        private Node<E> left;
+        private Node<E> right;
+        private Node<E> parent;
+        private int size = 1;
+        private double weightSum;
+        private boolean attached;
+
+        private Node(E value, int priority, double weight) {
+            this.value = value;
+            this.priority = priority;
+            this.weight = weight;
+            this.weightSum = weight;
+        }
+
+        public E getValue() {
+            return value;
+        }
+
+        /**
+         * @return True while the node is part of a list.
+         */
+        public boolean isAttached() {
+            return attached;
+        }
+    }
+
+    private record Split<E>(Node<E> left, Node<E> right) {
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * Appends the value to the end of the list.
+     *
+     * @param value Value to append
+     * @return Handle of the new element
+     */
+    public Node<E> add(E value) {
+        return insert(size(), value);
+    }
+
+    /**
+     * Inserts the value at the position. Elements at and after the position are shifted back.
+     *
+     * @param index Zero-based position, {@code 0 <= index <= size()}
+     * @param value Value to insert
+     * @return Handle of the new element
+     */
+    public Node<E> insert(int index, E value) {
+        checkPositionIndex(index);
+        Node<E> node = new Node<>(value, random.nextInt(), weightFunction.applyAsDouble(value));
+        attach(node, index);
+        return node;
+    }
+
+    /**
+     * @param index Zero-based position
+     * @return Handle of the element at the position
+     */
+    public Node<E> getNode(int index) {
+        checkElementIndex(index);
+        Node<E> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    public E get(int index) {
+        return getNode(index).value;
+    }
+
+    /**
+     * @return Handle of the first element or null if the list is empty.
+     */
+    public Node<E> first() {
+        if (root == null) return null;
+        Node<E> node = root;
+        while (node.left != null) node = node.left;
+        return node;
+    }
+
+    /**
+     * Finds the current position of an element by walking from its node up to the root.
+     *
+     * @param node Handle returned by this list
+     * @return Zero-based position or -1 if the node is not part of this list anymore.
+     */
+    public int indexOf(Node<E> node) {
+        if (node == null || !node.attached) return -1;
+
+        int index = size(node.left);
+        Node<E> current = node;
+        while (current.parent != null) {
+            if (current == current.parent.right) {
+                index += size(current.parent.left) + 1;
+            }
+            current = current.parent;
+        }
+        return current == root ? index : -1;
+    }
+
+    /**
+     * @return Sum of the weights of all elements.
+     */
+    public double totalWeight() {
+        return weightSum(root);
+    }
+
+    /**
+     * @param count Number of elements from the start of the list, {@code 0 <= count <= size()}
+     * @return Sum of the weights of the first {@code count} elements.
+     */
+    public double prefixWeight(int count) {
+        checkPositionIndex(count);
+
+        double sum = 0;
+        Node<E> node = root;
+        while (node != null && count > 0) {
+            int leftSize = size(node.left);
+            if (count <= leftSize) {
+                node = node.left;
+            } else {
+                sum += weightSum(node.left) + node.weight;
+                count -= leftSize + 1;
+                node = node.right;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param node Handle returned by this list
+     * @return Sum of the weights of all elements before the node, or -1 if the node is not part of this list.
+     */
+    public double weightBefore(Node<E> node) {
+        if (indexOf(node) == -1) return -1;
+
+        double sum = weightSum(node.left);
+        Node<E> current = node;
+        while (current.parent != null) {
+            if (current == current.parent.right) {
+                sum += weightSum(current.parent.left) + current.parent.weight;
+            }
+            current = current.parent;
+        }
+        return sum;
+    }
+
+    /**
+     * Removes the element from the list.
+     *
+     * @param node Handle returned by this list
+     * @return True if the element was removed, false if it was not part of this list.
+     */
+    public boolean remove(Node<E> node) {
+        int index = indexOf(node);
+        if (index == -1) return false;
+        detach(index);
+        return true;
+    }
+
+    /**
+     * Removes the element at the position.
+     *
+     * @param index Zero-based position
+     * @return Handle of the removed element
+     */
+    public Node<E> removeAt(int index) {
+        checkElementIndex(index);
+        return detach(index);
+    }
+
+    /**
+     * Moves the element to a new position. The handle stays valid.
+     *
+     * @param node  Handle returned by this list
+     * @param index New zero-based position, {@code 0 <= index < size()}
+     * @return True if the element was moved, false if it was not part of this list.
+     */
+    public boolean move(Node<E> node, int index) {
+        int current = indexOf(node);
+        if (current == -1) return false;
+        checkElementIndex(index);
+
+        detach(current);
+        attach(node, index);
+        return true;
+    }
+
+    public void clear() {
+        for (Node<E> node : nodes()) {
+            node.attached = false;
+        }
+        root = null;
+    }
+
+    /**
+     * @return Handles of all elements in list order.
+     */
+    public List<Node<E>> nodes() {
+        List<Node<E>> nodes = new ArrayList<>(size());
+        ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+        Node<E> node = root;
+        while (node != null || !stack.isEmpty()) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+            node = stack.pop();
+            nodes.add(node);
+            node = node.right;
+        }
+        return nodes;
+    }
+
+    /**
+     * @return Copy of all values in list order.
+     */
+    public List<E> toList() {
+        List<E> values = new ArrayList<>(size());
+        for (E value : this) values.add(value);
+        return values;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<>() {
+            private final ArrayDeque<Node<E>> stack = new ArrayDeque<>();
+
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(Node<E> node) {
+                while (node != null) {
+                    stack.push(node);
+                    node = node.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public E next() {
+                if (stack.isEmpty()) throw new NoSuchElementException();
+                Node<E> node = stack.pop();
+                pushLeft(node.right);
+                return node.value;
+            }
+        };
+    }
+
+    private void attach(Node<E> node, int index) {
+        node.left = null;
+        node.right = null;
+        node.parent = null;
+        node.attached = true;
+        update(node);
+
+        Split<E> split = split(root, index);
+        setRoot(merge(merge(split.left(), node), split.right()));
+    }
+
+    private Node<E> detach(int index) {
+        Split<E> before = split(root, index);
+        Split<E> after = split(before.right(), 1);
+        Node<E> node = after.left();
+
+        node.attached = false;
+        node.parent = null;
+        setRoot(merge(before.left(), after.right()));
+        return node;
+    }
+
+    private void setRoot(Node<E> node) {
+        root = node;
+        if (root != null) root.parent = null;
+    }
+
+//    Splits the tree so that the first k elements end up on the left
+    private Split<E> split(Node<E> node, int k) {
+        if (node == null) return new Split<>(null, null);
+
+        if (size(node.left) >= k) {
+            Split<E> split = split(node.left, k);
+            node.left = split.right();
+            update(node);
+            if (split.left() != null) split.left().parent = null;
+            return new Split<>(split.left(), node);
+        } else {
+            Split<E> split = split(node.right, k - size(node.left) - 1);
+            node.right = split.left();
+            update(node);
+            if (split.right() != null) split.right().parent = null;
+            return new Split<>(node, split.right());
+        }
+    }
+
+    private Node<E> merge(Node<E> left, Node<E> right) {
+        if (left == null) return right;
+        if (right == null) return left;
+
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            update(right);
+            return right;
+        }
+    }
+
+    private void update(Node<E> node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        node.weightSum = node.weight + weightSum(node.left) + weightSum(node.right);
+        if (node.left != null) node.left.parent = node;
+        if (node.right != null) node.right.parent = node;
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static double weightSum(Node<?> node) {
+        return node == null ? 0 : node.weightSum;
+    }
+
+    private void checkElementIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for size %d", index, size()));
+        }
+    }
+
+    private void checkPositionIndex(int index) {
+        if (index < 0 || index > size()) {
+            throw new IndexOutOfBoundsException(String.format("Index %d out of bounds for size %d", index, size()));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package dev.taway.catnip.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * JSON file backed by a {@link CacheDataHandler} that is written behind the owner's back. Owners call
+ * {@link #markDirty()} after every change, which only sets a flag. The file is rewritten by the persistence thread
+ * (see {@code PersistenceService}) once per flush interval if anything changed, so a burst of changes costs one write
+ * and request threads never wait for the disk.
+ * <br>
+ * The snapshot supplier is called on the persistence thread and has to be safe to call concurrently with changes.
+ *
+ * @param <T> Entry type
+ */
+public class PersistentStore<T> implements BackgroundFlushable {
+    private final CacheDataHandler<T> handler;
+    private final String path;
+    private final Supplier<List<T>> snapshot;
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    /**
+     * @param clazz    Entry type
+     * @param path     Path relative to the working directory
+     * @param snapshot Returns the entries to save
+     */
+    public PersistentStore(Class<T> clazz, String path, Supplier<List<T>> snapshot) {
+        this.handler = new CacheDataHandler<>(clazz);
+        this.path = path;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @return Entries saved in the file, empty if there is no file
+     */
+    public ArrayList<T> load() {
+        return handler.load(path);
+    }
+
+    /**
+     * Marks the store as changed. The file is written on the next flush.
+     */
+    public void markDirty() {
+        dirty.set(true);
+    }
+
+    public boolean isDirty() {
+        return dirty.get();
+    }
+
+    /**
+     * Writes the file if anything changed since the last write. Changes made while writing are picked up by the next
+     * flush.
+     *
+     * @return True if nothing had to be written or the write succeeded
+     */
+    @Override
+    public synchronized boolean flushIfDirty() {
+//        Cleared before the snapshot is taken so a change racing with the write marks the store dirty again
+        if (!dirty.compareAndSet(true, false)) return true;
+
+        boolean saved = false;
+        try {
+            saved = handler.save(path, snapshot.get());
+        } finally {
+            if (!saved) dirty.set(true);
+        }
+        return saved;
+    }
+
+    /**
+     * Writes the file now, whether anything changed or not.
+     *
+     * @return True if the write succeeded
+     */
+    public boolean flush() {
+        markDirty();
+        return flushIfDirty();
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,87 @@
+package dev.taway.catnip.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Makes sure only one piece of work runs per key at a time. Callers asking for a key that is already being worked on
+ * get attached to the pending result instead of starting the work again.
+ *
+ * @param <K> Key type
+ * @param <V> Result type
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+
+    /**
+     * Runs the work for the key unless it is already running, in which case the pending result is returned.
+     * The key is released once the work completes so later calls start fresh.
+     *
+     * @param key  Key identifying the work
+     * @param work Starts the work. Only called if nothing is in flight for the key.
+     * @return Result of the work. Each caller gets its own copy, cancelling it does not affect other callers.
+     * @throws RuntimeException If starting the work threw, e.g. a {@link java.util.concurrent.RejectedExecutionException}
+     *                          from a full executor. Callers that attached in the meantime get it as a failed result.
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> work) {
+        CompletableFuture<V> promise = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, promise);
+
+        if (existing != null) {
+            deduplicated.increment();
+            return existing.copy();
+        }
+
+        started.increment();
+        try {
+            work.get().whenComplete((value, error) -> {
+//                Release the key before completing so anyone reacting to the result can start a new flight
+                inFlight.remove(key, promise);
+                if (error != null) {
+                    promise.completeExceptionally(error);
+                } else {
+                    promise.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, promise);
+            promise.completeExceptionally(e);
+//            The caller decides how to refuse, a failed future would look like failed work
+            throw e;
+        }
+        return promise.copy();
+    }
+
+    /**
+     * @param key Key to check
+     * @return True if work for the key is currently running.
+     */
+    public boolean isInFlight(K key) {
+        return inFlight.containsKey(key);
+    }
+
+    /**
+     * @return Number of keys currently being worked on.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return Number of calls that started new work.
+     */
+    public long getStartedCount() {
+        return started.sum();
+    }
+
+    /**
+     * @return Number of calls that attached to already running work instead of starting it again.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicated.sum();
+    }
+}
@@ -39,10 +39,31 @@ public class PlaybackStatusHandler extends TextWebSocketHandler {
     }
 
     public void broadcastStatus(MusicQueueEntry status) {
+        broadcast(status);
+    }
+
+    /**
+     * Serializes the message once and sends it to every connected session.
+     *
+     * @param message Object to be sent as JSON. Messages other than playback status carry a {@code type} field.
+     */
+    public void broadcast(Object message) {
+        if (sessions.isEmpty()) return;
+
+        TextMessage textMessage;
+        try {
+            textMessage = new TextMessage(objectMapper.writeValueAsString(message));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to serialize WebSocket message {}", message, e);
+            return;
+        }
+
         sessions.forEach(session -> {
             try {
-                String json = objectMapper.writeValueAsString(status);
-                session.sendMessage(new TextMessage(json));
+//                WebSocketSession is not thread safe. Broadcasts can come from request threads and download workers.
+                synchronized (session) {
+                    session.sendMessage(textMessage);
+                }
             } catch (IOException e) {
                 log.error("Failed to send status update to session {}", session.getId(), e);
             }
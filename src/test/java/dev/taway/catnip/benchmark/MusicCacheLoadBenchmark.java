@@ -0,0 +1,148 @@
+package dev.taway.catnip.benchmark;
+
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.service.music.cache.storage.BinaryMusicCacheStorage;
+import dev.taway.catnip.util.CacheDataHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Compares loading the JSON music cache with loading the binary one, and looking up a field in the binary file without
+ * building entries.
+ * <br>
+ * Run {@link #main(String[])} after {@code mvn test-compile}. It first prints the heap retained by each format once
+ * loaded, then runs the benchmarks with the GC profiler. Pages of the binary file are mapped outside the heap and
+ * shared with the page cache, they do not show up in either number.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MusicCacheLoadBenchmark {
+    private static final String JSON_PATH = "/target/benchmark/music-cache.json";
+    private static final Path BINARY_PATH = Path.of(System.getProperty("user.dir"), "target", "benchmark", "music-cache.bin");
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+
+    @Param({"1000", "20000"})
+    public int entries;
+
+    private BinaryMusicCacheStorage openStorage;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        writeFiles(entries);
+        openStorage = new BinaryMusicCacheStorage(BINARY_PATH);
+        openStorage.load();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        openStorage.close();
+    }
+
+    @Benchmark
+    public List<MusicCacheEntry> loadJson() {
+        return new CacheDataHandler<>(MusicCacheEntry.class).load(JSON_PATH);
+    }
+
+    @Benchmark
+    public List<MusicCacheEntry> loadBinary() {
+        BinaryMusicCacheStorage storage = new BinaryMusicCacheStorage(BINARY_PATH);
+        try {
+            return storage.load();
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Benchmark
+    public int scanTitlesBinary() {
+        int length = 0;
+        for (int i = 0; i < openStorage.getRecordCount(); i++) {
+            length += openStorage.getTitle(i).length();
+        }
+        return length;
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        writeFiles(20000);
+        System.out.printf("Retained heap, JSON:   %d KB%n", retainedHeap(() -> new CacheDataHandler<>(MusicCacheEntry.class).load(JSON_PATH)) / 1024);
+        System.out.printf("Retained heap, binary: %d KB (+ %d KB mapped)%n", retainedHeap(() -> {
+            BinaryMusicCacheStorage storage = new BinaryMusicCacheStorage(BINARY_PATH);
+            storage.load();
+            return storage;
+        }) / 1024, Files.size(BINARY_PATH) / 1024);
+
+        new Runner(new OptionsBuilder()
+                .include(MusicCacheLoadBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()
+        ).run();
+    }
+
+    private static void writeFiles(int count) throws IOException {
+        Random random = new Random(42);
+        List<MusicCacheEntry> cache = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder id = new StringBuilder();
+            for (int c = 0; c < 11; c++) id.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            String title = "Song number " + i + " (Official Video)";
+
+            MusicCacheEntry.LocalData localData = new MusicCacheEntry.LocalData(
+                    "/cache/music/download/" + title + ".mp3", title + ".mp3", "mp3", "/cache/music/download/",
+                    System.currentTimeMillis() - random.nextInt(1_000_000_000), System.currentTimeMillis());
+            localData.setPlayCount(random.nextInt(20));
+            localData.setSize(3_000_000 + random.nextInt(5_000_000));
+
+            cache.add(new MusicCacheEntry("https://www.youtube.com/watch?v=" + id, id.toString(), title,
+                    "Artist " + random.nextInt(count / 10 + 1), 120 + random.nextInt(300), false, null, localData));
+        }
+
+        Files.createDirectories(BINARY_PATH.getParent());
+        new CacheDataHandler<>(MusicCacheEntry.class).save(JSON_PATH, cache);
+        BinaryMusicCacheStorage.write(BINARY_PATH, cache, count);
+    }
+
+//    Binary storage keeps its record index, loaded entries are dropped like the JSON parse buffers
+    private static long retainedHeap(Supplier<Object> loader) {
+        long before = usedHeap();
+        Object loaded = loader.get();
+        long retained = usedHeap() - before;
+        if (loaded instanceof BinaryMusicCacheStorage storage) storage.close();
+        Reference.reachabilityFence(loaded);
+        return retained;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
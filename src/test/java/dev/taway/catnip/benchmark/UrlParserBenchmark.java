@@ -0,0 +1,72 @@
+package dev.taway.catnip.benchmark;
+
+import dev.taway.catnip.service.music.util.YouTubeUrlParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the regex based video ID extraction {@code UrlUtil.shortenURL} used to do with {@link YouTubeUrlParser}.
+ * <br>
+ * Run {@link #main(String[])} after {@code mvn test-compile}. The GC profiler reports allocation per call
+ * ({@code gc.alloc.rate.norm}) next to the latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlParserBenchmark {
+//    Regex UrlUtil.shortenURL compiled on every call
+    private static final String LEGACY_REGEX = "(?:youtu\\.be/|youtube\\.com/(?:.*v=|embed/|v/|shorts/|live/))([a-zA-Z0-9_-]{11})";
+    private static final Pattern PRECOMPILED = Pattern.compile(LEGACY_REGEX);
+
+    @Param({
+            "https://youtu.be/lgzCxqQUU5g?si=OGS77kTm_KTKp8I0",
+            "https://www.youtube.com/watch?v=cvaIgq5j2Q8&list=PL0wqt_um4x0bsdViTJBmnl6KGMoSqxfZy",
+            "https://music.youtube.com/watch?v=cvaIgq5j2Q8",
+            "invalid_url"
+    })
+    public String url;
+
+    @Benchmark
+    public String legacyRegex() {
+        Matcher matcher = Pattern.compile(LEGACY_REGEX).matcher(url);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    @Benchmark
+    public String precompiledRegex() {
+        Matcher matcher = PRECOMPILED.matcher(url);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    @Benchmark
+    public YouTubeUrlParser.Result parser() {
+        return YouTubeUrlParser.parse(url);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UrlParserBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()
+        ).run();
+    }
+}
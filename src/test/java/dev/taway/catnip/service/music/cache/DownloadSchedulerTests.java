@@ -0,0 +1,198 @@
+package dev.taway.catnip.service.music.cache;
+
+import dev.taway.catnip.config.CatnipConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs with a single download slot. Until the first download finishes the limiter expects every download to take 30s,
+ * deadlines below are picked relative to that.
+ */
+class DownloadSchedulerTests {
+    private static final long SECOND = 1000;
+
+    private DownloadScheduler scheduler;
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch blockerStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseBlocker = new CountDownLatch(1);
+    private long now;
+
+    @BeforeEach
+    void setUp() throws InterruptedException {
+        CatnipConfig config = new CatnipConfig();
+        config.getDownload().setWorkerThreads(1);
+        config.getDownload().setMinimumConcurrency(1);
+        config.getDownload().setMaximumConcurrency(1);
+        config.getDownload().setQueueCapacity(4);
+        scheduler = new DownloadScheduler(config, new ExtractorLimiter(config));
+        now = System.currentTimeMillis();
+
+//        Keeps the only worker busy until every task of a test is submitted
+        scheduler.executor("blocker", DownloadScheduler.Urgency.PLAYBACK, () -> now, null).execute(() -> {
+            blockerStarted.countDown();
+            try {
+                releaseBlocker.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        assertTrue(blockerStarted.await(5, TimeUnit.SECONDS));
+    }
+
+    @AfterEach
+    void tearDown() {
+        releaseBlocker.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    void earliestDeadlineGoesFirst() throws InterruptedException {
+        submit("c", DownloadScheduler.Urgency.REQUEST, now + 300 * SECOND);
+        submit("a", DownloadScheduler.Urgency.REQUEST, now + 100 * SECOND);
+        submit("b", DownloadScheduler.Urgency.REQUEST, now + 200 * SECOND);
+
+        assertEquals(List.of("a", "b", "c"), runAll(3));
+    }
+
+    @Test
+    void lateTaskDoesNotWaitBehindDistantOnes() throws InterruptedException {
+        submit("far", DownloadScheduler.Urgency.REQUEST, now + 600 * SECOND);
+        submit("late", DownloadScheduler.Urgency.PLAYBACK, now + 5 * SECOND);
+
+        assertEquals(List.of("late", "far"), runAll(2));
+    }
+
+    @Test
+    void hopelessTaskYieldsOnlyToOneItWouldMakeLate() throws InterruptedException {
+        submit("late", DownloadScheduler.Urgency.PLAYBACK, now + 5 * SECOND);
+//        Makes it if started now, not after waiting 30s for the late one
+        submit("tight", DownloadScheduler.Urgency.PLAYBACK, now + 50 * SECOND);
+        submit("far", DownloadScheduler.Urgency.PLAYBACK, now + 600 * SECOND);
+
+        assertEquals(List.of("tight", "late", "far"), runAll(3));
+    }
+
+    @Test
+    void playbackGoesBeforeRequestOnTie() throws InterruptedException {
+        submit("request", DownloadScheduler.Urgency.REQUEST, now + 300 * SECOND);
+        submit("playback", DownloadScheduler.Urgency.PLAYBACK, now + 300 * SECOND);
+
+        assertEquals(List.of("playback", "request"), runAll(2));
+    }
+
+    @Test
+    void playbackGoesBeforeRequestLessThanOneDownloadEarlier() throws InterruptedException {
+        submit("request", DownloadScheduler.Urgency.REQUEST, now + 300 * SECOND);
+        submit("playback", DownloadScheduler.Urgency.PLAYBACK, now + 310 * SECOND);
+        submit("later request", DownloadScheduler.Urgency.REQUEST, now + 400 * SECOND);
+        submit("later playback", DownloadScheduler.Urgency.PLAYBACK, now + 500 * SECOND);
+
+        assertEquals(List.of("playback", "request", "later request", "later playback"), runAll(4));
+    }
+
+    @Test
+    void speculativeRunsOnlyWhenNothingElseWaits() throws InterruptedException {
+        submit("speculative", DownloadScheduler.Urgency.SPECULATIVE, now);
+        submit("request", DownloadScheduler.Urgency.REQUEST, now + 3600 * SECOND);
+
+        assertEquals(List.of("request", "speculative"), runAll(2));
+    }
+
+    @Test
+    void deadlinesAreReadWhenPicking() throws InterruptedException {
+        AtomicLong moving = new AtomicLong(now + 100 * SECOND);
+        scheduler.executor("moving", DownloadScheduler.Urgency.REQUEST, moving::get, null).execute(() -> order.add("moving"));
+        submit("fixed", DownloadScheduler.Urgency.REQUEST, now + 200 * SECOND);
+//        Queue ahead of the song grew while it waited
+        moving.set(now + 300 * SECOND);
+
+        assertEquals(List.of("fixed", "moving"), runAll(2));
+    }
+
+    @Test
+    void promotedTaskKeepsEarlierDeadline() throws InterruptedException {
+        submit("prefetch", DownloadScheduler.Urgency.SPECULATIVE, now);
+        submit("request", DownloadScheduler.Urgency.REQUEST, now + 900 * SECOND);
+
+        assertTrue(scheduler.promote("prefetch", DownloadScheduler.Urgency.REQUEST, "job", () -> now + 800 * SECOND));
+        assertFalse(scheduler.promote("unknown", DownloadScheduler.Urgency.REQUEST, "job", () -> now));
+        assertEquals(List.of("prefetch", "request"), runAll(2));
+    }
+
+    @Test
+    void promotingAgainReplacesDeadlineOfSameSource() throws InterruptedException {
+        submit("prefetch", DownloadScheduler.Urgency.SPECULATIVE, Long.MAX_VALUE);
+        submit("request", DownloadScheduler.Urgency.REQUEST, now + 900 * SECOND);
+
+        scheduler.promote("prefetch", DownloadScheduler.Urgency.PLAYBACK, 1L, () -> now + 800 * SECOND);
+//        Queue entry moved further back
+        scheduler.promote("prefetch", DownloadScheduler.Urgency.PLAYBACK, 1L, () -> now + 1000 * SECOND);
+
+        assertEquals(List.of("request", "prefetch"), runAll(2));
+    }
+
+    @Test
+    void runningSpeculativeTaskIsPreempted() throws InterruptedException {
+        releaseBlocker.countDown();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch preempted = new CountDownLatch(1);
+        Thread[] worker = new Thread[1];
+        scheduler.executor("speculative", DownloadScheduler.Urgency.SPECULATIVE, () -> now, () -> worker[0].interrupt()).execute(() -> {
+            worker[0] = Thread.currentThread();
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                preempted.countDown();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        submit("playback", DownloadScheduler.Urgency.PLAYBACK, now);
+
+        assertTrue(preempted.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("playback"), runAll(1));
+    }
+
+    @Test
+    void fullQueueRejectsTasks() {
+        for (int i = 0; i < 4; i++) {
+            submit("request " + i, DownloadScheduler.Urgency.REQUEST, now);
+        }
+
+        assertEquals(0, scheduler.getRemainingCapacity(DownloadScheduler.Urgency.REQUEST));
+        assertThrows(RejectedExecutionException.class, () -> submit("one too many", DownloadScheduler.Urgency.REQUEST, now));
+    }
+
+    @Test
+    void speculativeTasksFillOnlyHalfTheQueue() {
+        submit("speculative 0", DownloadScheduler.Urgency.SPECULATIVE, now);
+        submit("speculative 1", DownloadScheduler.Urgency.SPECULATIVE, now);
+
+        assertThrows(RejectedExecutionException.class, () -> submit("speculative 2", DownloadScheduler.Urgency.SPECULATIVE, now));
+        submit("request", DownloadScheduler.Urgency.REQUEST, now);
+    }
+
+    private void submit(String key, DownloadScheduler.Urgency urgency, long deadline) {
+        scheduler.executor(key, urgency, () -> deadline, null).execute(() -> order.add(key));
+    }
+
+    private List<String> runAll(int count) throws InterruptedException {
+        releaseBlocker.countDown();
+        long until = System.currentTimeMillis() + 5 * SECOND;
+        while (order.size() < count && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        return List.copyOf(order);
+    }
+}
@@ -0,0 +1,167 @@
+package dev.taway.catnip.service.music.queue;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.taway.catnip.config.CatnipConfig;
+import dev.taway.catnip.data.music.MusicCacheEntry;
+import dev.taway.catnip.data.music.MusicQueueEntry;
+import dev.taway.catnip.data.music.MusicQueueSnapshot;
+import dev.taway.catnip.data.music.QueueOperation;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The journal keeps its files under {@code user.dir}, which points to a temporary directory while these tests run.
+ */
+class MusicQueueJournalTests {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final CatnipConfig config = new CatnipConfig();
+
+    @TempDir
+    Path directory;
+    private String userDir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        userDir = System.getProperty("user.dir");
+        System.setProperty("user.dir", directory.toString());
+        Files.createDirectories(directory.resolve("cache"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        System.setProperty("user.dir", userDir);
+    }
+
+    @Test
+    void compactedQueueIsRestored() {
+        MusicQueueManager queue = new MusicQueueManager();
+        MusicQueueJournal journal = new MusicQueueJournal(queue, config);
+        journal.recover();
+        MusicQueueEntry a = queue.addToQueue(song("aaaaaaaaaaA", "a"));
+        MusicQueueEntry b = queue.addToQueue(song("bbbbbbbbbbA", "b"));
+        MusicQueueEntry c = queue.addToQueue(song("ccccccccccA", "c"));
+        queue.moveInQueue(c.getHandle(), 0);
+        queue.removeByHandle(b.getHandle());
+        queue.setPaused(a.getHandle(), true);
+        journal.destroy();
+
+        assertEquals(0, size("cache/music-queue.journal"));
+
+        MusicQueueManager restored = restore();
+        assertEquals(List.of("c", "a"), titles(restored));
+        assertEquals(List.of(c.getHandle(), a.getHandle()), handles(restored));
+        assertTrue(restored.get(1).orElseThrow().isPaused());
+        assertEquals(queue.getSequence(), restored.getSequence());
+//        Handles are never reused after a restart
+        assertTrue(restored.addToQueue(song("ddddddddddA", "d")).getHandle() > c.getHandle());
+    }
+
+    @Test
+    void journalIsReplayedUpToTornTail() throws IOException {
+        MusicQueueManager queue = new MusicQueueManager();
+        List<String> lines = new ArrayList<>();
+        queue.addListener(operation -> lines.add(toJson(operation)));
+        MusicQueueEntry a = queue.addToQueue(song("aaaaaaaaaaA", "a"));
+        MusicQueueEntry b = queue.addToQueue(song("bbbbbbbbbbA", "b"));
+        queue.addToQueue(song("ccccccccccA", "c"));
+        queue.moveInQueue(b.getHandle(), 0);
+        queue.removeByHandle(a.getHandle());
+        MusicCacheEntry.LocalData file = new MusicCacheEntry.LocalData();
+        file.setFullPath("/cache/music/b.mp3");
+        queue.setLocalData(b.getHandle(), file);
+
+//        Crash in the middle of appending the next operation
+        lines.add("{\"sequence\":" + (queue.getSequence() + 1) + ",\"type\":\"AD");
+        Files.write(directory.resolve("cache/music-queue.journal"), lines, StandardCharsets.UTF_8);
+
+        MusicQueueManager restored = restore();
+        assertEquals(List.of("b", "c"), titles(restored));
+        assertEquals(queue.getSequence(), restored.getSequence());
+        assertEquals("/cache/music/b.mp3", restored.getByHandle(b.getHandle()).orElseThrow().getLocalData().getFullPath());
+    }
+
+    @Test
+    void replayStopsAtGap() {
+        MusicQueueManager queue = new MusicQueueManager();
+        List<QueueOperation> operations = new ArrayList<>();
+        queue.addListener(operations::add);
+        queue.addToQueue(song("aaaaaaaaaaA", "a"));
+        queue.addToQueue(song("bbbbbbbbbbA", "b"));
+        queue.addToQueue(song("ccccccccccA", "c"));
+        operations.remove(1);
+
+        MusicQueueManager restored = new MusicQueueManager();
+        int replayed = restored.restore(new MusicQueueSnapshot(0, 1, new ArrayList<>()), operations);
+
+        assertEquals(1, replayed);
+        assertEquals(List.of("a"), titles(restored));
+        assertEquals(1, restored.getSequence());
+    }
+
+    @Test
+    void operationsInSnapshotAreNotReplayed() {
+        MusicQueueManager queue = new MusicQueueManager();
+        List<QueueOperation> operations = new ArrayList<>();
+        queue.addListener(operations::add);
+        queue.addToQueue(song("aaaaaaaaaaA", "a"));
+        queue.addToQueue(song("bbbbbbbbbbA", "b"));
+        MusicQueueSnapshot snapshot = queue.snapshot();
+        queue.addToQueue(song("ccccccccccA", "c"));
+
+        MusicQueueManager restored = new MusicQueueManager();
+        int replayed = restored.restore(snapshot, operations);
+
+        assertEquals(1, replayed);
+        assertEquals(List.of("a", "b", "c"), titles(restored));
+        assertEquals(3, restored.getSequence());
+    }
+
+    private MusicQueueManager restore() {
+        MusicQueueManager restored = new MusicQueueManager();
+        MusicQueueJournal journal = new MusicQueueJournal(restored, config);
+        journal.recover();
+        journal.destroy();
+        return restored;
+    }
+
+    private long size(String file) {
+        try {
+            return Files.size(directory.resolve(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String toJson(QueueOperation operation) {
+        try {
+            return objectMapper.writeValueAsString(operation);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MusicCacheEntry song(String videoId, String title) {
+        return new MusicCacheEntry("https://youtu.be/" + videoId, videoId, title, "artist", 180, false, null, null);
+    }
+
+    private static List<String> titles(MusicQueueManager queue) {
+        return queue.getQueueEntries().stream().map(MusicQueueEntry::getTitle).toList();
+    }
+
+    private static List<Long> handles(MusicQueueManager queue) {
+        return queue.getQueueEntries().stream().map(MusicQueueEntry::getHandle).toList();
+    }
+}
@@ -0,0 +1,49 @@
+package dev.taway.catnip.service.music.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VideoIdTests {
+
+    @Test
+    void encodeAndDecodeRoundTrip() {
+        assertEquals("lgzCxqQUU5g", VideoId.decode(VideoId.encode("lgzCxqQUU5g")));
+        assertEquals("dQw4w9WgXcQ", VideoId.decode(VideoId.encode("dQw4w9WgXcQ")));
+    }
+
+    @Test
+    void everyLongIsAPackedId() {
+        Random random = new Random(11);
+        for (int i = 0; i < 10000; i++) {
+            long packed = random.nextLong();
+            String id = VideoId.decode(packed);
+            assertTrue(VideoId.isValid(id), id);
+            assertEquals(packed, VideoId.encode(id));
+        }
+    }
+
+    @Test
+    void extremesUseAllBits() {
+        assertEquals(0L, VideoId.encode("AAAAAAAAAAA"));
+        assertEquals(-1L, VideoId.encode("__________8"));
+        assertEquals("__________8", VideoId.decode(-1L));
+    }
+
+    @Test
+    void invalidIdsAreRejected() {
+        assertFalse(VideoId.isValid(null));
+        assertFalse(VideoId.isValid(""));
+        assertFalse(VideoId.isValid("lgzCxqQUU5"));
+        assertFalse(VideoId.isValid("lgzCxqQUU5gg"));
+        assertFalse(VideoId.isValid("lgzCxqQU=5g"));
+        assertFalse(VideoId.isValid("lgzCxqQUé5g"));
+//        Last character has to leave its 2 lowest bits zero
+        assertFalse(VideoId.isValid("lgzCxqQUU5h"));
+
+        assertThrows(IllegalArgumentException.class, () -> VideoId.encode("lgzCxqQUU5h"));
+        assertThrows(IllegalArgumentException.class, () -> VideoId.encode(null));
+    }
+}
@@ -0,0 +1,92 @@
+package dev.taway.catnip.service.music.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class YouTubeUrlParserTests {
+    private static final String ID = "lgzCxqQUU5g";
+
+    @Test
+    void everyFormIsAccepted() {
+        assertAccepted("https://youtu.be/" + ID, YouTubeUrlParser.Form.SHORT_LINK);
+        assertAccepted("https://www.youtube.com/watch?v=" + ID, YouTubeUrlParser.Form.WATCH);
+        assertAccepted("https://www.youtube.com/embed/" + ID, YouTubeUrlParser.Form.EMBED);
+        assertAccepted("https://www.youtube.com/v/" + ID, YouTubeUrlParser.Form.V);
+        assertAccepted("https://www.youtube.com/shorts/" + ID, YouTubeUrlParser.Form.SHORTS);
+        assertAccepted("https://www.youtube.com/live/" + ID, YouTubeUrlParser.Form.LIVE);
+    }
+
+    @Test
+    void schemeHostAndParametersVary() {
+        assertAccepted("youtu.be/" + ID, YouTubeUrlParser.Form.SHORT_LINK);
+        assertAccepted("http://youtube.com/watch?v=" + ID, YouTubeUrlParser.Form.WATCH);
+        assertAccepted("HTTPS://WWW.YouTube.com/watch?v=" + ID, YouTubeUrlParser.Form.WATCH);
+        assertAccepted("https://m.youtube.com/watch?v=" + ID, YouTubeUrlParser.Form.WATCH);
+        assertAccepted("https://music.youtube.com/watch?v=" + ID, YouTubeUrlParser.Form.WATCH);
+        assertAccepted("  https://youtu.be/" + ID + "  ", YouTubeUrlParser.Form.SHORT_LINK);
+        assertAccepted("https://youtu.be/" + ID + "?si=OGS77kTm_KTKp8I0", YouTubeUrlParser.Form.SHORT_LINK);
+        assertAccepted("https://www.youtube.com/watch?list=PL123&index=2&v=" + ID + "&t=42s", YouTubeUrlParser.Form.WATCH);
+        assertAccepted("https://www.youtube.com/watch?v=" + ID + "#t=42", YouTubeUrlParser.Form.WATCH);
+        assertAccepted("https://www.youtube.com/shorts/" + ID + "/", YouTubeUrlParser.Form.SHORTS);
+    }
+
+    @Test
+    void acceptedUrlIsNormalized() {
+        YouTubeUrlParser.Accepted accepted = assertAccepted("https://youtu.be/" + ID + "?t=10", YouTubeUrlParser.Form.SHORT_LINK);
+
+        assertEquals("https://www.youtube.com/watch?v=" + ID, accepted.watchUrl());
+        assertEquals(VideoId.encode(ID), accepted.packedId());
+    }
+
+    @Test
+    void emptyInputIsRejected() {
+        assertRejected(null, YouTubeUrlParser.Rejection.EMPTY);
+        assertRejected("", YouTubeUrlParser.Rejection.EMPTY);
+        assertRejected("   ", YouTubeUrlParser.Rejection.EMPTY);
+    }
+
+    @Test
+    void otherHostsAreRejected() {
+        assertRejected("https://vimeo.com/12345", YouTubeUrlParser.Rejection.NOT_YOUTUBE);
+        assertRejected("https://youtube.com.example.com/watch?v=" + ID, YouTubeUrlParser.Rejection.NOT_YOUTUBE);
+        assertRejected("https://notyoutube.com/watch?v=" + ID, YouTubeUrlParser.Rejection.NOT_YOUTUBE);
+        assertRejected("https://gaming.youtube.com/watch?v=" + ID, YouTubeUrlParser.Rejection.NOT_YOUTUBE);
+    }
+
+    @Test
+    void urlsWithoutVideoAreRejected() {
+        assertRejected("https://www.youtube.com", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://www.youtube.com/@channel", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://www.youtube.com/playlist?list=PL123", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://www.youtube.com/watch", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://www.youtube.com/watch?list=PL123", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://www.youtube.com/watch?vv=" + ID, YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://www.youtube.com/watch#v=" + ID, YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://youtu.be/", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+        assertRejected("https://youtu.be", YouTubeUrlParser.Rejection.NO_VIDEO_ID);
+    }
+
+    @Test
+    void malformedIdsAreRejected() {
+        assertRejected("https://youtu.be/lgzCxqQUU5", YouTubeUrlParser.Rejection.INVALID_VIDEO_ID);
+        assertRejected("https://youtu.be/lgzCxqQUU5gX", YouTubeUrlParser.Rejection.INVALID_VIDEO_ID);
+        assertRejected("https://youtu.be/lgzCxqQUU5g.mp4", YouTubeUrlParser.Rejection.INVALID_VIDEO_ID);
+//        Last character of a real ID never has its 2 lowest bits set
+        assertRejected("https://youtu.be/lgzCxqQUU5h", YouTubeUrlParser.Rejection.INVALID_VIDEO_ID);
+    }
+
+    private static YouTubeUrlParser.Accepted assertAccepted(String url, YouTubeUrlParser.Form form) {
+        YouTubeUrlParser.Result result = YouTubeUrlParser.parse(url);
+        YouTubeUrlParser.Accepted accepted = assertInstanceOf(YouTubeUrlParser.Accepted.class, result, url);
+        assertEquals(ID, accepted.videoId(), url);
+        assertEquals(form, accepted.form(), url);
+        return accepted;
+    }
+
+    private static void assertRejected(String url, YouTubeUrlParser.Rejection reason) {
+        YouTubeUrlParser.Result result = YouTubeUrlParser.parse(url);
+        YouTubeUrlParser.Rejected rejected = assertInstanceOf(YouTubeUrlParser.Rejected.class, result, url);
+        assertEquals(reason, rejected.reason(), url);
+    }
+}
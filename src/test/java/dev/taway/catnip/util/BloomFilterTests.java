@@ -0,0 +1,73 @@
+package dev.taway.catnip.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTests {
+
+    @Test
+    void addedKeysAreNeverMissed() {
+        Random random = new Random(3);
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        long[] keys = new long[10000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+            filter.add(keys[i]);
+        }
+
+        for (long key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    void falsePositiveRateIsNearTarget() {
+        Random random = new Random(5);
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        Set<Long> added = new HashSet<>();
+        while (added.size() < 10000) {
+            long key = random.nextLong();
+            added.add(key);
+            filter.add(key);
+        }
+
+        int checked = 0;
+        int falsePositives = 0;
+        while (checked < 100000) {
+            long key = random.nextLong();
+            if (added.contains(key)) continue;
+            checked++;
+            if (filter.mightContain(key)) falsePositives++;
+        }
+        assertTrue(falsePositives < checked * 0.02, "False positive rate " + (double) falsePositives / checked);
+    }
+
+    @Test
+    void sequentialKeysDoNotCollide() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (long key = 0; key < 1000; key++) {
+            filter.add(key);
+        }
+
+        int falsePositives = 0;
+        for (long key = 1000; key < 101000; key++) {
+            if (filter.mightContain(key)) falsePositives++;
+        }
+        assertTrue(falsePositives < 2000, "False positives " + falsePositives);
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(0, 0.01);
+
+        assertFalse(filter.mightContain(0));
+        assertFalse(filter.mightContain(-1));
+        filter.add(-1);
+        assertTrue(filter.mightContain(-1));
+    }
+}
@@ -0,0 +1,101 @@
+package dev.taway.catnip.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongObjectHashMapTests {
+
+    @Test
+    void randomOperationsMatchHashMap() {
+        Random random = new Random(7);
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        Map<Long, String> expected = new HashMap<>();
+
+        for (int i = 0; i < 20000; i++) {
+//            Small key range so removals hit existing keys and probe chains overlap
+            long key = random.nextInt(2000) - 1000;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                String value = "v" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (long key = -1000; key < 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertEquals(new HashSet<>(expected.values()), new HashSet<>(map.values()));
+    }
+
+    @Test
+    void entriesStayReachableAfterRemovalsAndResizes() {
+        LongObjectHashMap<Long> map = new LongObjectHashMap<>(1);
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, key);
+        }
+        for (long key = 0; key < 1000; key += 2) {
+            assertEquals(key, map.remove(key));
+        }
+
+        assertEquals(500, map.size());
+        for (long key = 0; key < 1000; key++) {
+            assertEquals(key % 2 == 0 ? null : key, map.get(key));
+        }
+    }
+
+    @Test
+    void extremeKeysAreUsable() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        map.put(0, "zero");
+        map.put(-1, "minus one");
+        map.put(Long.MIN_VALUE, "min");
+        map.put(Long.MAX_VALUE, "max");
+
+        assertEquals("zero", map.get(0));
+        assertEquals("minus one", map.get(-1));
+        assertEquals("min", map.get(Long.MIN_VALUE));
+        assertEquals("max", map.get(Long.MAX_VALUE));
+        assertNull(map.get(1));
+    }
+
+    @Test
+    void putIfAbsentKeepsExistingValue() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+
+        assertNull(map.putIfAbsent(1, "a"));
+        assertEquals("a", map.putIfAbsent(1, "b"));
+        assertEquals("a", map.get(1));
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    void nullValuesAreRejected() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+
+        assertThrows(NullPointerException.class, () -> map.put(1, null));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        map.put(1, "a");
+        map.put(2, "b");
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(1));
+        assertNull(map.remove(2));
+        map.put(1, "c");
+        assertEquals("c", map.get(1));
+    }
+}
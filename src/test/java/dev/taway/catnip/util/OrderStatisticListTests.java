@@ -0,0 +1,104 @@
+package dev.taway.catnip.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderStatisticListTests {
+
+    @Test
+    void randomOperationsMatchArrayList() {
+        Random random = new Random(42);
+        OrderStatisticList<Integer> list = new OrderStatisticList<>(value -> value);
+        List<OrderStatisticList.Node<Integer>> expected = new ArrayList<>();
+
+        for (int i = 0; i < 5000; i++) {
+            int operation = random.nextInt(4);
+            if (operation <= 1 || expected.isEmpty()) {
+                int index = random.nextInt(expected.size() + 1);
+                expected.add(index, list.insert(index, random.nextInt(100)));
+            } else if (operation == 2) {
+                OrderStatisticList.Node<Integer> node = expected.remove(random.nextInt(expected.size()));
+                assertTrue(list.remove(node));
+            } else {
+                OrderStatisticList.Node<Integer> node = expected.remove(random.nextInt(expected.size()));
+                int index = random.nextInt(expected.size() + 1);
+                expected.add(index, node);
+                assertTrue(list.move(node, index));
+            }
+        }
+
+        assertEquals(expected.size(), list.size());
+        double prefix = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            OrderStatisticList.Node<Integer> node = expected.get(i);
+            assertSame(node, list.getNode(i));
+            assertEquals(i, list.indexOf(node));
+            assertEquals(prefix, list.prefixWeight(i));
+            assertEquals(prefix, list.weightBefore(node));
+            prefix += node.getValue();
+        }
+        assertEquals(prefix, list.totalWeight());
+        assertEquals(expected.stream().map(OrderStatisticList.Node::getValue).toList(), list.toList());
+    }
+
+    @Test
+    void removedNodeIsNoLongerPartOfList() {
+        OrderStatisticList<String> list = new OrderStatisticList<>();
+        OrderStatisticList.Node<String> a = list.add("a");
+        OrderStatisticList.Node<String> b = list.add("b");
+
+        assertTrue(list.remove(a));
+        assertFalse(a.isAttached());
+        assertEquals(-1, list.indexOf(a));
+        assertEquals(-1, list.weightBefore(a));
+        assertFalse(list.remove(a));
+        assertFalse(list.move(a, 0));
+        assertEquals(0, list.indexOf(b));
+    }
+
+    @Test
+    void nodeOfAnotherListIsNotFound() {
+        OrderStatisticList<String> list = new OrderStatisticList<>();
+        OrderStatisticList<String> other = new OrderStatisticList<>();
+        list.add("a");
+        OrderStatisticList.Node<String> foreign = other.add("b");
+
+        assertEquals(-1, list.indexOf(foreign));
+        assertFalse(list.remove(foreign));
+        assertEquals(1, other.size());
+    }
+
+    @Test
+    void clearDetachesEveryNode() {
+        OrderStatisticList<String> list = new OrderStatisticList<>();
+        List<OrderStatisticList.Node<String>> nodes = List.of(list.add("a"), list.add("b"), list.add("c"));
+
+        list.clear();
+
+        assertTrue(list.isEmpty());
+        assertNull(list.first());
+        for (OrderStatisticList.Node<String> node : nodes) {
+            assertFalse(node.isAttached());
+            assertEquals(-1, list.indexOf(node));
+        }
+    }
+
+    @Test
+    void indexesOutOfBoundsAreRejected() {
+        OrderStatisticList<String> list = new OrderStatisticList<>();
+        OrderStatisticList.Node<String> a = list.add("a");
+
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(1));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.get(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.insert(2, "b"));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.move(a, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.prefixWeight(2));
+//        Failed move must not lose the node
+        assertEquals(0, list.indexOf(a));
+    }
+}